@@ -0,0 +1,51 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import hudson.EnvVars;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.TaskListener;
+import jenkins.benchmark.jmh.JmhBenchmark;
+import jenkins.benchmark.jmh.JmhBenchmarkState;
+import jenkins.model.Jenkins;
+import org.openjdk.jmh.annotations.Benchmark;
+
+/**
+ * Classification and expansion of the build step arguments, against a real build.
+ */
+@JmhBenchmark
+public class ArgumentExpanderBenchmark {
+
+    private static final String[] LITERAL = { "--target", "release", "--jobs", "4", "--verbose" };
+    private static final String[] TEMPLATED = { "--target", "release", "--job=${JOB_NAME}", "--build=${BUILD_NUMBER}", "${ENV,var=\"BUILD_TAG\"}" };
+
+    public static class JenkinsState extends JmhBenchmarkState {
+        FreeStyleBuild build;
+        EnvVars env;
+        ArgumentExpander literal;
+        ArgumentExpander templated;
+
+        @Override
+        public void setup() throws Exception {
+            FreeStyleProject project = Jenkins.get().createProject(FreeStyleProject.class, "benchmark");
+            build = project.scheduleBuild2(0).get();
+            env = build.getEnvironment(TaskListener.NULL);
+            literal = new ArgumentExpander(LITERAL);
+            templated = new ArgumentExpander(TEMPLATED);
+        }
+    }
+
+    @Benchmark
+    public ArgumentExpander classify() {
+        return new ArgumentExpander(TEMPLATED);
+    }
+
+    @Benchmark
+    public String[] expandLiteral(JenkinsState state) throws Exception {
+        return state.literal.expand(state.build, TaskListener.NULL, state.env);
+    }
+
+    @Benchmark
+    public String[] expandTemplated(JenkinsState state) throws Exception {
+        return state.templated.expand(state.build, TaskListener.NULL, state.env);
+    }
+}
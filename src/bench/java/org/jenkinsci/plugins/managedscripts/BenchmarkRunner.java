@@ -0,0 +1,37 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import jenkins.benchmark.jmh.BenchmarkFinder;
+import org.junit.Test;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs all benchmarks annotated with {@link jenkins.benchmark.jmh.JmhBenchmark}, only executed by the <code>benchmark</code> profile.
+ * <p>
+ * The results are written as JSON to the file given by the <code>jmh.result</code> system property, so they can be compared
+ * across versions.
+ */
+public class BenchmarkRunner {
+
+    @Test
+    public void runJmhBenchmarks() throws Exception {
+        ChainedOptionsBuilder options = new OptionsBuilder()
+                .mode(Mode.AverageTime)
+                .timeUnit(TimeUnit.MICROSECONDS)
+                .warmupIterations(3)
+                .measurementIterations(10)
+                .forks(1)
+                .threads(1)
+                .shouldFailOnError(true)
+                .shouldDoGC(true)
+                .resultFormat(ResultFormatType.JSON)
+                .result(System.getProperty("jmh.result", "target/jmh-result.json"));
+        new BenchmarkFinder(getClass()).findBenchmarks(options);
+        new Runner(options.build()).run();
+    }
+}
@@ -0,0 +1,50 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import hudson.BulkChange;
+import hudson.util.ListBoxModel;
+import jenkins.benchmark.jmh.JmhBenchmark;
+import jenkins.benchmark.jmh.JmhBenchmarkState;
+import org.jenkinsci.plugins.configfiles.GlobalConfigFiles;
+import org.openjdk.jmh.annotations.Benchmark;
+
+import java.util.Random;
+
+/**
+ * Filling the script picker of {@link ScriptBuildStep} with 10k managed scripts.
+ */
+@JmhBenchmark
+public class ConfigNameIndexBenchmark {
+
+    private static final int CONFIGS = 10000;
+
+    public static class JenkinsState extends JmhBenchmarkState {
+        @Override
+        public void setup() throws Exception {
+            GlobalConfigFiles store = GlobalConfigFiles.get();
+            Random random = new Random(42);
+            try (BulkChange bc = new BulkChange(store)) {
+                for (int i = 0; i < CONFIGS; i++) {
+                    store.save(new ScriptConfig("script-" + i, "Script " + random.nextInt(CONFIGS), "", "echo " + i + "\n", null));
+                }
+                bc.commit();
+            }
+        }
+    }
+
+    /**
+     * The picker of a build step, once the names are indexed.
+     */
+    @Benchmark
+    public ListBoxModel fill(JenkinsState state) {
+        return ConfigNameIndex.fillItems(null, null, ScriptConfig.ScriptConfigProvider.class, "script-" + (CONFIGS / 2));
+    }
+
+    /**
+     * The first picker after a config got saved, the names are listed again and the changes applied to the sorted names.
+     */
+    @Benchmark
+    public ListBoxModel fillAfterSave(JenkinsState state) {
+        ConfigNameIndex.invalidateAll();
+        return ConfigNameIndex.fillItems(null, null, ScriptConfig.ScriptConfigProvider.class, "script-" + (CONFIGS / 2));
+    }
+}
@@ -0,0 +1,55 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import hudson.model.Item;
+import jenkins.benchmark.jmh.JmhBenchmark;
+import org.kohsuke.stapler.StaplerRequest;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The description shown below the script picker: the argument list and the HTML of the details link.
+ */
+@JmhBenchmark
+@State(Scope.Benchmark)
+public class DetailLinkDescriptionBenchmark {
+
+    private final StaplerRequest req = stub(StaplerRequest.class, "getContextPath", "/jenkins");
+    private final Item context = stub(Item.class, "getUrl", "job/folder/job/benchmark/");
+    private final ScriptConfig config;
+
+    public DetailLinkDescriptionBenchmark() {
+        List<ScriptConfig.Arg> args = new ArrayList<ScriptConfig.Arg>();
+        for (int i = 0; i < 10; i++) {
+            args.add(new ScriptConfig.Arg("argument" + i));
+        }
+        config = new ScriptConfig("benchmark", "Benchmark", "", "echo $1\n", args);
+    }
+
+    @Benchmark
+    public String argsDescription() {
+        return ScriptBuildStep.DescriptorImpl.getArgsDescription(config);
+    }
+
+    @Benchmark
+    public DetailLinkDescription description() {
+        return DetailLinkDescription.getDescription(req, context, config.id, ScriptBuildStep.DescriptorImpl.getArgsDescription(config));
+    }
+
+    /**
+     * @return a stub of the interface answering the given method only, <code>null</code> otherwise
+     */
+    private static <T> T stub(Class<T> type, final String method, final Object answer) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, new InvocationHandler() {
+            public Object invoke(Object proxy, Method m, Object[] args) {
+                return m.getName().equals(method) ? answer : null;
+            }
+        }));
+    }
+}
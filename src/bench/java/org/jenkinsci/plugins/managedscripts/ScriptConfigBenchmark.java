@@ -0,0 +1,31 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import jenkins.benchmark.jmh.JmhBenchmark;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Creation of a {@link ScriptConfig} as done on every form submission, including the filtering of blank arguments.
+ */
+@JmhBenchmark
+@State(Scope.Benchmark)
+public class ScriptConfigBenchmark {
+
+    private final List<ScriptConfig.Arg> args = new ArrayList<ScriptConfig.Arg>();
+
+    public ScriptConfigBenchmark() {
+        for (int i = 0; i < 20; i++) {
+            // every fourth argument is left blank in the form
+            args.add(new ScriptConfig.Arg(i % 4 == 0 ? " " : "arg" + i));
+        }
+    }
+
+    @Benchmark
+    public ScriptConfig create() {
+        return new ScriptConfig("benchmark", "Benchmark", "", "#!/bin/bash -xe\necho $1\n", args);
+    }
+}
@@ -0,0 +1,48 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import hudson.util.ArgumentListBuilder;
+import jenkins.benchmark.jmh.JmhBenchmark;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Parsing of the interpreter line and assembly of the command line, as done by {@link ScriptBuildStep#perform}.
+ */
+@JmhBenchmark
+@State(Scope.Benchmark)
+public class ScriptLaunchPlanBenchmark {
+
+    private static final String BODY = "echo building\nmake -j4 all\nmake test\n";
+
+    private final String shell = "#!/bin/bash -xe\n" + BODY;
+    private final String envPython = "#!/usr/bin/env python3 -u\nprint('building')\n";
+    private final String crlf = "#!/bin/sh\r\n" + BODY.replace("\n", "\r\n");
+
+    private final ScriptLaunchPlan plan = ScriptLaunchPlan.compile(shell);
+    private final String[] buildStepArgs = { "--target", "release", "--jobs", "4", "--verbose" };
+
+    @Benchmark
+    public ScriptLaunchPlan compileShell() {
+        return ScriptLaunchPlan.compile(shell);
+    }
+
+    @Benchmark
+    public ScriptLaunchPlan compileEnvPython() {
+        return ScriptLaunchPlan.compile(envPython);
+    }
+
+    @Benchmark
+    public ScriptLaunchPlan compileCrlf() {
+        return ScriptLaunchPlan.compile(crlf);
+    }
+
+    @Benchmark
+    public ArgumentListBuilder commandLine() {
+        ArgumentListBuilder args = plan.toArgumentList(null, "/home/jenkins/managed-scripts-cache/0123456789abcdef.sh");
+        for (String arg : buildStepArgs) {
+            args.add(arg);
+        }
+        return args;
+    }
+}
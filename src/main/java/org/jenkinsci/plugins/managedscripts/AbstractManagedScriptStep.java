@@ -0,0 +1,262 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.AbortException;
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.ItemGroup;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.slaves.WorkspaceList;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import org.jenkinsci.lib.configprovider.model.Config;
+import org.jenkinsci.plugins.durabletask.Controller;
+import org.jenkinsci.plugins.durabletask.DurableTask;
+import org.jenkinsci.plugins.durabletask.Handler;
+import org.jenkinsci.plugins.workflow.steps.Step;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
+import org.jenkinsci.plugins.workflow.steps.durable_task.DurableTaskStep;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.StaplerRequest;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Base of the Pipeline steps executing a managed script as a durable task.
+ * <p>
+ * Just like the <code>sh</code>, <code>bat</code> and <code>powershell</code> steps, the script keeps running if the controller
+ * restarts and no CPS VM thread is blocked while it runs. The script is served from the {@link ScriptCache} of the node, the
+ * durable task only launches it.
+ */
+public abstract class AbstractManagedScriptStep extends DurableTaskStep {
+
+    private final String id;
+    private List<String> args = Collections.emptyList();
+
+    /**
+     * resolved when the step starts, the step itself is not persisted once the task got launched
+     */
+    private transient Config config;
+
+    /**
+     * the content of the script file, resolved when the step starts
+     */
+    private transient String contents;
+
+    protected AbstractManagedScriptStep(String id) {
+        this.id = id;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public List<String> getArgs() {
+        return Collections.unmodifiableList(args);
+    }
+
+    @DataBoundSetter
+    public void setArgs(List<String> args) {
+        this.args = args == null ? Collections.<String>emptyList() : new ArrayList<String>(args);
+    }
+
+    /**
+     * @return the type of config this step executes
+     */
+    protected abstract Class<? extends Config> getConfigType();
+
+    /**
+     * @return the file extension required by the interpreter
+     */
+    protected abstract String getFileExtension();
+
+    /**
+     * @param group  the item group of the job, the includes of the script get resolved in it
+     * @param config the config to execute
+     * @return the content of the script file, the config content with its includes resolved by default
+     * @throws AbortException if the includes cannot be resolved
+     */
+    protected String getContents(ItemGroup<?> group, Config config) throws AbortException {
+        return ScriptBundles.of(group, config);
+    }
+
+    /**
+     * Creates the durable task launching the script.
+     *
+     * @param config   the config to execute
+     * @param script   the script file on the node
+     * @param args     the arguments to pass to the script
+     * @param launcher the launcher of the node
+     * @return the durable task
+     * @throws AbortException if the arguments cannot be passed to the script
+     */
+    protected abstract DurableTask createTask(Config config, FilePath script, List<String> args, Launcher launcher) throws AbortException;
+
+    @Override
+    public StepExecution start(StepContext context) throws Exception {
+        Run<?, ?> run = context.get(Run.class);
+        Config resolved = ConfigIndex.getByIdOrNull(run, id, getConfigType());
+        if (resolved == null) {
+            throw new AbortException(Messages.config_does_not_exist(id));
+        }
+        this.contents = getContents(run.getParent().getParent(), resolved);
+        this.config = resolved;
+        return super.start(context);
+    }
+
+    @Override
+    protected DurableTask task() {
+        return new ManagedScriptTask(this, config, contents);
+    }
+
+    /**
+     * Provides the script on the node and delegates to the durable task created by the step.
+     */
+    private static final class ManagedScriptTask extends DurableTask {
+        private final AbstractManagedScriptStep step;
+        private final Config config;
+        private final String contents;
+        private boolean captureOutput;
+        private String charset;
+
+        ManagedScriptTask(AbstractManagedScriptStep step, Config config, String contents) {
+            this.step = step;
+            this.config = config;
+            this.contents = contents;
+        }
+
+        @Override
+        public Controller launch(EnvVars env, FilePath workspace, Launcher launcher, TaskListener listener) throws IOException, InterruptedException {
+            listener.getLogger().println("executing script '" + config.name + "'");
+            FilePath script = ScriptCache.provide(workspace, contents, step.getFileExtension(), listener);
+            boolean temporary = script == null;
+            if (temporary) {
+                // no cache on this node, keep the script next to the workspace as the task outlives this call
+                FilePath tmp = WorkspaceList.tempDir(workspace);
+                if (tmp == null) {
+                    throw new AbortException("cannot determine a temporary directory for " + workspace);
+                }
+                tmp.mkdirs();
+                script = tmp.createTextTempFile("build_step_template_", step.getFileExtension(), contents, false);
+            }
+            DurableTask task;
+            try {
+                task = step.createTask(config, script, step.args, launcher);
+            } catch (AbortException e) {
+                if (temporary) {
+                    script.delete();
+                }
+                throw e;
+            }
+            if (captureOutput) {
+                task.captureOutput();
+            }
+            if (charset != null) {
+                task.charset(Charset.forName(charset));
+            } else {
+                task.defaultCharset();
+            }
+            Controller controller = task.launch(env, workspace, launcher, listener);
+            return temporary ? new TemporaryScriptController(controller, script.getRemote()) : controller;
+        }
+
+        @Override
+        public void captureOutput() {
+            captureOutput = true;
+        }
+
+        @Override
+        public void charset(@NonNull Charset cs) {
+            charset = cs.name();
+        }
+
+        @Override
+        public void defaultCharset() {
+            charset = null;
+        }
+    }
+
+    /**
+     * Deletes the temporary script of a node without a script cache once the durable task got cleaned up.
+     */
+    private static final class TemporaryScriptController extends Controller {
+        private static final long serialVersionUID = 1L;
+        private final Controller delegate;
+        private final String script;
+
+        TemporaryScriptController(Controller delegate, String script) {
+            this.delegate = delegate;
+            this.script = script;
+        }
+
+        @Override
+        public void watch(@NonNull FilePath workspace, @NonNull Handler handler, @NonNull TaskListener listener) throws IOException, InterruptedException, ClassCastException {
+            delegate.watch(workspace, handler, listener);
+        }
+
+        @Override
+        public boolean writeLog(FilePath workspace, OutputStream sink) throws IOException, InterruptedException {
+            return delegate.writeLog(workspace, sink);
+        }
+
+        @Override
+        public Integer exitStatus(FilePath workspace, Launcher launcher, TaskListener listener) throws IOException, InterruptedException {
+            return delegate.exitStatus(workspace, launcher, listener);
+        }
+
+        @Override
+        public byte[] getOutput(FilePath workspace, Launcher launcher) throws IOException, InterruptedException {
+            return delegate.getOutput(workspace, launcher);
+        }
+
+        @Override
+        public void stop(FilePath workspace, Launcher launcher) throws IOException, InterruptedException {
+            delegate.stop(workspace, launcher);
+        }
+
+        @Override
+        public void cleanup(FilePath workspace) throws IOException, InterruptedException {
+            try {
+                delegate.cleanup(workspace);
+            } finally {
+                new FilePath(workspace.getChannel(), script).delete();
+            }
+        }
+
+        @Override
+        public String getDiagnostics(FilePath workspace, Launcher launcher) throws IOException, InterruptedException {
+            return delegate.getDiagnostics(workspace, launcher);
+        }
+    }
+
+    /**
+     * Descriptor of the managed script steps, binds the arguments entered in the form of the snippet generator.
+     */
+    public abstract static class ManagedScriptStepDescriptor extends DurableTaskStepDescriptor {
+
+        @Override
+        public Step newInstance(@CheckForNull StaplerRequest req, @NonNull JSONObject formData) throws FormException {
+            // the repeatable arguments are submitted as {"arg": "..."} objects
+            Object submitted = formData.opt("args");
+            JSONArray values = new JSONArray();
+            if (submitted instanceof JSONObject) {
+                values.add(((JSONObject) submitted).optString("arg"));
+            } else if (submitted instanceof JSONArray) {
+                for (Object arg : (JSONArray) submitted) {
+                    values.add(arg instanceof JSONObject ? ((JSONObject) arg).optString("arg") : String.valueOf(arg));
+                }
+            }
+            formData.put("args", values);
+            return super.newInstance(req, formData);
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.EnvVars;
+import hudson.model.AbstractBuild;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import org.jenkinsci.plugins.tokenmacro.MacroEvaluationException;
+import org.jenkinsci.plugins.tokenmacro.TokenMacro;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Expands the {@link TokenMacro}s within the arguments of a managed script build step.
+ * <p>
+ * The arguments are classified once: literal arguments (without any <code>$</code>) are passed as they are, only templated
+ * arguments get expanded. Arguments only referencing variables of the environment (<code>$NAME</code> or <code>${NAME}</code>)
+ * have the same value in every step of a build as long as the environment does not change, their values are shared by all managed
+ * script build steps of the build. All other arguments, e.g. <code>${BUILD_STATUS}</code> or <code>${FILE,path="..."}</code>,
+ * are expanded again by every step.
+ */
+public final class ArgumentExpander {
+
+    private static final String[] NO_ARGS = new String[0];
+
+    private static final Pattern VARIABLE = Pattern.compile("\\$(?:\\{([A-Za-z_][A-Za-z0-9_.]*)\\}|([A-Za-z_][A-Za-z0-9_]*))");
+
+    /**
+     * expanded values by build, only weakly referenced to not keep finished builds in memory
+     */
+    private static final Map<Run<?, ?>, BuildValues> VALUES = Collections.synchronizedMap(new WeakHashMap<Run<?, ?>, BuildValues>());
+
+    private final String[] args;
+    private final boolean[] templated;
+    /**
+     * the variables referenced by every templated argument, <code>null</code> if it references anything but variables
+     */
+    private final List<String>[] variables;
+    private final boolean literal;
+
+    /**
+     * @param args the arguments as configured within the build step
+     */
+    @SuppressWarnings("unchecked")
+    public ArgumentExpander(@CheckForNull String[] args) {
+        this.args = args == null ? NO_ARGS : args.clone();
+        this.templated = new boolean[this.args.length];
+        this.variables = new List[this.args.length];
+        boolean anyTemplated = false;
+        for (int i = 0; i < this.args.length; i++) {
+            templated[i] = this.args[i] != null && this.args[i].indexOf('$') >= 0;
+            if (templated[i]) {
+                variables[i] = variablesOf(this.args[i]);
+            }
+            anyTemplated |= templated[i];
+        }
+        this.literal = !anyTemplated;
+    }
+
+    /**
+     * @return whether none of the arguments contains a macro
+     */
+    public boolean isLiteral() {
+        return literal;
+    }
+
+    /**
+     * Expands the arguments for the given build.
+     *
+     * @param build    the build to expand the arguments for
+     * @param listener the listener of the build
+     * @param env      the environment the script is executed with
+     * @return the expanded arguments
+     */
+    @NonNull
+    public String[] expand(@NonNull AbstractBuild<?, ?> build, @NonNull TaskListener listener, @NonNull EnvVars env)
+            throws MacroEvaluationException, IOException, InterruptedException {
+        if (literal) {
+            return args.clone();
+        }
+        ConcurrentMap<String, String> values = valuesOf(build, env);
+        String[] expanded = new String[args.length];
+        for (int i = 0; i < args.length; i++) {
+            if (!templated[i]) {
+                expanded[i] = args[i];
+                continue;
+            }
+            boolean shared = isEnvironmentOnly(variables[i], env);
+            String value = shared ? values.get(args[i]) : null;
+            if (value == null) {
+                value = TokenMacro.expandAll(build, listener, args[i], false, null);
+                if (shared) {
+                    values.put(args[i], value);
+                }
+            }
+            expanded[i] = value;
+        }
+        return expanded;
+    }
+
+    /**
+     * @return the names of the variables referenced by the given argument, <code>null</code> if any <code>$</code> of it does not
+     * start a plain variable reference
+     */
+    @CheckForNull
+    private static List<String> variablesOf(String arg) {
+        List<String> names = new ArrayList<String>();
+        Matcher m = VARIABLE.matcher(arg);
+        for (int i = arg.indexOf('$'); i >= 0; i = arg.indexOf('$', m.end())) {
+            if (!m.find(i) || m.start() != i) {
+                return null;
+            }
+            names.add(m.group(1) != null ? m.group(1) : m.group(2));
+        }
+        return names;
+    }
+
+    /**
+     * @return whether all the given variables are defined by the environment and not shadowed by a token macro of the same name
+     */
+    private static boolean isEnvironmentOnly(@CheckForNull List<String> names, EnvVars env) {
+        if (names == null || !env.keySet().containsAll(names)) {
+            return false;
+        }
+        for (TokenMacro macro : TokenMacro.all()) {
+            for (String name : names) {
+                if (macro.acceptsMacroName(name)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static ConcurrentMap<String, String> valuesOf(AbstractBuild<?, ?> build, EnvVars env) {
+        synchronized (VALUES) {
+            BuildValues values = VALUES.get(build);
+            if (values == null || !values.env.equals(env)) {
+                // a previous step changed the environment, the values expanded so far might be outdated
+                values = new BuildValues(env);
+                VALUES.put(build, values);
+            }
+            return values.values;
+        }
+    }
+
+    private static final class BuildValues {
+        private final EnvVars env;
+        private final ConcurrentMap<String, String> values = new ConcurrentHashMap<String, String>();
+
+        private BuildValues(EnvVars env) {
+            this.env = new EnvVars(env);
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.Proc;
+import hudson.console.LineTransformationOutputStream;
+import hudson.model.TaskListener;
+import hudson.util.ArgumentListBuilder;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Executes one script with several argument sets concurrently, used by the {@link ScriptBuildStep} fan-out mode.
+ * <p>
+ * The processes run on the execution host, on the controller only one thread per running process waits for it to finish.
+ * Every output line is prefixed with its argument set, at the end a summary of the exit codes is printed.
+ */
+final class ArgumentMatrix {
+
+    private ArgumentMatrix() {
+    }
+
+    /**
+     * Executes the given command lines with bounded parallelism.
+     *
+     * @param launcher    the launcher of the execution host
+     * @param commands    the command lines, one per argument set
+     * @param env         the environment to execute the commands with
+     * @param pwd         the working directory
+     * @param parallelism the maximum number of commands executed at the same time
+     * @param listener    the listener to write the output to
+     * @param limit       the limit to apply to the output of all sets, if any
+     * @param timeout     the time in seconds each command may run, 0 for no timeout
+     * @param cookie      the environment variables identifying the processes of the build
+     * @return whether all commands succeeded
+     */
+    static boolean run(final Launcher launcher, List<ArgumentListBuilder> commands, final EnvVars env, final FilePath pwd, int parallelism, final TaskListener listener,
+            @CheckForNull OutputLimit limit, final int timeout, final Map<String, String> cookie) throws InterruptedException, IOException {
+        final PrintStream logger = listener.getLogger();
+        final OutputStream output = limit != null ? limit.limit(logger) : logger;
+        int threads = Math.max(1, Math.min(parallelism, commands.size()));
+        logger.println("executing " + commands.size() + " argument sets, " + threads + " at a time");
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads, new NamingThreadFactory(new DaemonThreadFactory(), "ScriptBuildStep argument sets"));
+        try {
+            List<Future<Integer>> results = new ArrayList<Future<Integer>>(commands.size());
+            for (int i = 0; i < commands.size(); i++) {
+                final ArgumentListBuilder cmd = commands.get(i);
+                final String prefix = "[set " + (i + 1) + "] ";
+                results.add(pool.submit(new Callable<Integer>() {
+                    public Integer call() throws Exception {
+                        try (PrefixedOutputStream out = new PrefixedOutputStream(output, prefix)) {
+                            Proc proc = launcher.launch().cmds(cmd).envs(env).stdout(out).stderr(out).pwd(pwd).start();
+                            return ScriptTimeout.join(proc, timeout, launcher.getChannel(), cookie, listener);
+                        }
+                    }
+                }));
+            }
+
+            boolean success = true;
+            int[] exitCodes = new int[results.size()];
+            String[] failures = new String[results.size()];
+            for (int i = 0; i < results.size(); i++) {
+                try {
+                    exitCodes[i] = results.get(i).get();
+                    success &= exitCodes[i] == 0;
+                } catch (ExecutionException e) {
+                    failures[i] = String.valueOf(e.getCause());
+                    success = false;
+                }
+            }
+            if (output != logger) {
+                // writes what was held back before the summary
+                output.close();
+            }
+            StringBuilder summary = new StringBuilder("argument set summary:");
+            for (int i = 0; i < results.size(); i++) {
+                summary.append("\n  set ").append(i + 1).append(": ");
+                if (failures[i] == null) {
+                    summary.append("exit code ").append(exitCodes[i]);
+                } else {
+                    summary.append("failed: ").append(failures[i]);
+                }
+            }
+            logger.println(summary);
+            return success;
+        } finally {
+            // interrupts the remaining processes if the build got aborted
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Prefixes every line with the argument set, lines of concurrent sets are never interleaved.
+     */
+    private static final class PrefixedOutputStream extends LineTransformationOutputStream {
+        private final OutputStream out;
+        private final byte[] prefix;
+
+        PrefixedOutputStream(OutputStream out, String prefix) {
+            this.out = out;
+            this.prefix = prefix.getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        protected void eol(byte[] b, int len) throws IOException {
+            synchronized (out) {
+                out.write(prefix);
+                out.write(b, 0, len);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            // flushes an incomplete last line, the log itself stays open
+            forceEol();
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.Item;
+import hudson.model.ItemGroup;
+import hudson.model.Run;
+import hudson.model.Saveable;
+import hudson.model.listeners.ItemListener;
+import hudson.model.listeners.SaveableListener;
+import org.jenkinsci.lib.configprovider.ConfigProvider;
+import org.jenkinsci.lib.configprovider.model.Config;
+import org.jenkinsci.plugins.configfiles.ConfigFiles;
+import org.jenkinsci.plugins.configfiles.GlobalConfigFiles;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Index of the managed configs resolved so far, by the item group they are resolved in and their id.
+ * <p>
+ * {@link ConfigFiles#getByIdOrNull(ItemGroup, String)} walks up the folder hierarchy on every call, the index only does this on
+ * the first lookup within a scope. Entries are invalidated as soon as a config store changes: the whole index if the global
+ * store or a provider is saved, the folder and all scopes below it if a folder (and therefore its config store) is saved.
+ */
+public final class ConfigIndex {
+
+    private static final Logger LOGGER = Logger.getLogger(ConfigIndex.class.getName());
+
+    /**
+     * full name of the item group ("" for the root) to the configs resolved within it by id
+     */
+    private static final ConcurrentMap<String, ConcurrentMap<String, Config>> SCOPES = new ConcurrentHashMap<String, ConcurrentMap<String, Config>>();
+
+    private ConfigIndex() {
+    }
+
+    /**
+     * Resolves a config for the given build.
+     *
+     * @param build    the build to resolve the config for
+     * @param configId the id of the config
+     * @param type     the expected type of the config
+     * @return the config or <code>null</code> if it does not exist or is not of the expected type
+     */
+    @CheckForNull
+    public static <T extends Config> T getByIdOrNull(@NonNull Run<?, ?> build, @CheckForNull String configId, @NonNull Class<T> type) {
+        return getByIdOrNull(build.getParent(), configId, type);
+    }
+
+    /**
+     * Resolves a config for the given item.
+     *
+     * @param item     the item to resolve the config for
+     * @param configId the id of the config
+     * @param type     the expected type of the config
+     * @return the config or <code>null</code> if it does not exist or is not of the expected type
+     */
+    @CheckForNull
+    public static <T extends Config> T getByIdOrNull(@CheckForNull Item item, @CheckForNull String configId, @NonNull Class<T> type) {
+        if (item instanceof ItemGroup) {
+            return getByIdOrNull((ItemGroup<?>) item, configId, type);
+        }
+        return getByIdOrNull(item != null ? item.getParent() : null, configId, type);
+    }
+
+    /**
+     * Resolves a config within the given item group.
+     *
+     * @param group    the item group to resolve the config in, <code>null</code> for the global configs only
+     * @param configId the id of the config
+     * @param type     the expected type of the config
+     * @return the config or <code>null</code> if it does not exist or is not of the expected type
+     */
+    @CheckForNull
+    public static <T extends Config> T getByIdOrNull(@CheckForNull ItemGroup<?> group, @CheckForNull String configId, @NonNull Class<T> type) {
+        if (configId == null || configId.isEmpty()) {
+            return null;
+        }
+        // the root does not have a config store of its own, so resolving without a group is the same as resolving in the root
+        ConcurrentMap<String, Config> scope = scope(group != null ? group.getFullName() : "");
+        Config config = scope.get(configId);
+        if (config == null) {
+            config = ConfigFiles.getByIdOrNull(group, configId);
+            if (config == null) {
+                return null;
+            }
+            scope.put(configId, config);
+        }
+        return type.isInstance(config) ? type.cast(config) : null;
+    }
+
+    private static ConcurrentMap<String, Config> scope(String fullName) {
+        ConcurrentMap<String, Config> scope = SCOPES.get(fullName);
+        if (scope == null) {
+            ConcurrentMap<String, Config> created = new ConcurrentHashMap<String, Config>();
+            scope = SCOPES.putIfAbsent(fullName, created);
+            if (scope == null) {
+                scope = created;
+            }
+        }
+        return scope;
+    }
+
+    /**
+     * Drops all resolved configs, together with the {@link ScriptBundles}, and outdates the {@link ConfigNameIndex}.
+     */
+    public static void invalidateAll() {
+        SCOPES.clear();
+        ConfigNameIndex.invalidateAll();
+        ScriptBundles.invalidateAll();
+        ScriptBlobStore.outdateReport();
+    }
+
+    /**
+     * Drops the configs resolved within the given item group and all item groups below it, together with the {@link ScriptBundles},
+     * and outdates the {@link ConfigNameIndex} of these item groups.
+     *
+     * @param fullName the full name of the item group
+     */
+    public static void invalidate(@NonNull String fullName) {
+        String prefix = fullName + "/";
+        for (Iterator<String> it = SCOPES.keySet().iterator(); it.hasNext();) {
+            String scope = it.next();
+            if (scope.equals(fullName) || scope.startsWith(prefix)) {
+                it.remove();
+            }
+        }
+        ConfigNameIndex.invalidate(fullName);
+        ScriptBundles.invalidate(fullName);
+        ScriptBlobStore.outdateReport();
+    }
+
+    /**
+     * Invalidates the index whenever a config store gets persisted and lets the {@link ScriptDistributor} push the changed scripts.
+     */
+    @Extension
+    public static final class SaveListener extends SaveableListener {
+        @Override
+        public void onChange(Saveable o, XmlFile file) {
+            if (o instanceof GlobalConfigFiles || o instanceof ConfigProvider) {
+                LOGGER.log(Level.FINE, "global config store changed, invalidating all resolved configs");
+                invalidateAll();
+                ScriptDistributor.refreshLater();
+            } else if (o instanceof ItemGroup && o instanceof Item) {
+                invalidate(((Item) o).getFullName());
+                ScriptDistributor.refreshLater();
+            }
+        }
+    }
+
+    /**
+     * Invalidates the index if a folder gets moved, renamed or deleted.
+     */
+    @Extension
+    public static final class ItemChangeListener extends ItemListener {
+        @Override
+        public void onLocationChanged(Item item, String oldFullName, String newFullName) {
+            if (item instanceof ItemGroup) {
+                invalidate(oldFullName);
+                invalidate(newFullName);
+                ConfigNameIndex.drop(oldFullName);
+            }
+        }
+
+        @Override
+        public void onDeleted(Item item) {
+            if (item instanceof ItemGroup) {
+                invalidate(item.getFullName());
+                ConfigNameIndex.drop(item.getFullName());
+            }
+        }
+    }
+}
@@ -0,0 +1,366 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.model.Descriptor;
+import hudson.model.Item;
+import hudson.model.ItemGroup;
+import hudson.security.AccessControlled;
+import hudson.util.ListBoxModel;
+import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import org.jenkinsci.lib.configprovider.ConfigProvider;
+import org.jenkinsci.lib.configprovider.model.Config;
+import org.jenkinsci.plugins.configfiles.ConfigFiles;
+import org.kohsuke.stapler.StaplerResponse;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Index of the names of the configs available within an item group, sorted by name to support paged prefix searches.
+ * <p>
+ * The index of a scope is built on first use and outdated together with the {@link ConfigIndex} whenever a config store
+ * changes, so the script pickers of the build steps neither fetch nor sort all configs on every page load. An outdated index is
+ * updated on its next use: the configs added, renamed or removed since are applied to a copy of the sorted names, the others
+ * are neither sorted again nor copied one by one.
+ */
+public final class ConfigNameIndex {
+
+    /**
+     * maximum number of configs returned to a script picker at once
+     */
+    static int PAGE_SIZE = SystemProperties.getInteger(ConfigNameIndex.class.getName() + ".pageSize", 100);
+
+    /**
+     * maximum number of changes applied to the sorted names one by one, more changes sort all names again
+     */
+    private static final int MAX_CHANGES = 32;
+
+    private static final Comparator<Entry> BY_NAME = new Comparator<Entry>() {
+        public int compare(Entry o1, Entry o2) {
+            int c = o1.key.compareTo(o2.key);
+            if (c == 0) {
+                c = o1.name.compareTo(o2.name);
+            }
+            return c != 0 ? c : o1.id.compareTo(o2.id);
+        }
+    };
+
+    /**
+     * incremented whenever a config store changes, an index updated meanwhile might miss the change
+     */
+    private static final AtomicLong GENERATION = new AtomicLong();
+
+    /**
+     * full name of the item group ("" for the root) to the names by provider class
+     */
+    private static final ConcurrentMap<String, ConcurrentMap<String, Names>> SCOPES = new ConcurrentHashMap<String, ConcurrentMap<String, Names>>();
+
+    private ConfigNameIndex() {
+    }
+
+    /**
+     * Creates the items of a script picker: the first page of the configs, plus the selected config if it is not on that page.
+     * Users allowed neither to configure nor to read the configuration of the item only get the placeholder.
+     *
+     * @param item       the item being configured, <code>null</code> outside of an item
+     * @param context    the item group to list the configs of
+     * @param provider   the provider of the configs
+     * @param selectedId the id of the currently selected config
+     * @return the items
+     */
+    @NonNull
+    public static ListBoxModel fillItems(@CheckForNull Item item, @CheckForNull ItemGroup<?> context, @NonNull Class<? extends ConfigProvider> provider,
+            @CheckForNull String selectedId) {
+        ListBoxModel items = new ListBoxModel();
+        items.add("please select", "");
+        if (!getAccessControlled(item, context).hasAnyPermission(Item.CONFIGURE, Item.EXTENDED_READ)) {
+            return items;
+        }
+        Names names = get(context, provider);
+        boolean selectedListed = false;
+        int end = Math.min(names.entries.length, PAGE_SIZE);
+        for (int i = 0; i < end; i++) {
+            Entry entry = names.entries[i];
+            boolean selected = entry.id.equals(selectedId);
+            selectedListed |= selected;
+            items.add(new ListBoxModel.Option(entry.name, entry.id, selected));
+        }
+        if (!selectedListed && selectedId != null) {
+            Entry entry = names.byId.get(selectedId);
+            if (entry != null) {
+                items.add(new ListBoxModel.Option(entry.name, entry.id, true));
+            }
+        }
+        return items;
+    }
+
+    /**
+     * Writes a page of the configs whose name starts with the given query (ignoring case) as JSON
+     * (<code>{"total": 42, "values": [{"name": "...", "value": "..."}]}</code>).
+     * Requires the permission to configure or to read the configuration of the item.
+     *
+     * @param item     the item being configured, <code>null</code> outside of an item
+     * @param context  the item group to search the configs in
+     * @param provider the provider of the configs
+     * @param query    the prefix of the names to search for
+     * @param offset   the index of the first match to return
+     * @param rsp      the response to write to
+     */
+    public static void search(@CheckForNull Item item, @CheckForNull ItemGroup<?> context, @NonNull Class<? extends ConfigProvider> provider,
+            @CheckForNull String query, int offset, @NonNull StaplerResponse rsp) throws IOException {
+        getAccessControlled(item, context).checkAnyPermission(Item.CONFIGURE, Item.EXTENDED_READ);
+        JSONObject result = page(context, provider, query, offset);
+        rsp.setContentType("application/json;charset=UTF-8");
+        rsp.getWriter().write(result.toString());
+    }
+
+    /**
+     * @return a page of the configs whose name starts with the given query, see {@link #search}
+     */
+    @NonNull
+    static JSONObject page(@CheckForNull ItemGroup<?> context, @NonNull Class<? extends ConfigProvider> provider, @CheckForNull String query, int offset) {
+        Names names = get(context, provider);
+        String prefix = query == null ? "" : query.trim().toLowerCase(Locale.ENGLISH);
+        int from = names.lowerBound(prefix);
+        int to = names.lowerBound(prefix + Character.MAX_VALUE);
+        int start = Math.min(from + Math.max(offset, 0), to);
+        int end = Math.min(start + PAGE_SIZE, to);
+
+        JSONArray values = new JSONArray();
+        for (int i = start; i < end; i++) {
+            Entry entry = names.entries[i];
+            JSONObject value = new JSONObject();
+            value.put("name", entry.name);
+            value.put("value", entry.id);
+            values.add(value);
+        }
+        JSONObject result = new JSONObject();
+        result.put("total", to - from);
+        result.put("values", values);
+        return result;
+    }
+
+    /**
+     * Gets the URL of the search endpoint of the given build step descriptor, relative to the current request just like the URLs
+     * used to fill the select boxes.
+     *
+     * @param descriptor the descriptor of the build step
+     * @return the URL
+     */
+    @NonNull
+    public static String getSearchUrl(@NonNull Descriptor<?> descriptor) {
+        return Descriptor.getCurrentDescriptorByNameUrl() + "/" + descriptor.getDescriptorUrl() + "/searchBuildStepIds";
+    }
+
+    /**
+     * @return the object the permissions of a script picker are checked on: the configured item, else its item group
+     */
+    @NonNull
+    private static AccessControlled getAccessControlled(@CheckForNull Item item, @CheckForNull ItemGroup<?> context) {
+        if (item != null) {
+            return item;
+        }
+        return context instanceof AccessControlled ? (AccessControlled) context : Jenkins.get();
+    }
+
+    private static Names get(@CheckForNull ItemGroup<?> context, @NonNull Class<? extends ConfigProvider> provider) {
+        String fullName = context != null ? context.getFullName() : "";
+        ConcurrentMap<String, Names> scope = SCOPES.get(fullName);
+        if (scope == null) {
+            ConcurrentMap<String, Names> created = new ConcurrentHashMap<String, Names>();
+            scope = SCOPES.putIfAbsent(fullName, created);
+            if (scope == null) {
+                scope = created;
+            }
+        }
+        String key = provider.getName();
+        Names names = scope.get(key);
+        if (names == null || names.outdated) {
+            long generation = GENERATION.get();
+            List<Config> configs = ConfigFiles.getConfigsInContext(context, provider);
+            Names updated = names == null ? new Names(configs) : names.update(configs);
+            if (names == null ? scope.putIfAbsent(key, updated) == null : scope.replace(key, names, updated)) {
+                if (GENERATION.get() != generation) {
+                    // a config store changed while the configs got listed
+                    updated.outdated = true;
+                }
+            }
+            names = updated;
+        }
+        return names;
+    }
+
+    /**
+     * Outdates all indexed names.
+     */
+    static void invalidateAll() {
+        GENERATION.incrementAndGet();
+        for (ConcurrentMap<String, Names> scope : SCOPES.values()) {
+            outdate(scope);
+        }
+    }
+
+    /**
+     * Outdates the names indexed for the given item group and all item groups below it.
+     *
+     * @param fullName the full name of the item group
+     */
+    static void invalidate(@NonNull String fullName) {
+        GENERATION.incrementAndGet();
+        String prefix = fullName + "/";
+        for (Map.Entry<String, ConcurrentMap<String, Names>> scope : SCOPES.entrySet()) {
+            if (scope.getKey().equals(fullName) || scope.getKey().startsWith(prefix)) {
+                outdate(scope.getValue());
+            }
+        }
+    }
+
+    /**
+     * Drops the names indexed for the given item group and all item groups below it, called once it got moved or deleted.
+     *
+     * @param fullName the full name of the item group
+     */
+    static void drop(@NonNull String fullName) {
+        GENERATION.incrementAndGet();
+        String prefix = fullName + "/";
+        for (Iterator<String> it = SCOPES.keySet().iterator(); it.hasNext();) {
+            String scope = it.next();
+            if (scope.equals(fullName) || scope.startsWith(prefix)) {
+                it.remove();
+            }
+        }
+    }
+
+    private static void outdate(ConcurrentMap<String, Names> scope) {
+        for (Names names : scope.values()) {
+            names.outdated = true;
+        }
+    }
+
+    private static final class Entry {
+        private final String key;
+        private final String name;
+        private final String id;
+
+        private Entry(Config config) {
+            this.name = nameOf(config);
+            this.key = name.toLowerCase(Locale.ENGLISH);
+            this.id = config.id;
+        }
+
+        private static String nameOf(Config config) {
+            return config.name == null ? "" : config.name;
+        }
+    }
+
+    /**
+     * The immutable, sorted names of one provider within one scope.
+     */
+    private static final class Names {
+        private final Entry[] entries;
+        private final Map<String, Entry> byId;
+        /**
+         * whether a config store changed since the names got listed
+         */
+        private volatile boolean outdated;
+
+        private Names(List<Config> configs) {
+            Entry[] sorted = new Entry[configs.size()];
+            Map<String, Entry> ids = new HashMap<String, Entry>();
+            for (int i = 0; i < sorted.length; i++) {
+                sorted[i] = new Entry(configs.get(i));
+                ids.put(sorted[i].id, sorted[i]);
+            }
+            Arrays.sort(sorted, BY_NAME);
+            this.entries = sorted;
+            this.byId = ids;
+        }
+
+        private Names(Entry[] entries, Map<String, Entry> byId) {
+            this.entries = entries;
+            this.byId = byId;
+        }
+
+        /**
+         * Applies the configs added, renamed or removed since these names got listed to a copy of them.
+         *
+         * @param configs the current configs
+         * @return the updated names
+         */
+        private Names update(List<Config> configs) {
+            if (entries.length != byId.size()) {
+                return new Names(configs);
+            }
+            Map<String, Entry> ids = new HashMap<String, Entry>();
+            List<Entry> added = new ArrayList<Entry>();
+            for (Config config : configs) {
+                Entry entry = byId.get(config.id);
+                if (entry == null || !entry.name.equals(Entry.nameOf(config))) {
+                    entry = new Entry(config);
+                    added.add(entry);
+                }
+                if (ids.put(entry.id, entry) != null) {
+                    // the same id in several config stores, listed as often as found
+                    return new Names(configs);
+                }
+            }
+            List<Entry> removed = new ArrayList<Entry>();
+            for (Entry entry : entries) {
+                if (ids.get(entry.id) != entry) {
+                    removed.add(entry);
+                }
+            }
+            if (added.size() + removed.size() > MAX_CHANGES) {
+                return new Names(configs);
+            }
+            Entry[] sorted = entries;
+            for (Entry entry : removed) {
+                int i = Arrays.binarySearch(sorted, entry, BY_NAME);
+                Entry[] copy = new Entry[sorted.length - 1];
+                System.arraycopy(sorted, 0, copy, 0, i);
+                System.arraycopy(sorted, i + 1, copy, i, copy.length - i);
+                sorted = copy;
+            }
+            for (Entry entry : added) {
+                int i = -Arrays.binarySearch(sorted, entry, BY_NAME) - 1;
+                Entry[] copy = new Entry[sorted.length + 1];
+                System.arraycopy(sorted, 0, copy, 0, i);
+                copy[i] = entry;
+                System.arraycopy(sorted, i, copy, i + 1, sorted.length - i);
+                sorted = copy;
+            }
+            return new Names(sorted, ids);
+        }
+
+        /**
+         * @return the index of the first entry whose key is not less than the given key
+         */
+        private int lowerBound(String key) {
+            int low = 0;
+            int high = entries.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (entries[mid].key.compareTo(key) < 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+}
@@ -0,0 +1,710 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.TaskListener;
+import hudson.remoting.RemoteOutputStream;
+import hudson.remoting.VirtualChannel;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import hudson.util.ProcessTree;
+import jenkins.security.MasterToSlaveCallable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Executes managed scripts in warm interpreter workers instead of starting a new interpreter for every execution.
+ * <p>
+ * Every execution host keeps a small pool of started interpreters per interpreter line. A worker runs a bootstrap program which
+ * reads one job per line from its stdin and forks a child per job, the child switches to the environment, working directory
+ * and arguments of the job and runs the script as <code>__main__</code>. The interpreter itself never runs any script code, so
+ * nothing leaks from one execution into the next. Workers are replaced after a number of executions and as soon as they fail
+ * or get killed.
+ * <p>
+ * Only Python is supported, it is the only common script interpreter able to fork after startup. Other interpreters,
+ * Windows hosts and builds with a decorated launcher are launched as usual. Idle workers are killed after 30 minutes.
+ * <p>
+ * PowerShell scripts opted into {@link PowerShellHost}s are executed the same way by long-lived PowerShell hosts, on Windows
+ * and Unix. PowerShell can't fork, so the host runs every script in a fresh runspace instead, after switching its own
+ * environment and working directory to the ones of the job. The exit code is the <code>$LASTEXITCODE</code> the script
+ * exits with, or 1 if it fails with a terminating error.
+ */
+final class InterpreterPool {
+
+    private static final Logger LOGGER = Logger.getLogger(InterpreterPool.class.getName());
+
+    private static final Pattern PYTHON = Pattern.compile("python[0-9.]*");
+
+    /**
+     * idle workers older than this are discarded instead of being used, and killed by the {@link Reaper}
+     */
+    static long MAX_IDLE_NANOS = TimeUnit.MINUTES.toNanos(30);
+
+    /**
+     * reads one job (a JSON object) per line, forks a child per job and reports its exit code after the job marker
+     */
+    static final String BOOTSTRAP = String.join("\n",
+            "import json, os, runpy, sys, traceback",
+            "sys.stdout.write('ready\\n')",
+            "sys.stdout.flush()",
+            "while True:",
+            "    line = sys.stdin.readline()",
+            "    if not line:",
+            "        break",
+            "    job = json.loads(line)",
+            "    pid = os.fork()",
+            "    if pid == 0:",
+            "        code = 0",
+            "        try:",
+            "            os.dup2(os.open(os.devnull, os.O_RDONLY), 0)",
+            "            sys.stdin = open(os.devnull)",
+            "            os.chdir(job['pwd'])",
+            "            os.environ.clear()",
+            "            os.environ.update(job['env'])",
+            "            sys.argv = [job['script']] + job['args']",
+            "            sys.path[0] = os.path.dirname(job['script'])",
+            "            runpy.run_path(job['script'], run_name='__main__')",
+            "        except SystemExit as e:",
+            "            if e.code is None:",
+            "                code = 0",
+            "            elif isinstance(e.code, int):",
+            "                code = e.code & 0xff",
+            "            else:",
+            "                sys.stderr.write('%s\\n' % e.code)",
+            "                code = 1",
+            "        except BaseException:",
+            "            traceback.print_exc()",
+            "            code = 1",
+            "        sys.stdout.flush()",
+            "        sys.stderr.flush()",
+            "        os._exit(code)",
+            "    status = os.waitpid(pid, 0)[1]",
+            "    code = os.WEXITSTATUS(status) if os.WIFEXITED(status) else 128 + os.WTERMSIG(status)",
+            "    sys.stdout.write('%s %d\\n' % (job['marker'], code))",
+            "    sys.stdout.flush()",
+            "");
+
+    /**
+     * reads one job (a JSON object) per line, runs its script in a fresh runspace and reports the exit code after the job marker
+     */
+    static final String POWERSHELL_BOOTSTRAP = String.join("\n",
+            "$ErrorActionPreference = 'Stop'",
+            "try { [Console]::OutputEncoding = New-Object Text.UTF8Encoding $false } catch { }",
+            "$iss = [Management.Automation.Runspaces.InitialSessionState]::CreateDefault()",
+            "if ($iss.PSObject.Properties['ExecutionPolicy']) { $iss.ExecutionPolicy = 'Bypass' }",
+            "[Console]::Out.WriteLine('ready')",
+            "while ($true) {",
+            "    $line = [Console]::In.ReadLine()",
+            "    if ($null -eq $line) { break }",
+            "    $job = $line | ConvertFrom-Json",
+            "    $names = @{}",
+            "    foreach ($p in $job.env.PSObject.Properties) { $names[$p.Name] = $true; [Environment]::SetEnvironmentVariable($p.Name, [string]$p.Value) }",
+            "    foreach ($k in @([Environment]::GetEnvironmentVariables().Keys)) { if (-not $names.ContainsKey($k)) { [Environment]::SetEnvironmentVariable($k, $null) } }",
+            "    [Environment]::CurrentDirectory = $job.pwd",
+            "    $code = 0",
+            "    $rs = [runspacefactory]::CreateRunspace($iss)",
+            "    $ps = [powershell]::Create()",
+            "    try {",
+            "        $rs.Open()",
+            "        $ps.Runspace = $rs",
+            "        $null = $rs.SessionStateProxy.Path.SetLocation([Management.Automation.WildcardPattern]::Escape($job.pwd))",
+            "        $null = $ps.AddScript('param($s, $a) & $s @a *>&1 | Out-String -Stream -Width 4096; $global:__exitCode = $LASTEXITCODE').AddArgument($job.script).AddArgument([string[]]$job.args)",
+            "        $in = New-Object 'System.Management.Automation.PSDataCollection[psobject]'",
+            "        $in.Complete()",
+            "        $out = New-Object 'System.Management.Automation.PSDataCollection[psobject]'",
+            "        $h = $ps.BeginInvoke($in, $out)",
+            "        $i = 0",
+            "        while (-not $h.IsCompleted -or $i -lt $out.Count) {",
+            "            while ($i -lt $out.Count) { [Console]::Out.WriteLine([string]$out[$i]); $i++ }",
+            "            if (-not $h.IsCompleted) { $null = $h.AsyncWaitHandle.WaitOne(20) }",
+            "        }",
+            "        $null = $ps.EndInvoke($h)",
+            "        $exit = $rs.SessionStateProxy.GetVariable('__exitCode')",
+            "        if ($null -ne $exit) { $code = [int]$exit }",
+            "    } catch {",
+            "        $e = $_.Exception",
+            "        if ($e.InnerException) { $e = $e.InnerException }",
+            "        [Console]::Out.WriteLine($e.Message)",
+            "        $code = 1",
+            "    } finally {",
+            "        $ps.Dispose()",
+            "        $rs.Dispose()",
+            "    }",
+            "    [Console]::Out.WriteLine($job.marker + ' ' + $code)",
+            "}",
+            "");
+
+    /**
+     * the pools of this execution host by command line
+     */
+    private static final ConcurrentMap<List<String>, Pool> POOLS = new ConcurrentHashMap<List<String>, Pool>();
+
+    /**
+     * the workers currently executing a script on this execution host by job marker
+     */
+    private static final ConcurrentMap<String, Worker> RUNNING = new ConcurrentHashMap<String, Worker>();
+
+    private static final ExecutorService STARTER = Executors.newCachedThreadPool(new NamingThreadFactory(new DaemonThreadFactory(), "managed script interpreter workers"));
+
+    private InterpreterPool() {
+    }
+
+    /**
+     * The workers are started by the execution host itself, past the launcher of the build. So just like for the
+     * {@link RemoteScriptRunner}, only builds using the plain launcher of the node can use them: a decorated launcher (e.g.
+     * running the processes within a container or with a modified environment) must start every process itself.
+     *
+     * @param launcher the launcher of the build
+     * @return whether scripts launched by this launcher can be executed by warm workers or hosts
+     */
+    static boolean supports(@NonNull Launcher launcher) {
+        return launcher.getClass() == Launcher.RemoteLauncher.class || launcher.getClass() == Launcher.LocalLauncher.class;
+    }
+
+    /**
+     * @param launcher the launcher of the build
+     * @param plan     the launch plan of the script
+     * @return whether the script can be executed by a warm worker
+     */
+    static boolean supports(@NonNull Launcher launcher, @NonNull ScriptLaunchPlan plan) {
+        if (!supports(launcher) || !launcher.isUnix() || plan.isDefaultShell()) {
+            return false;
+        }
+        String[] interpreter = plan.getInterpreter();
+        String executable = basename(interpreter[0]);
+        if (executable.equals("env") && interpreter.length > 1) {
+            executable = basename(interpreter[1]);
+        }
+        return PYTHON.matcher(executable).matches();
+    }
+
+    private static String basename(String path) {
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+
+    /**
+     * Executes a script in a warm worker of the execution host, a new worker is started if none is available.
+     *
+     * @param id       the config id the launch gets recorded for in the {@link ScriptMetrics}
+     * @param pwd      the working directory, also determines the execution host
+     * @param plan     the launch plan of the script
+     * @param warm     the pool settings
+     * @param script   the path of the script on the execution host
+     * @param args     the arguments of the script
+     * @param env      the environment of the script, applied on top of the environment of the execution host
+     * @param out      the stream to write stdout and stderr of the script to
+     * @param timeout  the time in seconds the script may run, 0 for no timeout
+     * @param listener the listener of the build
+     * @return the exit code of the script
+     */
+    static int run(@CheckForNull String id, @NonNull FilePath pwd, @NonNull ScriptLaunchPlan plan, @NonNull WarmWorkers warm, @NonNull String script, @NonNull List<String> args,
+            @NonNull EnvVars env, @NonNull OutputStream out, int timeout, @NonNull TaskListener listener) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<String>(Arrays.asList(plan.getInterpreter()));
+        command.add("-c");
+        command.add(BOOTSTRAP);
+        // forked children leave nothing behind in the worker
+        return dispatch(id, pwd, command, warm.getPoolSize(), warm.getMaxUses(), script, args, env, out, timeout, false, listener);
+    }
+
+    /**
+     * Executes a PowerShell script in a long-lived host of the execution host, a new host is started if none is available.
+     *
+     * @param id       the config id the launch gets recorded for in the {@link ScriptMetrics}
+     * @param pwd      the working directory, also determines the execution host
+     * @param host     the host settings
+     * @param script   the path of the script on the execution host
+     * @param args     the arguments of the script
+     * @param env      the environment of the script, applied on top of the environment of the execution host
+     * @param out      the stream to write the output of the script to
+     * @param timeout  the time in seconds the script may run, 0 for no timeout
+     * @param discard  whether the host must not be used again after the script, e.g. as the script loads types into its process
+     * @param listener the listener of the build
+     * @return the exit code of the script
+     */
+    static int runPowerShell(@CheckForNull String id, @NonNull FilePath pwd, @NonNull PowerShellHost host, @NonNull String script, @NonNull List<String> args, @NonNull EnvVars env,
+            @NonNull OutputStream out, int timeout, boolean discard, @NonNull TaskListener listener) throws IOException, InterruptedException {
+        List<String> command = Arrays.asList(host.getExecutable(), "-NoLogo", "-NoProfile", "-NonInteractive", "-ExecutionPolicy", "Bypass",
+                "-EncodedCommand", Base64.getEncoder().encodeToString(POWERSHELL_BOOTSTRAP.getBytes(StandardCharsets.UTF_16LE)));
+        return dispatch(id, pwd, command, host.getPoolSize(), host.getMaxUses(), script, args, env, out, timeout, discard, listener);
+    }
+
+    private static int dispatch(String id, FilePath pwd, List<String> command, int poolSize, int maxUses, String script, List<String> args, EnvVars env, OutputStream out,
+            int timeout, boolean discard, TaskListener listener) throws IOException, InterruptedException {
+        VirtualChannel channel = pwd.getChannel();
+        if (channel == null) {
+            throw new IOException("the execution host is offline");
+        }
+        String marker = "managed-script-" + UUID.randomUUID();
+        Dispatch dispatch = new Dispatch(command, poolSize, maxUses, discard, marker, script, args, env, pwd.getRemote(), new RemoteOutputStream(out),
+                new RemoteOutputStream(listener.getLogger()));
+        Future<Execution> result = channel.callAsync(dispatch);
+        Execution execution;
+        try {
+            execution = timeout > 0 ? result.get(timeout, TimeUnit.SECONDS) : result.get();
+        } catch (TimeoutException e) {
+            listener.getLogger().println("managed script timed out after " + timeout + " seconds, killing the interpreter worker");
+            channel.call(new Kill(marker));
+            execution = get(result);
+        } catch (InterruptedException e) {
+            // the build got aborted
+            channel.call(new Kill(marker));
+            throw e;
+        } catch (ExecutionException e) {
+            throw unwrap(e);
+        }
+        // acquiring or starting the worker and submitting the job, measured on the execution host
+        ScriptMetrics.recordDuration(id, ScriptMetrics.Phase.LAUNCH, execution.launchNanos);
+        return execution.exitCode;
+    }
+
+    private static Execution get(Future<Execution> result) throws IOException, InterruptedException {
+        try {
+            return result.get();
+        } catch (ExecutionException e) {
+            throw unwrap(e);
+        }
+    }
+
+    private static IOException unwrap(ExecutionException e) {
+        Throwable cause = e.getCause();
+        return cause instanceof IOException ? (IOException) cause : new IOException(cause);
+    }
+
+    private static String json(Map<String, String> env) {
+        StringBuilder sb = new StringBuilder("{");
+        for (Map.Entry<String, String> e : env.entrySet()) {
+            if (sb.length() > 1) {
+                sb.append(',');
+            }
+            sb.append(json(e.getKey())).append(':').append(json(e.getValue()));
+        }
+        return sb.append('}').toString();
+    }
+
+    private static String json(List<String> values) {
+        StringBuilder sb = new StringBuilder("[");
+        for (String value : values) {
+            if (sb.length() > 1) {
+                sb.append(',');
+            }
+            sb.append(json(value));
+        }
+        return sb.append(']').toString();
+    }
+
+    private static String json(String value) {
+        StringBuilder sb = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20 || c > 0x7e) {
+                // plain ASCII, the interpreter might not decode its stdin as UTF-8
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    /**
+     * Reads a line without its line separator, <code>\n</code> or <code>\r\n</code> (written by PowerShell hosts on Windows).
+     *
+     * @return <code>false</code> at the end of the stream
+     */
+    private static boolean readLine(InputStream in, ByteArrayOutputStream line) throws IOException {
+        line.reset();
+        boolean cr = false;
+        int b;
+        while ((b = in.read()) >= 0) {
+            if (b == '\n') {
+                return true;
+            }
+            if (cr) {
+                line.write('\r');
+            }
+            cr = b == '\r';
+            if (!cr) {
+                line.write(b);
+            }
+        }
+        if (cr) {
+            line.write('\r');
+        }
+        return line.size() > 0;
+    }
+
+    /**
+     * Kills the expired idle workers of all pools of this execution host, see {@link Reaper}.
+     */
+    static void reap() {
+        for (Pool pool : POOLS.values()) {
+            try {
+                pool.reap();
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Failed to reap the idle interpreter workers", e);
+            }
+        }
+    }
+
+    /**
+     * @param starting whether to count the workers being started in the background instead of the idle ones
+     * @return the number of idle or starting workers of all pools of this execution host
+     */
+    static int count(boolean starting) {
+        int count = 0;
+        for (Pool pool : POOLS.values()) {
+            synchronized (pool) {
+                count += starting ? pool.starting : pool.idle.size();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * The warm workers of one interpreter line on this execution host.
+     */
+    private static final class Pool {
+        private final List<String> command;
+        private final Deque<Worker> idle = new ArrayDeque<Worker>();
+        private int starting;
+
+        Pool(List<String> command) {
+            this.command = command;
+        }
+
+        /**
+         * @return an idle worker or <code>null</code> if none is available
+         */
+        @CheckForNull
+        synchronized Worker acquire() {
+            Worker worker;
+            while ((worker = idle.pollFirst()) != null) {
+                if (worker.process.isAlive() && System.nanoTime() - worker.idleSince < MAX_IDLE_NANOS) {
+                    return worker;
+                }
+                worker.kill();
+            }
+            return null;
+        }
+
+        synchronized void release(Worker worker) {
+            worker.idleSince = System.nanoTime();
+            idle.addFirst(worker);
+        }
+
+        /**
+         * Kills the idle workers which died or were not used for {@link #MAX_IDLE_NANOS}.
+         */
+        void reap() {
+            List<Worker> expired = new ArrayList<Worker>();
+            synchronized (this) {
+                for (Iterator<Worker> it = idle.iterator(); it.hasNext();) {
+                    Worker worker = it.next();
+                    if (!worker.process.isAlive() || System.nanoTime() - worker.idleSince >= MAX_IDLE_NANOS) {
+                        it.remove();
+                        expired.add(worker);
+                    }
+                }
+            }
+            for (Worker worker : expired) {
+                worker.kill();
+            }
+        }
+
+        /**
+         * Starts workers in the background until the given number of workers is idle or starting.
+         */
+        void fill(int size) {
+            synchronized (this) {
+                if (idle.size() + starting >= size) {
+                    return;
+                }
+                starting++;
+            }
+            STARTER.submit(new Runnable() {
+                public void run() {
+                    Worker worker = null;
+                    try {
+                        worker = Worker.start(command);
+                    } catch (IOException e) {
+                        LOGGER.log(Level.WARNING, "Failed to start the interpreter worker " + command.get(0), e);
+                    } finally {
+                        synchronized (Pool.this) {
+                            starting--;
+                            if (worker != null) {
+                                release(worker);
+                            }
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Kills the expired idle workers of this execution host every minute, so the interpreters of a job not built anymore do not
+     * keep running until the agent disconnects. Started with the first pool, on agents {@link jenkins.util.Timer} is not available.
+     */
+    private static final class Reaper {
+        private static final ScheduledExecutorService EXECUTOR = Executors.newSingleThreadScheduledExecutor(
+                new NamingThreadFactory(new DaemonThreadFactory(), "managed script interpreter reaper"));
+
+        static {
+            EXECUTOR.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    reap();
+                }
+            }, 1, 1, TimeUnit.MINUTES);
+        }
+
+        static void start() {
+            // initializes the class
+        }
+    }
+
+    /**
+     * A started interpreter running the bootstrap program.
+     */
+    private static final class Worker {
+        private final Process process;
+        private final long startupMillis;
+        private int uses;
+        private long idleSince;
+        private volatile boolean killed;
+
+        private Worker(Process process, long startupMillis) {
+            this.process = process;
+            this.startupMillis = startupMillis;
+        }
+
+        static Worker start(List<String> command) throws IOException {
+            long start = System.nanoTime();
+            Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            if (!readLine(process.getInputStream(), line) || !line.toString("UTF-8").equals("ready")) {
+                process.destroy();
+                throw new IOException("the interpreter worker " + command.get(0) + " failed to start: " + line.toString("UTF-8"));
+            }
+            return new Worker(process, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        }
+
+        /**
+         * Submits a job, the worker starts executing it right away.
+         */
+        void submit(String job) throws IOException {
+            OutputStream in = process.getOutputStream();
+            in.write(job.getBytes(StandardCharsets.UTF_8));
+            in.write('\n');
+            in.flush();
+        }
+
+        /**
+         * Copies the output of the script of the submitted job until the worker reports its exit code.
+         *
+         * @return the exit code of the script
+         */
+        int await(String marker, OutputStream out) throws IOException {
+            InputStream stdout = process.getInputStream();
+            byte[] end = (marker + " ").getBytes(StandardCharsets.UTF_8);
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            while (readLine(stdout, line)) {
+                byte[] b = line.toByteArray();
+                int i = indexOf(b, end);
+                if (i < 0) {
+                    out.write(b);
+                    out.write('\n');
+                    continue;
+                }
+                // the last line of the script might not be terminated
+                out.write(b, 0, i);
+                if (i > 0) {
+                    out.write('\n');
+                }
+                return Integer.parseInt(new String(b, i + end.length, b.length - i - end.length, StandardCharsets.UTF_8).trim());
+            }
+            if (killed) {
+                return 128 + 9;
+            }
+            throw new IOException("the interpreter worker exited unexpectedly");
+        }
+
+        private static int indexOf(byte[] b, byte[] s) {
+            outer:
+            for (int i = 0; i <= b.length - s.length; i++) {
+                for (int j = 0; j < s.length; j++) {
+                    if (b[i + j] != s[j]) {
+                        continue outer;
+                    }
+                }
+                return i;
+            }
+            return -1;
+        }
+
+        void kill() {
+            killed = true;
+            try {
+                ProcessTree.get().get(process).killRecursively();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.FINE, "Failed to kill the process tree of the interpreter worker", e);
+            }
+            process.destroy();
+        }
+    }
+
+    /**
+     * Executes a script in a worker of the execution host.
+     */
+    private static final class Dispatch extends MasterToSlaveCallable<Execution, IOException> {
+        private static final long serialVersionUID = 1L;
+
+        private final ArrayList<String> command;
+        private final int poolSize;
+        private final int maxUses;
+        private final boolean discard;
+        private final String marker;
+        private final String script;
+        private final ArrayList<String> args;
+        private final HashMap<String, String> env;
+        private final String pwd;
+        private final OutputStream out;
+        private final OutputStream log;
+
+        Dispatch(List<String> command, int poolSize, int maxUses, boolean discard, String marker, String script, List<String> args, Map<String, String> env,
+                String pwd, OutputStream out, OutputStream log) {
+            this.command = new ArrayList<String>(command);
+            this.poolSize = poolSize;
+            this.maxUses = maxUses;
+            this.discard = discard;
+            this.marker = marker;
+            this.script = script;
+            this.args = new ArrayList<String>(args);
+            this.env = new HashMap<String, String>(env);
+            this.pwd = pwd;
+            this.out = out;
+            this.log = log;
+        }
+
+        public Execution call() throws IOException {
+            PrintStream logger = new PrintStream(log, true, "UTF-8");
+            Pool pool = POOLS.get(command);
+            if (pool == null) {
+                Pool created = new Pool(command);
+                pool = POOLS.putIfAbsent(command, created);
+                if (pool == null) {
+                    pool = created;
+                    Reaper.start();
+                }
+            }
+            long start = System.nanoTime();
+            Worker worker = pool.acquire();
+            if (worker == null) {
+                worker = Worker.start(command);
+                logger.println("started a new interpreter worker in " + worker.startupMillis + " ms, no warm worker was available");
+            } else {
+                logger.println("executing in a warm interpreter worker (use " + (worker.uses + 1) + " of " + maxUses + "), dispatched in "
+                        + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms instead of " + worker.startupMillis + " ms interpreter startup");
+            }
+            pool.fill(poolSize);
+
+            EnvVars environment = new EnvVars(EnvVars.masterEnvVars);
+            environment.overrideExpandingAll(env);
+            String job = "{\"marker\":" + json(marker) + ",\"script\":" + json(script) + ",\"args\":" + json(args) + ",\"pwd\":" + json(pwd)
+                    + ",\"env\":" + json(environment) + "}";
+            worker.uses++;
+            RUNNING.put(marker, worker);
+            boolean healthy = false;
+            try {
+                worker.submit(job);
+                long launchNanos = System.nanoTime() - start;
+                int exitCode = worker.await(marker, out);
+                healthy = true;
+                return new Execution(exitCode, launchNanos);
+            } finally {
+                RUNNING.remove(marker);
+                out.flush();
+                if (healthy && !worker.killed && !discard && worker.uses < maxUses) {
+                    pool.release(worker);
+                } else {
+                    worker.kill();
+                    if (!healthy) {
+                        logger.println("discarded the failed interpreter worker");
+                    } else if (discard) {
+                        logger.println("discarded the interpreter worker, the script might have loaded types into its process");
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * The outcome of a {@link Dispatch}.
+     */
+    private static final class Execution implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final int exitCode;
+        private final long launchNanos;
+
+        Execution(int exitCode, long launchNanos) {
+            this.exitCode = exitCode;
+            this.launchNanos = launchNanos;
+        }
+    }
+
+    /**
+     * Kills the worker executing a job, it will not be used again.
+     */
+    private static final class Kill extends MasterToSlaveCallable<Void, RuntimeException> {
+        private static final long serialVersionUID = 1L;
+
+        private final String marker;
+
+        Kill(String marker) {
+            this.marker = marker;
+        }
+
+        public Void call() {
+            Worker worker = RUNNING.get(marker);
+            if (worker != null) {
+                worker.kill();
+            }
+            return null;
+        }
+    }
+}
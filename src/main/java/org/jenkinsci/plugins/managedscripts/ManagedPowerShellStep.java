@@ -0,0 +1,69 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.ItemGroup;
+import org.jenkinsci.lib.configprovider.model.Config;
+import org.jenkinsci.plugins.durabletask.DurableTask;
+import org.jenkinsci.plugins.durabletask.PowershellScript;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+import java.util.List;
+
+/**
+ * Pipeline step executing a managed powershell file: <code>managedPowershell(id: 'my-script', args: ['a', 'b'])</code>.
+ */
+public class ManagedPowerShellStep extends AbstractManagedScriptStep {
+
+    @DataBoundConstructor
+    public ManagedPowerShellStep(String id) {
+        super(id);
+    }
+
+    @Override
+    protected Class<? extends Config> getConfigType() {
+        return PowerShellConfig.class;
+    }
+
+    @Override
+    protected String getFileExtension() {
+        return ".ps1";
+    }
+
+    @Override
+    protected String getContents(ItemGroup<?> group, Config config) {
+        return ScriptBodies.of(config) + "\r\nexit $LastExitCode";
+    }
+
+    @Override
+    protected DurableTask createTask(Config config, FilePath script, List<String> args, Launcher launcher) {
+        StringBuilder sb = new StringBuilder("& ").append(quote(script.getRemote()));
+        for (String arg : args) {
+            sb.append(' ').append(quote(arg));
+        }
+        sb.append("\r\nexit $LastExitCode");
+        return new PowershellScript(sb.toString());
+    }
+
+    /**
+     * @return the given argument quoted for powershell
+     */
+    static String quote(String arg) {
+        return "'" + arg.replace("'", "''") + "'";
+    }
+
+    @Extension
+    public static final class DescriptorImpl extends ManagedScriptStepDescriptor {
+
+        @Override
+        public String getFunctionName() {
+            return "managedPowershell";
+        }
+
+        @Override
+        public String getDisplayName() {
+            return Messages.powershell_pipeline_step_name();
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.util.ArgumentListBuilder;
+import org.jenkinsci.lib.configprovider.model.Config;
+import org.jenkinsci.plugins.durabletask.BourneShellScript;
+import org.jenkinsci.plugins.durabletask.DurableTask;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+import java.util.List;
+
+/**
+ * Pipeline step executing a managed script: <code>managedScript(id: 'my-script', args: ['a', 'b'])</code>.
+ * <p>
+ * The interpreter is determined by the hash-bang of the script, just like for the {@link ScriptBuildStep}.
+ */
+public class ManagedScriptStep extends AbstractManagedScriptStep {
+
+    @DataBoundConstructor
+    public ManagedScriptStep(String id) {
+        super(id);
+    }
+
+    @Override
+    protected Class<? extends Config> getConfigType() {
+        return ScriptConfig.class;
+    }
+
+    @Override
+    protected String getFileExtension() {
+        return ".sh";
+    }
+
+    @Override
+    protected DurableTask createTask(Config config, FilePath script, List<String> args, Launcher launcher) {
+        ScriptLaunchPlan plan = ((ScriptConfig) config).getLaunchPlan();
+        ArgumentListBuilder cmd = plan.toArgumentList(script.getChannel(), script.getRemote());
+        for (String arg : args) {
+            cmd.add(arg);
+        }
+        StringBuilder sb = new StringBuilder("exec");
+        for (String arg : cmd.toList()) {
+            sb.append(' ').append(quote(arg));
+        }
+        return new BourneShellScript(sb.toString());
+    }
+
+    /**
+     * @return the given argument quoted for the Bourne shell
+     */
+    static String quote(String arg) {
+        return "'" + arg.replace("'", "'\\''") + "'";
+    }
+
+    @Extension
+    public static final class DescriptorImpl extends ManagedScriptStepDescriptor {
+
+        @Override
+        public String getFunctionName() {
+            return "managedScript";
+        }
+
+        @Override
+        public String getDisplayName() {
+            return Messages.pipeline_step_name();
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import hudson.AbortException;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.ItemGroup;
+import org.jenkinsci.lib.configprovider.model.Config;
+import org.jenkinsci.plugins.durabletask.DurableTask;
+import org.jenkinsci.plugins.durabletask.WindowsBatchScript;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+import java.util.List;
+
+/**
+ * Pipeline step executing a managed windows batch file: <code>managedBatch(id: 'my-batch', args: ['a', 'b'])</code>.
+ */
+public class ManagedWinBatchStep extends AbstractManagedScriptStep {
+
+    @DataBoundConstructor
+    public ManagedWinBatchStep(String id) {
+        super(id);
+    }
+
+    @Override
+    protected Class<? extends Config> getConfigType() {
+        return WinBatchConfig.class;
+    }
+
+    @Override
+    protected String getFileExtension() {
+        return ".bat";
+    }
+
+    @Override
+    protected String getContents(ItemGroup<?> group, Config config) {
+        return ScriptBodies.of(config) + "\r\nexit %ERRORLEVEL%";
+    }
+
+    @Override
+    protected DurableTask createTask(Config config, FilePath script, List<String> args, Launcher launcher) throws AbortException {
+        StringBuilder sb = new StringBuilder("call ").append(quote(script.getRemote()));
+        for (String arg : args) {
+            sb.append(' ').append(quote(arg));
+        }
+        sb.append("\r\nexit %ERRORLEVEL%");
+        return new WindowsBatchScript(sb.toString());
+    }
+
+    /**
+     * @return the given argument quoted for a line of a batch file: within double quotes, with doubled quotes and percent signs
+     */
+    static String quote(String arg) throws AbortException {
+        if (arg.indexOf('\r') >= 0 || arg.indexOf('\n') >= 0) {
+            throw new AbortException("arguments of a windows batch file cannot contain line breaks: " + arg);
+        }
+        return '"' + arg.replace("%", "%%").replace("\"", "\"\"") + '"';
+    }
+
+    @Extension
+    public static final class DescriptorImpl extends ManagedScriptStepDescriptor {
+
+        @Override
+        public String getFunctionName() {
+            return "managedBatch";
+        }
+
+        @Override
+        public String getDisplayName() {
+            return Messages.win_pipeline_step_name();
+        }
+    }
+}
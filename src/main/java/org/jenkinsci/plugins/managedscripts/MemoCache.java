@@ -0,0 +1,409 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.FilePath;
+import hudson.Util;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+import jenkins.util.SystemProperties;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Memoizes the outputs of the managed scripts declaring a {@link Memoization}.
+ * <p>
+ * The key of an execution is the SHA-256 hash of the script content, its interpreter, its expanded arguments, the declared
+ * outputs and the hashes of all input files. The input files are hashed on the execution host. After a successful execution the
+ * outputs get archived in a cache directory below the root path of the node, the next execution with the same key restores them
+ * instead of running the script. The size of the cache directory is bounded, the least recently used entries get removed as soon
+ * as the limit is exceeded.
+ * <p>
+ * Every job has a directory of its own within the cache directory, an archive is never restored into the workspace of another
+ * job. The controller keeps the SHA-256 digest of every archive stored since its start, an archive is only extracted once its
+ * digest got verified. Archives stored before the last restart of the controller or modified on the node are not restored, the
+ * script gets executed and its outputs archived again.
+ */
+final class MemoCache {
+
+    private static final Logger LOGGER = Logger.getLogger(MemoCache.class.getName());
+
+    /**
+     * name of the cache directory below the root path of a node
+     */
+    static final String CACHE_DIR = "managed-scripts-memo";
+
+    /**
+     * maximum size in bytes of the cache directory on every node
+     */
+    static long MAX_SIZE = SystemProperties.getLong(MemoCache.class.getName() + ".maxSize", 1024L * 1024 * 1024);
+
+    /**
+     * maximum number of archive digests kept by the controller
+     */
+    static int MAX_DIGESTS = SystemProperties.getInteger(MemoCache.class.getName() + ".maxDigests", 10000);
+
+    private static final String SUFFIX = ".tar.gz";
+
+    /**
+     * the digests of the archives stored since the start, by node and path of the archive, least recently used first
+     */
+    private static final Map<String, String> DIGESTS = new LinkedHashMap<String, String>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > MAX_DIGESTS;
+        }
+    };
+
+    private MemoCache() {
+    }
+
+    /**
+     * Looks up the outputs of an execution and restores them into the workspace if they are cached.
+     *
+     * @param workspace   the workspace
+     * @param scope       the full name of the job, the outputs are only restored within the same job
+     * @param memo        the inputs and outputs declared by the script
+     * @param id          the config id, used for the statistics
+     * @param content     the script content
+     * @param interpreter the interpreter of the script, empty for the default shell
+     * @param args        the expanded arguments
+     * @param listener    the listener to report to
+     * @return the lookup, <code>null</code> if the node has no cache directory
+     */
+    @CheckForNull
+    static Lookup lookup(@NonNull FilePath workspace, @NonNull String scope, @NonNull Memoization memo, @NonNull String id, @NonNull String content, @NonNull List<String> interpreter,
+            @NonNull List<String> args, @NonNull TaskListener listener) throws IOException, InterruptedException {
+        FilePath cacheDir = getCacheDir(workspace);
+        if (cacheDir == null) {
+            return null;
+        }
+        cacheDir = cacheDir.child(ScriptBlobStore.hash(scope));
+        StringBuilder base = new StringBuilder(ScriptBlobStore.hash(content)).append('\n');
+        for (String element : interpreter) {
+            base.append(element).append('\0');
+        }
+        base.append('\n');
+        for (String arg : args) {
+            base.append(arg).append('\0');
+        }
+        base.append('\n').append(memo.getOutputs()).append('\n');
+
+        Lookup lookup = workspace.act(new Probe(cacheDir.getRemote(), base.toString(), memo.getInputs()));
+        lookup.outputs = memo.getOutputs();
+        lookup.cacheDir = cacheDir;
+        if (lookup.hit) {
+            String digest = getDigest(lookup.getEntry());
+            lookup.hit = digest != null && workspace.act(new Restore(lookup.getEntry().getRemote(), digest));
+        }
+        ScriptMetrics.memo(id, lookup.hit);
+        ScriptMetrics.Entry stats = ScriptMetrics.getEntry(id);
+        String statistics = "key " + lookup.key.substring(0, 12) + ", " + lookup.inputs + " input files, " + stats.getMemoHits() + " hits and "
+                + stats.getMemoMisses() + " misses so far";
+        if (lookup.hit) {
+            listener.getLogger().println("inputs unchanged, restored the outputs from the cache instead of executing the script (" + statistics + ")");
+        } else {
+            listener.getLogger().println("no cached outputs for these inputs, executing the script (" + statistics + ")");
+        }
+        return lookup;
+    }
+
+    /**
+     * Gets the cache directory of the node the given path belongs to.
+     *
+     * @param path any path on the node (usually the workspace)
+     * @return the cache directory or <code>null</code> if the node can't be determined
+     */
+    @CheckForNull
+    static FilePath getCacheDir(@NonNull FilePath path) {
+        Computer computer = path.toComputer();
+        Node node = computer != null ? computer.getNode() : null;
+        FilePath rootPath = node != null ? node.getRootPath() : null;
+        return rootPath != null ? rootPath.child(CACHE_DIR) : null;
+    }
+
+    private static String digestKey(FilePath entry) {
+        Computer computer = entry.toComputer();
+        return (computer != null ? computer.getName() : "") + ':' + entry.getRemote();
+    }
+
+    @CheckForNull
+    private static String getDigest(FilePath entry) {
+        synchronized (DIGESTS) {
+            return DIGESTS.get(digestKey(entry));
+        }
+    }
+
+    private static void putDigest(FilePath entry, String digest) {
+        synchronized (DIGESTS) {
+            DIGESTS.put(digestKey(entry), digest);
+        }
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not supported by this JVM", e);
+        }
+    }
+
+    /**
+     * The result of a lookup, stores the outputs of a successful execution on a miss.
+     */
+    static final class Lookup implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final String key;
+        private boolean hit;
+        private final int inputs;
+        private transient String outputs;
+        private transient FilePath cacheDir;
+
+        Lookup(String key, boolean hit, int inputs) {
+            this.key = key;
+            this.hit = hit;
+            this.inputs = inputs;
+        }
+
+        /**
+         * @return the key of the execution
+         */
+        String getKey() {
+            return key;
+        }
+
+        private FilePath getEntry() {
+            return cacheDir.child(key + SUFFIX);
+        }
+
+        /**
+         * @return whether the outputs got restored and the script must not be executed
+         */
+        boolean isHit() {
+            return hit;
+        }
+
+        /**
+         * Archives the outputs of a successful execution.
+         *
+         * @param workspace the workspace
+         * @param listener  the listener to report to
+         */
+        void store(@NonNull FilePath workspace, @NonNull TaskListener listener) throws IOException, InterruptedException {
+            if (hit) {
+                return;
+            }
+            Archive archive = workspace.act(new Store(cacheDir.getRemote(), key, outputs));
+            putDigest(getEntry(), archive.digest);
+            listener.getLogger().println("stored " + archive.files + " output files in the cache");
+        }
+    }
+
+    /**
+     * Computes the key of an execution and checks whether its outputs are cached.
+     */
+    private static final class Probe extends MasterToSlaveFileCallable<Lookup> {
+        private static final long serialVersionUID = 1L;
+
+        private final String cacheDir;
+        private final String base;
+        private final String inputs;
+
+        Probe(String cacheDir, String base, String inputs) {
+            this.cacheDir = cacheDir;
+            this.base = base;
+            this.inputs = inputs;
+        }
+
+        public Lookup invoke(File ws, VirtualChannel channel) throws IOException, InterruptedException {
+            // ordered by path, so the key does not depend on the order of the directory listing
+            Map<String, String> hashes = new TreeMap<String, String>();
+            if (inputs != null) {
+                byte[] buffer = new byte[64 * 1024];
+                for (FilePath input : new FilePath(ws).list(inputs)) {
+                    File file = new File(input.getRemote());
+                    MessageDigest digest = sha256();
+                    try (InputStream in = Files.newInputStream(file.toPath())) {
+                        int n;
+                        while ((n = in.read(buffer)) >= 0) {
+                            digest.update(buffer, 0, n);
+                        }
+                    }
+                    hashes.put(ws.toPath().relativize(file.toPath()).toString().replace('\\', '/'), Util.toHexString(digest.digest()));
+                }
+            }
+            MessageDigest digest = sha256();
+            digest.update(base.getBytes(StandardCharsets.UTF_8));
+            for (Map.Entry<String, String> input : hashes.entrySet()) {
+                digest.update((input.getKey() + '\0' + input.getValue() + '\n').getBytes(StandardCharsets.UTF_8));
+            }
+            String key = Util.toHexString(digest.digest());
+
+            return new Lookup(key, new File(cacheDir, key + SUFFIX).isFile(), hashes.size());
+        }
+    }
+
+    /**
+     * Restores the cached outputs of an execution into the workspace, once the digest of the archive got verified.
+     */
+    private static final class Restore extends MasterToSlaveFileCallable<Boolean> {
+        private static final long serialVersionUID = 1L;
+
+        private final String entry;
+        private final String digest;
+
+        Restore(String entry, String digest) {
+            this.entry = entry;
+            this.digest = digest;
+        }
+
+        public Boolean invoke(File ws, VirtualChannel channel) throws IOException, InterruptedException {
+            File entry = new File(this.entry);
+            MessageDigest actual = sha256();
+            try (InputStream in = new DigestInputStream(Files.newInputStream(entry.toPath()), actual)) {
+                IOUtils.copy(in, NullOutputStream.NULL_OUTPUT_STREAM);
+            } catch (NoSuchFileException e) {
+                // evicted meanwhile
+                return false;
+            }
+            if (!digest.equals(Util.toHexString(actual.digest()))) {
+                LOGGER.log(Level.WARNING, "The archive {0} of the memo cache got modified, it is not restored", entry);
+                return false;
+            }
+            // an empty entry stands for a script without declared outputs
+            if (entry.length() > 0) {
+                try (InputStream in = Files.newInputStream(entry.toPath())) {
+                    new FilePath(ws).untarFrom(in, FilePath.TarCompression.GZIP);
+                }
+            }
+            if (!entry.setLastModified(System.currentTimeMillis())) {
+                LOGGER.log(Level.FINE, "Failed to touch {0}", entry);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * The archive of the outputs of an execution.
+     */
+    private static final class Archive implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final int files;
+        private final String digest;
+
+        Archive(int files, String digest) {
+            this.files = files;
+            this.digest = digest;
+        }
+    }
+
+    /**
+     * Archives the outputs of an execution under its key and evicts the least recently used entries of all jobs.
+     */
+    private static final class Store extends MasterToSlaveFileCallable<Archive> {
+        private static final long serialVersionUID = 1L;
+
+        private final String cacheDir;
+        private final String key;
+        private final String outputs;
+
+        Store(String cacheDir, String key, String outputs) {
+            this.cacheDir = cacheDir;
+            this.key = key;
+            this.outputs = outputs;
+        }
+
+        public Archive invoke(File ws, VirtualChannel channel) throws IOException, InterruptedException {
+            File dir = new File(cacheDir);
+            Files.createDirectories(dir.toPath());
+            File tmp = File.createTempFile(key, ".tmp", dir);
+            int count = 0;
+            MessageDigest digest = sha256();
+            try {
+                if (outputs != null) {
+                    try (OutputStream out = new GZIPOutputStream(new DigestOutputStream(Files.newOutputStream(tmp.toPath()), digest))) {
+                        count = new FilePath(ws).tar(out, outputs);
+                    }
+                }
+                File entry = new File(dir, key + SUFFIX);
+                try {
+                    Files.move(tmp.toPath(), entry.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(tmp.toPath(), entry.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                }
+            } finally {
+                Files.deleteIfExists(tmp.toPath());
+            }
+            evict(dir.getParentFile());
+            return new Archive(count, Util.toHexString(digest.digest()));
+        }
+
+        private static void evict(File root) {
+            File[] scopes = root.listFiles();
+            if (scopes == null) {
+                return;
+            }
+            List<File> all = new ArrayList<File>();
+            long size = 0;
+            for (File scope : scopes) {
+                File[] entries = scope.listFiles();
+                if (entries == null) {
+                    continue;
+                }
+                for (File entry : entries) {
+                    // includes the temporary files of concurrent builds, they are never evicted
+                    size += entry.length();
+                    all.add(entry);
+                }
+            }
+            if (size <= MAX_SIZE) {
+                return;
+            }
+            File[] entries = all.toArray(new File[all.size()]);
+            Arrays.sort(entries, Comparator.comparingLong(File::lastModified));
+            for (File entry : entries) {
+                if (size <= MAX_SIZE) {
+                    break;
+                }
+                if (!entry.getName().endsWith(SUFFIX)) {
+                    continue;
+                }
+                long length = entry.length();
+                if (entry.delete()) {
+                    size -= length;
+                    LOGGER.log(Level.FINE, "evicted {0} from the memo cache", entry.getName());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import hudson.Util;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * Declares a managed script a pure function of its arguments and some workspace files, see {@link MemoCache}.
+ * <p>
+ * Both the inputs and the outputs are comma separated Ant style patterns relative to the workspace.
+ */
+public class Memoization {
+
+    private final String inputs;
+    private final String outputs;
+
+    /**
+     * @param inputs  the files the result of the script depends on, besides its content and arguments
+     * @param outputs the files the script produces
+     */
+    @DataBoundConstructor
+    public Memoization(String inputs, String outputs) {
+        this.inputs = Util.fixEmptyAndTrim(inputs);
+        this.outputs = Util.fixEmptyAndTrim(outputs);
+    }
+
+    public String getInputs() {
+        return inputs;
+    }
+
+    public String getOutputs() {
+        return outputs;
+    }
+}
@@ -0,0 +1,246 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.console.LineTransformationOutputStream;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Limits the output a managed script writes to the build log.
+ * <p>
+ * The output is written in batches instead of line by line, a batch is written once it reaches 8 KiB or 500 ms after its first
+ * line at the latest. If a cap is exceeded, only the head and the tail of the output are
+ * kept (half of the cap each), consecutive repeated lines can be collapsed. What got suppressed is reported at the end.
+ */
+public class OutputLimit implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Logger LOGGER = Logger.getLogger(OutputLimit.class.getName());
+
+    /**
+     * size of a batch written to the build log at once
+     */
+    private static final int BATCH_SIZE = 8 * 1024;
+
+    /**
+     * maximum time a line stays in a batch before it is written to the build log
+     */
+    private static final long BATCH_MILLIS = 500;
+
+    private final int maxLines;
+    private final long maxBytes;
+    private final boolean collapseRepeated;
+
+    /**
+     * @param maxLines         maximum number of lines written to the build log, 0 for no limit
+     * @param maxBytes         maximum number of bytes written to the build log, 0 for no limit
+     * @param collapseRepeated whether consecutive repeated lines get collapsed into one
+     */
+    @DataBoundConstructor
+    public OutputLimit(int maxLines, long maxBytes, boolean collapseRepeated) {
+        this.maxLines = Math.max(maxLines, 0);
+        this.maxBytes = Math.max(maxBytes, 0);
+        this.collapseRepeated = collapseRepeated;
+    }
+
+    public int getMaxLines() {
+        return maxLines;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public boolean isCollapseRepeated() {
+        return collapseRepeated;
+    }
+
+    /**
+     * Writes the batches not filled up in time, also used on agents where {@link jenkins.util.Timer} is not available.
+     */
+    private static final class Flusher {
+        private static final ScheduledExecutorService EXECUTOR = Executors.newSingleThreadScheduledExecutor(
+                new NamingThreadFactory(new DaemonThreadFactory(), "managed script output flusher"));
+    }
+
+    /**
+     * Creates the stream to connect the stdout and stderr of the script to.
+     *
+     * @param log the build log
+     * @return the stream limiting the output, must be closed once the script finished
+     */
+    @NonNull
+    public LimitedOutputStream limit(@NonNull OutputStream log) {
+        return new LimitedOutputStream(log, this);
+    }
+
+    /**
+     * Output stream applying an {@link OutputLimit}, safe to be shared by stdout and stderr.
+     */
+    public static final class LimitedOutputStream extends LineTransformationOutputStream {
+        private final OutputStream log;
+        private final int headLines;
+        private final long headBytes;
+        private final int tailLines;
+        private final long tailBytes;
+        private final boolean collapseRepeated;
+
+        private final ByteArrayOutputStream batch = new ByteArrayOutputStream(BATCH_SIZE);
+        private long lastFlush = System.currentTimeMillis();
+        private ScheduledFuture<?> scheduledFlush;
+
+        private int writtenLines;
+        private long writtenBytes;
+        private final Deque<byte[]> tail = new ArrayDeque<byte[]>();
+        private long tailSize;
+        private long suppressedLines;
+        private long suppressedBytes;
+
+        private byte[] previous;
+        private long repeated;
+        private long collapsedLines;
+
+        LimitedOutputStream(OutputStream log, OutputLimit limit) {
+            this.log = log;
+            this.headLines = limit.maxLines > 0 ? (limit.maxLines + 1) / 2 : Integer.MAX_VALUE;
+            this.tailLines = limit.maxLines > 0 ? limit.maxLines / 2 : 0;
+            this.headBytes = limit.maxBytes > 0 ? (limit.maxBytes + 1) / 2 : Long.MAX_VALUE;
+            this.tailBytes = limit.maxBytes > 0 ? limit.maxBytes / 2 : 0;
+            this.collapseRepeated = limit.collapseRepeated;
+        }
+
+        @Override
+        public synchronized void write(int b) throws IOException {
+            super.write(b);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            super.write(b, off, len);
+        }
+
+        @Override
+        protected synchronized void eol(byte[] b, int len) throws IOException {
+            byte[] line = Arrays.copyOf(b, len);
+            if (collapseRepeated && previous != null && Arrays.equals(previous, line)) {
+                repeated++;
+                collapsedLines++;
+                return;
+            }
+            reportRepeated();
+            previous = collapseRepeated ? line : null;
+            append(line);
+            if (batch.size() >= BATCH_SIZE || System.currentTimeMillis() - lastFlush >= BATCH_MILLIS) {
+                flushBatch();
+            } else if (batch.size() > 0 && scheduledFlush == null) {
+                scheduleFlush();
+            }
+        }
+
+        /**
+         * Writes the batch {@link #BATCH_MILLIS} after its first line, even if the script does not write anything else meanwhile.
+         */
+        private void scheduleFlush() {
+            scheduledFlush = Flusher.EXECUTOR.schedule(new Runnable() {
+                public void run() {
+                    synchronized (LimitedOutputStream.this) {
+                        if (scheduledFlush == null) {
+                            // already written or closed
+                            return;
+                        }
+                        scheduledFlush = null;
+                        try {
+                            flushBatch();
+                        } catch (IOException e) {
+                            LOGGER.log(Level.FINE, "Failed to write the script output", e);
+                        }
+                    }
+                }
+            }, BATCH_MILLIS, TimeUnit.MILLISECONDS);
+        }
+
+        private void reportRepeated() {
+            if (repeated > 0) {
+                append(("... previous line repeated " + repeated + " more times\n").getBytes(StandardCharsets.UTF_8));
+                repeated = 0;
+            }
+        }
+
+        private void append(byte[] line) {
+            if (writtenLines < headLines && writtenBytes + line.length <= headBytes) {
+                writtenLines++;
+                writtenBytes += line.length;
+                batch.write(line, 0, line.length);
+                return;
+            }
+            // the head is full, keep the tail only
+            tail.addLast(line);
+            tailSize += line.length;
+            while (!tail.isEmpty() && (tail.size() > tailLines || tailSize > tailBytes)) {
+                byte[] dropped = tail.removeFirst();
+                tailSize -= dropped.length;
+                suppressedLines++;
+                suppressedBytes += dropped.length;
+            }
+        }
+
+        private void flushBatch() throws IOException {
+            if (scheduledFlush != null) {
+                scheduledFlush.cancel(false);
+                scheduledFlush = null;
+            }
+            if (batch.size() > 0) {
+                batch.writeTo(log);
+                batch.reset();
+            }
+            log.flush();
+            lastFlush = System.currentTimeMillis();
+        }
+
+        @Override
+        public synchronized void flush() throws IOException {
+            if (System.currentTimeMillis() - lastFlush >= BATCH_MILLIS) {
+                flushBatch();
+            }
+        }
+
+        /**
+         * Writes the remaining output, the tail and a summary of what got suppressed. The build log itself stays open.
+         */
+        @Override
+        public synchronized void close() throws IOException {
+            forceEol();
+            reportRepeated();
+            if (suppressedLines > 0) {
+                String msg = "... suppressed " + suppressedLines + " lines (" + suppressedBytes + " bytes) of output ...\n";
+                batch.write(msg.getBytes(StandardCharsets.UTF_8), 0, msg.length());
+            }
+            for (byte[] line : tail) {
+                batch.write(line, 0, line.length);
+            }
+            tail.clear();
+            if (collapsedLines > 0) {
+                String msg = "collapsed " + collapsedLines + " repeated lines of output\n";
+                batch.write(msg.getBytes(StandardCharsets.UTF_8), 0, msg.length());
+            }
+            flushBatch();
+        }
+    }
+}
@@ -1,8 +1,13 @@
 package org.jenkinsci.plugins.managedscripts;
 
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.EnvVars;
 import hudson.Extension;
 import hudson.ExtensionList;
 import hudson.FilePath;
+import hudson.Launcher;
+import hudson.Proc;
+import hudson.Util;
 import hudson.model.*;
 import hudson.model.Queue;
 import hudson.tasks.BuildStepDescriptor;
@@ -12,12 +17,12 @@ import hudson.util.FormValidation;
 import hudson.util.ListBoxModel;
 import org.jenkinsci.lib.configprovider.ConfigProvider;
 import org.jenkinsci.lib.configprovider.model.Config;
-import org.jenkinsci.plugins.configfiles.ConfigFiles;
 import org.jenkinsci.plugins.managedscripts.PowerShellConfig.Arg;
 import org.kohsuke.stapler.*;
 import org.kohsuke.stapler.bind.JavaScriptMethod;
 
 import java.io.Serializable;
+import java.io.IOException;
 import java.util.*;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -34,6 +39,7 @@ public class PowerShellBuildStep extends CommandInterpreter {
     private static final Logger LOGGER = Logger.getLogger(PowerShellBuildStep.class.getName());
 
     private final String[] buildStepArgs;
+    private int timeout;
 
     public static class ArgValue implements Serializable {
         public final String arg;
@@ -79,6 +85,18 @@ public class PowerShellBuildStep extends CommandInterpreter {
         return getCommand();
     }
 
+    /**
+     * @return the time in seconds the script may run before it gets killed, overrides the timeout of the script; 0 to use the timeout of the script
+     */
+    public int getTimeout() {
+        return timeout;
+    }
+
+    @DataBoundSetter
+    public void setTimeout(int timeout) {
+        this.timeout = Math.max(timeout, 0);
+    }
+
     public String[] getBuildStepArgs() {
         String[] args = buildStepArgs == null ? new String[0] : buildStepArgs;
         return Arrays.copyOf(args, args.length);
@@ -109,11 +127,15 @@ public class PowerShellBuildStep extends CommandInterpreter {
         if (executor != null) {
             Queue.Executable currentExecutable = executor.getCurrentExecutable();
             if (currentExecutable != null) {
-                Config buildStepConfig = ConfigFiles.getByIdOrNull((Run<?, ?>) currentExecutable, getBuildStepId());
+                long lookupStart = System.nanoTime();
+                Config buildStepConfig = ConfigIndex.getByIdOrNull((Run<?, ?>) currentExecutable, getBuildStepId(), Config.class);
+                ScriptMetrics.record(getBuildStepId(), ScriptMetrics.Phase.LOOKUP, lookupStart);
                 if (buildStepConfig == null) {
                     throw new IllegalStateException(Messages.config_does_not_exist(getBuildStepId()));
                 }
-                return buildStepConfig.content + "\r\nexit $LastExitCode";
+                String contents = ScriptBodies.of(buildStepConfig) + "\r\nexit $LastExitCode";
+                ScriptDistributor.used((Run<?, ?>) currentExecutable, getBuildStepId(), contents, getFileExtension());
+                return contents;
             } else {
                 String msg = "current executable not accessable! can't get content of script: " + getBuildStepId();
                 LOGGER.log(Level.SEVERE, msg);
@@ -127,6 +149,98 @@ public class PowerShellBuildStep extends CommandInterpreter {
 
     }
 
+    /**
+     * Serves the script from the script cache of the execution host, so the content is only transferred if it is not cached there yet.
+     * Transfers are reported to the listener of the build step, see {@link #perform}.
+     */
+    @Override
+    public FilePath createScriptFile(@NonNull FilePath dir) throws IOException, InterruptedException {
+        String contents = getContents();
+        long transferStart = System.nanoTime();
+        FilePath script = ScriptCache.createTempScript(dir, "jenkins", getFileExtension(), contents, ScriptTimeout.getListener());
+        ScriptMetrics.record(getBuildStepId(), ScriptMetrics.Phase.TRANSFER, transferStart);
+        return script;
+    }
+
+    /**
+     * Records the runtime and the result of the script in the {@link ScriptMetrics}, remembers the listener for {@link #join(Proc)}.
+     */
+    @Override
+    public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException {
+        long start = System.nanoTime();
+        boolean success = false;
+        ScriptTimeout.setListener(listener);
+        try {
+            PowerShellConfig config = ConfigIndex.getByIdOrNull(build, getBuildStepId(), PowerShellConfig.class);
+            PowerShellHost host = config != null ? config.getHost() : null;
+            if (host != null && !InterpreterPool.supports(launcher)) {
+                // the process of the host is not started by the launcher of the build
+                listener.getLogger().println("the launcher of the build is decorated, starting PowerShell instead of using a host");
+                host = null;
+            }
+            success = host != null ? performInHost(build, listener, config, host) : super.perform(build, launcher, listener);
+            return success;
+        } finally {
+            ScriptTimeout.setListener(null);
+            ScriptMetrics.record(getBuildStepId(), ScriptMetrics.Phase.TOTAL, start);
+            ScriptMetrics.result(getBuildStepId(), success);
+        }
+    }
+
+    /**
+     * Executes the script in a long-lived PowerShell host of the execution host instead of starting a new PowerShell, see
+     * {@link InterpreterPool}. The environment and the arguments are the same as for {@link #buildCommandLine(FilePath)}. The host
+     * is discarded after a script loading types, see {@link PowerShellHost#loadsTypes(String)}.
+     */
+    private boolean performInHost(AbstractBuild<?, ?> build, BuildListener listener, PowerShellConfig config, PowerShellHost host) throws InterruptedException {
+        FilePath ws = build.getWorkspace();
+        if (ws == null) {
+            listener.fatalError("no workspace for " + build.getFullDisplayName());
+            return false;
+        }
+        FilePath script = null;
+        try {
+            script = createScriptFile(ws);
+            EnvVars env = build.getEnvironment(listener);
+            // as done by CommandInterpreter
+            for (Map.Entry<String, String> e : build.getBuildVariables().entrySet()) {
+                env.put(e.getKey(), e.getValue());
+            }
+            int effectiveTimeout = ScriptTimeout.effective(timeout, config.getTimeout());
+            int r = InterpreterPool.runPowerShell(getBuildStepId(), ws, host, script.getRemote(), buildStepArgs == null ? Collections.<String>emptyList() : Arrays.asList(buildStepArgs), env,
+                    listener.getLogger(), effectiveTimeout, PowerShellHost.loadsTypes(ScriptBodies.of(config)), listener);
+            return r == 0;
+        } catch (IOException e) {
+            Util.displayIOException(e, listener);
+            e.printStackTrace(listener.fatalError("command execution failed"));
+            return false;
+        } finally {
+            try {
+                if (script != null) {
+                    script.delete();
+                }
+            } catch (Exception e) {
+                e.printStackTrace(listener.fatalError("Cannot remove temporary script file '" + script.getRemote() + "'"));
+            }
+        }
+    }
+
+    /**
+     * Enforces the timeout of the build step, or the one of the script.
+     */
+    @Override
+    protected int join(Proc p) throws IOException, InterruptedException {
+        Executor executor = Executor.currentExecutor();
+        Queue.Executable executable = executor != null ? executor.getCurrentExecutable() : null;
+        if (!(executable instanceof AbstractBuild)) {
+            return p.join();
+        }
+        AbstractBuild<?, ?> build = (AbstractBuild<?, ?>) executable;
+        PowerShellConfig config = ConfigIndex.getByIdOrNull(build, getBuildStepId(), PowerShellConfig.class);
+        int effectiveTimeout = ScriptTimeout.effective(timeout, config != null ? config.getTimeout() : 0);
+        return ScriptTimeout.join(p, effectiveTimeout, executor.getOwner().getChannel(), build.getCharacteristicEnvVars(), ScriptTimeout.getListener());
+    }
+
     @Override
     protected String getFileExtension() {
         return ".ps1";
@@ -164,11 +278,10 @@ public class PowerShellBuildStep extends CommandInterpreter {
         /**
          * gets the argument description to be displayed on the screen when selecting a config in the dropdown
          *
-         * @param configId the config id to get the arguments description for
+         * @param config the config to get the arguments description for
          * @return the description
          */
-        private String getArgsDescription(@AncestorInPath Item context, String configId) {
-            final PowerShellConfig config = ConfigFiles.getByIdOrNull(context, configId);
+        private String getArgsDescription(PowerShellConfig config) {
             if (config != null) {
                 if (config.args != null && !config.args.isEmpty()) {
                     StringBuilder sb = new StringBuilder("Required arguments: ");
@@ -195,32 +308,43 @@ public class PowerShellBuildStep extends CommandInterpreter {
          * @return
          */
         public HttpResponse doCheckBuildStepId(StaplerRequest req, @AncestorInPath Item context, @QueryParameter String buildStepId) {
-            final PowerShellConfig config = ConfigFiles.getByIdOrNull(context, buildStepId);
+            final PowerShellConfig config = ConfigIndex.getByIdOrNull(context, buildStepId, PowerShellConfig.class);
             if (config != null) {
-                return DetailLinkDescription.getDescription(req, context, buildStepId, getArgsDescription(context, buildStepId));
+                return DetailLinkDescription.getDescription(req, context, buildStepId, getArgsDescription(config));
             } else {
                 return FormValidation.error("you must select a valid powershell file");
             }
         }
 
         /**
-         * Return all batch files (templates) that the user can choose from when creating a build step. Ordered by name.
+         * Return the first page of batch files (templates) that the user can choose from when creating a build step, ordered by name. The currently selected one is always included.
          *
+         * @param item        the item being configured
+         * @param context     the item group to list the configs of
+         * @param buildStepId the currently selected config
          * @return A collection of batch files of type {@link WinBatchConfig}.
          */
-        public ListBoxModel doFillBuildStepIdItems(@AncestorInPath ItemGroup context) {
-            List<Config> configsInContext = ConfigFiles.getConfigsInContext(context, PowerShellConfig.PowerShellConfigProvider.class);
-            Collections.sort(configsInContext, new Comparator<Config>() {
-                public int compare(Config o1, Config o2) {
-                    return o1.name.compareTo(o2.name);
-                }
-            });
-            ListBoxModel items = new ListBoxModel();
-            items.add("please select", "");
-            for (Config config : configsInContext) {
-                items.add(config.name, config.id);
-            }
-            return items;
+        public ListBoxModel doFillBuildStepIdItems(@AncestorInPath Item item, @AncestorInPath ItemGroup context, @QueryParameter String buildStepId) {
+            return ConfigNameIndex.fillItems(item, context, PowerShellConfig.PowerShellConfigProvider.class, buildStepId);
+        }
+
+        /**
+         * Search the configs by the prefix of their name, used by the type-ahead of the script picker.
+         *
+         * @param item    the item being configured
+         * @param context the item group to search the configs in
+         * @param query   the prefix of the names to search for
+         * @param offset  the index of the first match to return
+         */
+        public void doSearchBuildStepIds(@AncestorInPath Item item, @AncestorInPath ItemGroup context, @QueryParameter String query, @QueryParameter int offset, StaplerResponse rsp) throws IOException {
+            ConfigNameIndex.search(item, context, PowerShellConfig.PowerShellConfigProvider.class, query, offset, rsp);
+        }
+
+        /**
+         * @return the URL of {@link #doSearchBuildStepIds}, used by the script picker
+         */
+        public String getSearchUrl() {
+            return ConfigNameIndex.getSearchUrl(this);
         }
 
         private ConfigProvider getBuildStepConfigProvider() {
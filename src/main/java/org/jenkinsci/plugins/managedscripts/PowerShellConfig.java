@@ -1,7 +1,11 @@
 package org.jenkinsci.plugins.managedscripts;
 
+import edu.umd.cs.findbugs.annotations.CheckForNull;
 import edu.umd.cs.findbugs.annotations.NonNull;
 import hudson.Extension;
+import hudson.FilePath;
+import hudson.model.Run;
+import hudson.model.TaskListener;
 import jenkins.model.Jenkins;
 import org.jenkinsci.lib.configprovider.AbstractConfigProviderImpl;
 import org.jenkinsci.lib.configprovider.ConfigProvider;
@@ -9,19 +13,30 @@ import org.jenkinsci.lib.configprovider.model.Config;
 import org.jenkinsci.lib.configprovider.model.ContentType;
 import org.jenkinsci.plugins.configfiles.custom.CustomConfig;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.logging.Logger;
 
-public class PowerShellConfig extends Config {
+public class PowerShellConfig extends Config implements ScriptBodies.Deferred {
 
   public final List<Arg> args;
 
+  private int timeout;
+
+  private PowerShellHost host;
+
+  /**
+   * the digest of the blob holding the content, if the content got left in the blob when loading this script
+   */
+  private transient volatile String blob;
+
   @DataBoundConstructor
   public PowerShellConfig(String id, String name, String comment, String content, List<Arg> args) {
-      super(id, name, comment, content);
+      super(id, name, comment, ScriptBlobStore.intern(content));
 
       if (args != null) {
           List<Arg> filteredArgs = new ArrayList<PowerShellConfig.Arg>();
@@ -36,6 +51,48 @@ public class PowerShellConfig extends Config {
       }
   }
 
+  /**
+   * @return the time in seconds this script may run before it gets killed, 0 for no timeout
+   */
+  public int getTimeout() {
+      return timeout;
+  }
+
+  @DataBoundSetter
+  public void setTimeout(int timeout) {
+      this.timeout = Math.max(timeout, 0);
+  }
+
+  /**
+   * @return the settings of the long-lived PowerShell hosts executing this script, <code>null</code> to start a new PowerShell for every execution
+   */
+  public PowerShellHost getHost() {
+      return host;
+  }
+
+  @DataBoundSetter
+  public void setHost(PowerShellHost host) {
+      this.host = host;
+  }
+
+    /**
+     * @return the content of this script, read from its blob if it is not kept in memory
+     */
+    public String getBody() {
+        return ScriptBodies.of(this);
+    }
+
+    @CheckForNull
+    @Override
+    public String getBlob() {
+        return blob;
+    }
+
+    @Override
+    public void setBlob(@NonNull String blob) {
+        this.blob = blob;
+    }
+
     @Override
     public ConfigProvider getDescriptor() {
         return Jenkins.get().getDescriptorByType(PowerShellConfigProvider.class);
@@ -62,6 +119,14 @@ public class PowerShellConfig extends Config {
           return ContentType.DefinedType.HTML;
       }
 
+      /**
+       * Supplies the content through {@link ScriptBodies}, it might not be kept in memory.
+       */
+      @Override
+      public String supplyContent(@NonNull Config configFile, Run<?, ?> build, FilePath workDir, TaskListener listener, @NonNull List<String> tempFiles) throws IOException {
+          return ScriptBodies.of(configFile);
+      }
+
       @Override
       public String getDisplayName() {
           return Messages.powershell_buildstep_provider_name();
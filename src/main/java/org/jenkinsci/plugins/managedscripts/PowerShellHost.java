@@ -0,0 +1,65 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Util;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+import java.util.regex.Pattern;
+
+/**
+ * Opts a PowerShell script into the execution by long-lived PowerShell hosts, see {@link InterpreterPool}.
+ * <p>
+ * Every execution host keeps up to {@link #getPoolSize()} started hosts per executable, each script runs in a fresh runspace of a
+ * host. A host is replaced by a fresh one after {@link #getMaxUses()} executions or as soon as it fails. The runspaces of a host
+ * share its process, so a host is also replaced after a script which loads types or assemblies, see {@link #loadsTypes(String)}.
+ */
+public class PowerShellHost {
+
+    /**
+     * default executable of the hosts, <code>pwsh</code> for PowerShell 7 (e.g. on Linux agents)
+     */
+    public static final String DEFAULT_EXECUTABLE = "powershell.exe";
+
+    /**
+     * the commands loading types or assemblies into the process of the host, they would be seen by the following scripts
+     */
+    private static final Pattern LOADS_TYPES = Pattern.compile(
+            "\\bAdd-Type\\b|\\[(System\\.)?Reflection\\.Assembly\\]::Load|\\bImport-Module\\b|\\busing\\s+(assembly|module)\\b", Pattern.CASE_INSENSITIVE);
+
+    private final String executable;
+    private final int poolSize;
+    private final int maxUses;
+
+    /**
+     * @param executable the PowerShell executable, empty for the default
+     * @param poolSize   the number of hosts kept per execution host, 0 for the default
+     * @param maxUses    the number of executions after which a host gets replaced, 0 for the default
+     */
+    @DataBoundConstructor
+    public PowerShellHost(String executable, int poolSize, int maxUses) {
+        String e = Util.fixEmptyAndTrim(executable);
+        this.executable = e != null ? e : DEFAULT_EXECUTABLE;
+        this.poolSize = poolSize > 0 ? poolSize : WarmWorkers.DEFAULT_POOL_SIZE;
+        this.maxUses = maxUses > 0 ? maxUses : WarmWorkers.DEFAULT_MAX_USES;
+    }
+
+    public String getExecutable() {
+        return executable;
+    }
+
+    public int getPoolSize() {
+        return poolSize;
+    }
+
+    public int getMaxUses() {
+        return maxUses;
+    }
+
+    /**
+     * @param content the content of a script
+     * @return whether the script might load types or assemblies, which can't be unloaded from the process of a host
+     */
+    static boolean loadsTypes(@NonNull String content) {
+        return LOADS_TYPES.matcher(content).find();
+    }
+}
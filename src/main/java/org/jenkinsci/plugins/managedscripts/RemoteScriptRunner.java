@@ -0,0 +1,364 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.Proc;
+import hudson.model.TaskListener;
+import hudson.remoting.RemoteOutputStream;
+import hudson.remoting.VirtualChannel;
+import hudson.util.StreamTaskListener;
+import jenkins.MasterToSlaveFileCallable;
+import jenkins.util.SystemProperties;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Serializable;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * Executes managed scripts on the execution host in a single round trip.
+ * <p>
+ * Writes the scripts not read from stdin into the {@link ScriptCache} of the execution host unless they are cached already (e.g.
+ * pushed by the {@link ScriptDistributor}), into temporary files in the working directory if there is no cache. Launches them
+ * one after the other until the first one fails, streams their output back and deletes the temporary files, all within one call.
+ * The content of a script known to be cached is not sent along, only its digest. Failures to delete a temporary file are
+ * reported to the build log by the execution host. Compared to providing the script, launching it
+ * and waiting for it through separate calls, this saves several round trips per script on distant agents.
+ * <p>
+ * The scripts are launched by a local launcher on the execution host, so this is only used if the launcher of the build is not
+ * decorated (e.g. by a build wrapper). Timeouts are enforced by {@link ScriptTimeout} on the execution host, just like for the
+ * scripts launched through separate calls. A script found in the cache is only used if its content matches the digest of the job.
+ */
+final class RemoteScriptRunner extends MasterToSlaveFileCallable<RemoteScriptRunner.Results> {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * allows to fall back to providing, launching and cleaning up a script through separate calls
+     */
+    static boolean DISABLED = SystemProperties.getBoolean(RemoteScriptRunner.class.getName() + ".disabled");
+
+    /**
+     * the scripts known to be in the script cache of the execution hosts by channel, a reconnected node starts over
+     */
+    private static final Map<VirtualChannel, Set<String>> KNOWN = new WeakHashMap<VirtualChannel, Set<String>>();
+
+    private final ArrayList<Job> jobs;
+    private final EnvVars env;
+    private final HashMap<String, String> cookie;
+    private final long maxCacheSize = ScriptCache.MAX_SIZE;
+    private final OutputStream out;
+
+    /**
+     * @param jobs     the scripts to execute in the given order
+     * @param env      the environment of the scripts, applied on top of the environment of the execution host
+     * @param cookie   the environment variables identifying the processes of the build, listed when a script times out
+     * @param listener the listener to stream the output to
+     */
+    RemoteScriptRunner(@NonNull List<Job> jobs, @NonNull EnvVars env, @NonNull Map<String, String> cookie, @NonNull TaskListener listener) {
+        this.jobs = new ArrayList<Job>(jobs);
+        this.env = env;
+        this.cookie = new HashMap<String, String>(cookie);
+        this.out = new RemoteOutputStream(listener.getLogger());
+    }
+
+    /**
+     * @param launcher the launcher of the build
+     * @return whether scripts can be executed by this runner instead of the given launcher
+     */
+    static boolean supports(@NonNull Launcher launcher) {
+        return !DISABLED && (launcher.getClass() == Launcher.RemoteLauncher.class || launcher.getClass() == Launcher.LocalLauncher.class);
+    }
+
+    /**
+     * Executes the scripts on the execution host of the given working directory. The content of a script known to be in the
+     * {@link ScriptCache} of the execution host is not sent along, only its digest. If it got evicted meanwhile, the scripts are
+     * sent again with their contents.
+     *
+     * @param workingDir the working directory of the scripts
+     * @param jobs       the scripts to execute in the given order
+     * @param env        the environment of the scripts, applied on top of the environment of the execution host
+     * @param cookie     the environment variables identifying the processes of the build, listed when a script times out
+     * @param listener   the listener to stream the output to
+     * @return the results
+     */
+    @NonNull
+    static Results run(@NonNull FilePath workingDir, @NonNull List<Job> jobs, @NonNull EnvVars env, @NonNull Map<String, String> cookie,
+            @NonNull TaskListener listener) throws IOException, InterruptedException {
+        Set<String> known = known(workingDir.getChannel());
+        List<Job> digests = new ArrayList<Job>(jobs.size());
+        for (Job job : jobs) {
+            if (!job.stdin && job.cached != null && known.contains(job.cached)) {
+                digests.add(job.withoutContent());
+            } else {
+                digests.add(job);
+            }
+        }
+        Results results = workingDir.act(new RemoteScriptRunner(digests, env, cookie, listener));
+        if (results.missing) {
+            known.clear();
+            results = workingDir.act(new RemoteScriptRunner(jobs, env, cookie, listener));
+        }
+        for (int i = 0; i < jobs.size(); i++) {
+            if (results.cached[i]) {
+                known.add(jobs.get(i).cached);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Records a script put into the {@link ScriptCache} of an execution host by other means, e.g. by the {@link ScriptDistributor},
+     * so its content is not sent along by the next execution.
+     *
+     * @param channel the channel of the execution host
+     * @param path    the path of the cached script
+     */
+    static void cached(@CheckForNull VirtualChannel channel, @NonNull String path) {
+        if (channel != null) {
+            known(channel).add(path);
+        }
+    }
+
+    /**
+     * @return the paths of the scripts known to be cached on the execution host of the given channel
+     */
+    private static Set<String> known(@CheckForNull VirtualChannel channel) {
+        if (channel == null) {
+            // nothing is cached for an offline node, not worth remembering
+            return new HashSet<String>();
+        }
+        synchronized (KNOWN) {
+            Set<String> known = KNOWN.get(channel);
+            if (known == null) {
+                known = Collections.synchronizedSet(new HashSet<String>());
+                KNOWN.put(channel, known);
+            }
+            return known;
+        }
+    }
+
+    public Results invoke(File dir, VirtualChannel channel) throws IOException, InterruptedException {
+        // same encoding as FilePath.createTextTempFile
+        Charset charset = Charset.defaultCharset();
+        PrintStream logger = new PrintStream(out, true, charset.name());
+        TaskListener listener = new StreamTaskListener(logger, charset);
+        Launcher launcher = new Launcher.LocalLauncher(listener);
+        Results results = new Results(jobs.size());
+        // by digest
+        Map<String, File> scripts = new HashMap<String, File>();
+        List<File> temporary = new ArrayList<File>();
+        try {
+            for (int i = 0; i < jobs.size(); i++) {
+                Job job = jobs.get(i);
+                if (job.stdin) {
+                    continue;
+                }
+                File script = scripts.get(job.digest);
+                if (script == null && job.cached != null) {
+                    File cached = new File(job.cached);
+                    // a truncated or modified file is not used, marked as recently used otherwise so the cache does not evict it
+                    if (ScriptCache.isIntact(cached) && cached.setLastModified(System.currentTimeMillis())) {
+                        script = cached;
+                    } else if (job.content != null) {
+                        try {
+                            ScriptCache.store(cached.getParentFile(), cached.getName(), job.content, maxCacheSize);
+                            script = cached;
+                        } catch (IOException e) {
+                            logger.println("Cannot write the script into the script cache, using a temporary script file: " + e.getMessage());
+                        }
+                    }
+                }
+                if (script == null) {
+                    if (job.content == null) {
+                        // evicted since the last execution, nothing got executed
+                        results.missing = true;
+                        return results;
+                    }
+                    script = File.createTempFile("build_step_template", job.extension, dir);
+                    temporary.add(script);
+                    try (Writer w = new OutputStreamWriter(Files.newOutputStream(script.toPath()), charset)) {
+                        w.write(job.content);
+                    }
+                }
+                scripts.put(job.digest, script);
+                results.cached[i] = !temporary.contains(script);
+            }
+            for (int i = 0; i < jobs.size(); i++) {
+                Job job = jobs.get(i);
+                List<String> cmd = new ArrayList<String>(job.interpreter);
+                if (!job.stdin) {
+                    cmd.add(scripts.get(job.digest).getPath());
+                }
+                cmd.addAll(job.args);
+                if (job.header != null) {
+                    logger.println(job.header);
+                }
+                long start = System.nanoTime();
+                int r;
+                try (OutputLimit.LimitedOutputStream limited = job.limit != null ? job.limit.limit(logger) : null) {
+                    OutputStream o = limited != null ? limited : logger;
+                    Launcher.ProcStarter starter = launcher.launch().cmds(cmd).envs(env).stdout(o).stderr(o).pwd(dir);
+                    if (job.stdin) {
+                        starter.stdin(new ByteArrayInputStream(job.content.getBytes(charset)));
+                    }
+                    long launchStart = System.nanoTime();
+                    Proc proc = starter.start();
+                    results.launchNanos[i] = System.nanoTime() - launchStart;
+                    r = ScriptTimeout.join(proc, job.timeout, FilePath.localChannel, cookie, listener);
+                }
+                results.exitCodes[i] = r;
+                results.nanos[i] = System.nanoTime() - start;
+                results.executed = i + 1;
+                if (r != 0) {
+                    break;
+                }
+            }
+        } finally {
+            for (File script : temporary) {
+                if (script.exists() && !script.delete()) {
+                    logger.println("Cannot remove temporary script file '" + script + "'");
+                }
+            }
+            logger.flush();
+        }
+        return results;
+    }
+
+    /**
+     * One script to execute.
+     */
+    static final class Job implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final String header;
+        /**
+         * identical contents are the same instance, so they are transferred only once, <code>null</code> if only the digest is sent
+         */
+        private final String content;
+        private final String digest;
+        private final String extension;
+        private final ArrayList<String> interpreter;
+        private final ArrayList<String> args;
+        private final OutputLimit limit;
+        private final int timeout;
+        private final boolean stdin;
+        private String cached;
+
+        /**
+         * @param header      the line to write to the build log before the script is executed, if any
+         * @param content     the script content
+         * @param extension   the file extension required by the interpreter
+         * @param interpreter the interpreter followed by its flags, the path of the script gets appended unless it is read from stdin
+         * @param args        the expanded arguments
+         * @param limit       the limit of the output, if any
+         * @param timeout     the time in seconds the script may run, 0 for no timeout
+         * @param stdin       whether the interpreter reads the script from stdin instead of a file
+         */
+        Job(@CheckForNull String header, @NonNull String content, @NonNull String extension, @NonNull List<String> interpreter, @NonNull List<String> args,
+                @CheckForNull OutputLimit limit, int timeout, boolean stdin) {
+            this.header = header;
+            this.content = content;
+            this.digest = ScriptBlobStore.hash(content);
+            this.extension = extension;
+            this.interpreter = new ArrayList<String>(interpreter);
+            this.args = new ArrayList<String>(args);
+            this.limit = limit;
+            this.timeout = timeout;
+            this.stdin = stdin;
+        }
+
+        private Job(Job job) {
+            this.header = job.header;
+            this.content = null;
+            this.digest = job.digest;
+            this.extension = job.extension;
+            this.interpreter = job.interpreter;
+            this.args = job.args;
+            this.limit = job.limit;
+            this.timeout = job.timeout;
+            this.stdin = job.stdin;
+            this.cached = job.cached;
+        }
+
+        /**
+         * @return this job without its content, to be used if the script is in the cache of the execution host
+         */
+        Job withoutContent() {
+            return new Job(this);
+        }
+
+        /**
+         * @param cached the path of the script in the {@link ScriptCache} of the execution host, used instead of a temporary file if
+         *               it exists there
+         * @return this job
+         */
+        Job cached(@CheckForNull FilePath cached) {
+            this.cached = cached != null ? cached.getRemote() : null;
+            return this;
+        }
+    }
+
+    /**
+     * The exit codes and durations of the executed scripts.
+     */
+    static final class Results implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final int[] exitCodes;
+        private final long[] nanos;
+        private final long[] launchNanos;
+        private final boolean[] cached;
+        private int executed;
+        private boolean missing;
+
+        Results(int jobs) {
+            exitCodes = new int[jobs];
+            nanos = new long[jobs];
+            launchNanos = new long[jobs];
+            cached = new boolean[jobs];
+        }
+
+        /**
+         * @return the number of scripts executed, the last one failed if not all were executed
+         */
+        int getExecuted() {
+            return executed;
+        }
+
+        int getExitCode(int job) {
+            return exitCodes[job];
+        }
+
+        /**
+         * @return the duration of the execution of a script on the execution host in nanoseconds
+         */
+        long getNanos(int job) {
+            return nanos[job];
+        }
+
+        /**
+         * @return the time it took to start the process of a script on the execution host in nanoseconds
+         */
+        long getLaunchNanos(int job) {
+            return launchNanos[job];
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.AbortException;
+import hudson.FilePath;
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
+import hudson.model.ItemGroup;
+import hudson.model.Project;
+import hudson.tasks.Builder;
+import jenkins.util.SystemProperties;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Ships the scripts of consecutive {@link ScriptBuildStep}s of a freestyle project to the execution host in one go.
+ * <p>
+ * When the first step of a sequence is performed, the scripts of all steps of the sequence are put into the {@link ScriptCache}
+ * of the execution host with two calls, whatever the number of steps. Every step is still executed on its own, at its turn and
+ * with its own environment, and finds its script already cached: the log, the builders executed in between and the result are
+ * the same as without batching, only the transfers are saved. The scripts shipped are recorded for the {@link RemoteScriptRunner},
+ * the steps executed through it do not send their content again either.
+ * <p>
+ * Steps with argument sets, with warm interpreter workers, memoized steps or steps whose script can't be resolved end a sequence.
+ * The scripts of the steps piping them into the interpreter through stdin are not shipped. Nothing is shipped ahead if the script
+ * cache is disabled.
+ */
+final class ScriptBatch {
+
+    private static final Logger LOGGER = Logger.getLogger(ScriptBatch.class.getName());
+
+    /**
+     * allows to ship the scripts of consecutive managed script steps in one go
+     */
+    static boolean ENABLED = SystemProperties.getBoolean(ScriptBatch.class.getName() + ".enabled");
+
+    private ScriptBatch() {
+    }
+
+    /**
+     * Ships the scripts of the sequence of managed script steps starting with the given step, nothing is done for the other steps
+     * of a sequence. Failures are only logged, every step provides its own script anyway.
+     *
+     * @param step     the step about to be performed
+     * @param build    the build
+     * @param listener the listener of the build
+     */
+    static void prepare(@NonNull ScriptBuildStep step, @NonNull AbstractBuild<?, ?> build, @NonNull BuildListener listener) {
+        if (!ENABLED || !(build.getProject() instanceof Project)) {
+            return;
+        }
+        FilePath workingDir = build.getWorkspace();
+        if (workingDir == null) {
+            return;
+        }
+        List<Builder> builders = ((Project<?, ?>) build.getProject()).getBuilders();
+        int index = indexOf(builders, step);
+        if (index < 0 || index > 0 && batchable(build, builders.get(index - 1)) != null) {
+            // not the first step of a sequence, its script got shipped already
+            return;
+        }
+
+        ItemGroup<?> group = build.getParent().getParent();
+        List<String> contents = new ArrayList<String>();
+        for (int i = index; i < builders.size(); i++) {
+            ScriptConfig config = batchable(build, builders.get(i));
+            if (config == null) {
+                break;
+            }
+            if (readsStdin((ScriptBuildStep) builders.get(i), config, workingDir)) {
+                // piped into the interpreter as done by the step, no script file is used
+                continue;
+            }
+            try {
+                contents.add(ScriptBundles.of(group, config));
+            } catch (AbortException e) {
+                // reported by the step itself
+                break;
+            }
+        }
+        if (contents.size() < 2) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        try {
+            List<FilePath> cached = ScriptCache.provideAll(workingDir, contents, ".sh", listener);
+            if (cached != null) {
+                ScriptMetrics.record(step.getBuildStepId(), ScriptMetrics.Phase.TRANSFER, start);
+                for (FilePath script : cached) {
+                    RemoteScriptRunner.cached(script.getChannel(), script.getRemote());
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Failed to ship the scripts of " + contents.size() + " consecutive managed script steps of " + build, e);
+            listener.getLogger().println("failed to ship the scripts of the following managed script steps in one go: " + e.getMessage());
+        } catch (InterruptedException e) {
+            // the step itself gets aborted
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return whether the step reads its script from stdin, the same decision as made by {@link ScriptBuildStep#perform}
+     */
+    private static boolean readsStdin(ScriptBuildStep step, ScriptConfig config, FilePath workingDir) {
+        return (step.isStdin() || config.isStdin()) && config.getLaunchPlan().toStdinArgumentList(workingDir.getChannel()) != null;
+    }
+
+    private static int indexOf(List<Builder> builders, ScriptBuildStep step) {
+        for (int i = 0; i < builders.size(); i++) {
+            if (builders.get(i) == step) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the script of the given builder if it can be shipped as part of a sequence, <code>null</code> otherwise
+     */
+    @CheckForNull
+    private static ScriptConfig batchable(AbstractBuild<?, ?> build, Builder builder) {
+        if (!(builder instanceof ScriptBuildStep)) {
+            return null;
+        }
+        ScriptBuildStep step = (ScriptBuildStep) builder;
+        if (!step.getArgSets().isEmpty()) {
+            return null;
+        }
+        ScriptConfig config = ConfigIndex.getByIdOrNull(build, step.getBuildStepId(), ScriptConfig.class);
+        return config != null && config.getWarmWorkers() == null && config.getMemoization() == null ? config : null;
+    }
+}
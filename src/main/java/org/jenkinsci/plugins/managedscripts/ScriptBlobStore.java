@@ -0,0 +1,409 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import com.thoughtworks.xstream.converters.ConversionException;
+import com.thoughtworks.xstream.converters.Converter;
+import com.thoughtworks.xstream.converters.MarshallingContext;
+import com.thoughtworks.xstream.converters.UnmarshallingContext;
+import com.thoughtworks.xstream.io.HierarchicalStreamReader;
+import com.thoughtworks.xstream.io.HierarchicalStreamWriter;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Util;
+import hudson.model.Item;
+import hudson.model.ItemGroup;
+import hudson.util.AtomicFileWriter;
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+import org.apache.commons.io.FileUtils;
+import org.jenkinsci.lib.configprovider.ConfigProvider;
+import org.jenkinsci.lib.configprovider.model.Config;
+import org.jenkinsci.plugins.configfiles.ConfigFiles;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Content addressed storage of the managed script contents.
+ * <p>
+ * In memory, identical contents are shared by all configs, no matter how many folders hold a copy of the same script, and their
+ * digest is computed only once. On disk, the {@link ShardedScriptStorage} stores every distinct content once as a blob named by
+ * its SHA-256 digest, the script files only reference it. Blobs no longer referenced by any script file on disk get collected in
+ * the background once the global config store got saved.
+ */
+public final class ScriptBlobStore {
+
+    private static final Logger LOGGER = Logger.getLogger(ScriptBlobStore.class.getName());
+
+    static final String BLOB_DIR = "blobs";
+
+    /**
+     * the canonical instance of every content in use, only weakly referenced
+     */
+    private static final Map<String, WeakReference<String>> CANONICAL = new WeakHashMap<String, WeakReference<String>>();
+
+    /**
+     * the digests computed so far, by content
+     */
+    private static final Map<String, String> DIGESTS = Collections.synchronizedMap(new WeakHashMap<String, String>());
+
+    /**
+     * the last storage report, <code>null</code> until computed the first time
+     */
+    private static volatile Report report;
+
+    /**
+     * whether a config store changed since the last storage report got computed
+     */
+    private static volatile boolean reportOutdated = true;
+
+    private static final AtomicBoolean REPORTING = new AtomicBoolean();
+
+    private ScriptBlobStore() {
+    }
+
+    /**
+     * @param content the content of a script
+     * @return the canonical instance of the given content
+     */
+    public static String intern(@CheckForNull String content) {
+        if (content == null) {
+            return null;
+        }
+        synchronized (CANONICAL) {
+            WeakReference<String> ref = CANONICAL.get(content);
+            String canonical = ref != null ? ref.get() : null;
+            if (canonical != null) {
+                return canonical;
+            }
+            CANONICAL.put(content, new WeakReference<String>(content));
+            return content;
+        }
+    }
+
+    /**
+     * Gets the SHA-256 digest of a content, it is computed only once for each content in use. The digest names the blob of the
+     * content and its file in the {@link ScriptCache} of the nodes, it is computed on the nodes as well.
+     *
+     * @param content the content
+     * @return the digest as hex string
+     */
+    @NonNull
+    public static String hash(@NonNull String content) {
+        String digest = DIGESTS.get(content);
+        if (digest == null) {
+            try {
+                digest = Util.toHexString(MessageDigest.getInstance("SHA-256").digest(content.getBytes(StandardCharsets.UTF_8)));
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("SHA-256 not supported by this JVM", e);
+            }
+            DIGESTS.put(content, digest);
+        }
+        return digest;
+    }
+
+    private static File getBlobDir() {
+        return new File(new File(Jenkins.get().getRootDir(), ShardedScriptStorage.DIR), BLOB_DIR);
+    }
+
+    private static File getBlob(String digest) {
+        return new File(getBlobDir(), digest + ".txt");
+    }
+
+    /**
+     * Stores a content as the blob referenced by a script file, unless the blob exists already.
+     *
+     * @param content the content
+     * @return the digest of the blob
+     */
+    @NonNull
+    static String write(@NonNull String content) throws IOException {
+        String digest = hash(content);
+        File blob = getBlob(digest);
+        if (!blob.exists()) {
+            blob.getParentFile().mkdirs();
+            AtomicFileWriter writer = new AtomicFileWriter(blob.toPath(), StandardCharsets.UTF_8);
+            try {
+                writer.write(content);
+                writer.commit();
+            } finally {
+                writer.abort();
+            }
+        }
+        return digest;
+    }
+
+    /**
+     * @param digest the digest of a blob
+     * @return whether the blob exists
+     */
+    static boolean exists(@NonNull String digest) {
+        return getBlob(digest).isFile();
+    }
+
+    /**
+     * Reads a blob.
+     *
+     * @param digest the digest of the blob
+     * @return the content or <code>null</code> if there is no such blob
+     */
+    @CheckForNull
+    static String read(@NonNull String digest) throws IOException {
+        File blob = getBlob(digest);
+        if (!blob.exists()) {
+            return null;
+        }
+        return intern(FileUtils.readFileToString(blob, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Deletes the blobs not referenced by any script file, see {@link ShardedScriptStorage#collectGarbage()}.
+     *
+     * @param referenced the digests of the blobs referenced by the script files on disk
+     */
+    static void collectGarbage(@NonNull Set<String> referenced) {
+        File[] blobs = getBlobDir().listFiles();
+        if (blobs == null) {
+            return;
+        }
+        for (File blob : blobs) {
+            String name = blob.getName();
+            if (name.endsWith(".txt") && !referenced.contains(name.substring(0, name.length() - 4))) {
+                LOGGER.log(Level.FINE, "deleting orphaned blob {0}", name);
+                if (!blob.delete()) {
+                    LOGGER.log(Level.WARNING, "Failed to delete the orphaned blob {0}", blob);
+                }
+            }
+        }
+    }
+
+    /**
+     * Converts the content of a config. Within the script files of the {@link ShardedScriptStorage} the content is written as a
+     * reference to its blob, which has to be written first, and is left in the blob when reading, see {@link ScriptBodies}.
+     * Contents written as text are read as well, as the canonical instance.
+     */
+    static final class ContentConverter implements Converter {
+        private static final String BLOB = "blob";
+
+        private final boolean blobs;
+
+        /**
+         * @param blobs whether the content gets written as a reference to its blob
+         */
+        ContentConverter(boolean blobs) {
+            this.blobs = blobs;
+        }
+
+        public boolean canConvert(Class type) {
+            return type == String.class;
+        }
+
+        public void marshal(Object source, HierarchicalStreamWriter writer, MarshallingContext context) {
+            String content = (String) source;
+            if (blobs) {
+                writer.addAttribute(BLOB, hash(content));
+            } else {
+                writer.setValue(content);
+            }
+        }
+
+        public Object unmarshal(HierarchicalStreamReader reader, UnmarshallingContext context) {
+            String digest = reader.getAttribute(BLOB);
+            if (digest == null) {
+                return intern(reader.getValue());
+            }
+            if (blobs) {
+                // read on demand
+                return null;
+            }
+            String content;
+            try {
+                content = read(digest);
+            } catch (IOException e) {
+                throw new ConversionException("Failed to read the blob " + digest, e);
+            }
+            if (content == null) {
+                throw new ConversionException("The blob " + digest + " is missing");
+            }
+            return content;
+        }
+    }
+
+    /**
+     * Gets the last report of the space used by the managed scripts. Counting requires to list the configs of every folder, so the
+     * report is computed in the background: on the first call and on the first call after a config store changed.
+     *
+     * @return the report, <code>null</code> while the first one gets computed
+     */
+    @CheckForNull
+    public static Report getReport() {
+        if (reportOutdated && REPORTING.compareAndSet(false, true)) {
+            reportOutdated = false;
+            Timer.get().submit(new Runnable() {
+                public void run() {
+                    try {
+                        report = computeReport();
+                    } catch (RuntimeException e) {
+                        reportOutdated = true;
+                        LOGGER.log(Level.WARNING, "Failed to count the managed scripts", e);
+                    } finally {
+                        REPORTING.set(false);
+                    }
+                }
+            });
+        }
+        return report;
+    }
+
+    /**
+     * Marks the storage report as outdated, called when a config store changed.
+     */
+    static void outdateReport() {
+        reportOutdated = true;
+    }
+
+    /**
+     * Counts the managed scripts of all config stores and their distinct contents.
+     */
+    private static Report computeReport() {
+        Map<Config, Boolean> configs = new IdentityHashMap<Config, Boolean>();
+        Class<?>[] providers = { ScriptConfig.ScriptConfigProvider.class, WinBatchConfig.WinBatchConfigProvider.class, PowerShellConfig.PowerShellConfigProvider.class };
+        List<ItemGroup<?>> groups = new ArrayList<ItemGroup<?>>();
+        for (Item item : Jenkins.get().allItems(Item.class)) {
+            if (item instanceof ItemGroup) {
+                groups.add((ItemGroup<?>) item);
+            }
+        }
+        for (Class<?> provider : providers) {
+            collect(configs, ConfigFiles.getConfigsInContext(null, provider.asSubclass(ConfigProvider.class)));
+            for (ItemGroup<?> group : groups) {
+                collect(configs, ConfigFiles.getConfigsInContext(group, provider.asSubclass(ConfigProvider.class)));
+            }
+        }
+
+        Report report = new Report();
+        Set<String> distinct = new HashSet<String>();
+        for (Config config : configs.keySet()) {
+            String content = config.content;
+            String blob = config instanceof ScriptBodies.Deferred ? ((ScriptBodies.Deferred) config).getBlob() : null;
+            if (content == null && blob != null) {
+                // not through the cache of the contents in use
+                try {
+                    content = read(blob);
+                } catch (IOException e) {
+                    LOGGER.log(Level.FINE, "Failed to read the blob " + blob, e);
+                }
+            }
+            if (content == null) {
+                continue;
+            }
+            String digest = hash(content);
+            long size = content.length();
+            report.scripts++;
+            report.totalSize += size;
+            if (distinct.add(digest)) {
+                report.distinctContents++;
+                report.distinctSize += size;
+            }
+        }
+        File[] blobs = getBlobDir().listFiles();
+        if (blobs != null) {
+            for (File blob : blobs) {
+                report.blobs++;
+                report.blobSize += blob.length();
+            }
+        }
+        return report;
+    }
+
+    private static void collect(Map<Config, Boolean> configs, Collection<? extends Config> found) {
+        for (Config config : found) {
+            configs.put(config, Boolean.TRUE);
+        }
+    }
+
+    /**
+     * Space used by the managed scripts, with and without deduplication.
+     */
+    public static final class Report {
+        private final long computed = System.currentTimeMillis();
+        private int scripts;
+        private int distinctContents;
+        private long totalSize;
+        private long distinctSize;
+        private int blobs;
+        private long blobSize;
+
+        /**
+         * @return when the report got computed
+         */
+        public Date getComputed() {
+            return new Date(computed);
+        }
+
+        /**
+         * @return the number of managed scripts in all config stores
+         */
+        public int getScripts() {
+            return scripts;
+        }
+
+        /**
+         * @return the number of distinct contents of these scripts
+         */
+        public int getDistinctContents() {
+            return distinctContents;
+        }
+
+        /**
+         * @return the size of the contents of all scripts, in characters
+         */
+        public long getTotalSize() {
+            return totalSize;
+        }
+
+        /**
+         * @return the size of the distinct contents, in characters
+         */
+        public long getDistinctSize() {
+            return distinctSize;
+        }
+
+        /**
+         * @return the size saved by sharing identical contents, in characters
+         */
+        public long getSavedSize() {
+            return totalSize - distinctSize;
+        }
+
+        /**
+         * @return the number of blobs on disk
+         */
+        public int getBlobs() {
+            return blobs;
+        }
+
+        /**
+         * @return the size of the blobs on disk, in bytes
+         */
+        public long getBlobSize() {
+            return blobSize;
+        }
+    }
+}
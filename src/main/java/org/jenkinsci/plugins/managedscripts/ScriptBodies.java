@@ -0,0 +1,135 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import jenkins.util.SystemProperties;
+import org.jenkinsci.lib.configprovider.model.Config;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Access to the content of the managed scripts.
+ * <p>
+ * The {@link ShardedScriptStorage} loads the scripts of the global config store without their content, a script only keeps the
+ * digest of the blob holding it, see {@link Deferred}. The content is read from the {@link ScriptBlobStore} on demand and kept in
+ * a least recently used cache by digest, bounded by the total number of characters. {@link Config#content} is only filled in
+ * for the code reading the field itself, see {@link #materialize(Config)}.
+ */
+public final class ScriptBodies {
+
+    /**
+     * maximum number of characters kept in the cache
+     */
+    static long MAX_SIZE = SystemProperties.getLong(ScriptBodies.class.getName() + ".maxSize", 16L * 1024 * 1024);
+
+    private static final LinkedHashMap<String, String> CACHE = new LinkedHashMap<String, String>(16, 0.75f, true);
+
+    private static long size;
+
+    private static final Field CONTENT;
+
+    static {
+        try {
+            CONTENT = Config.class.getField("content");
+            CONTENT.setAccessible(true);
+        } catch (NoSuchFieldException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private ScriptBodies() {
+    }
+
+    /**
+     * Gets the content of a managed script, always use this instead of {@link Config#content}.
+     *
+     * @param config the script
+     * @return the content of the script
+     * @throws IllegalStateException if the content is neither kept in memory nor readable from its blob
+     */
+    @NonNull
+    public static String of(@NonNull Config config) {
+        String content = config.content;
+        if (content != null) {
+            return content;
+        }
+        String blob = config instanceof Deferred ? ((Deferred) config).getBlob() : null;
+        if (blob == null) {
+            throw new IllegalStateException("The managed script " + config.id + " has no content");
+        }
+        synchronized (CACHE) {
+            content = CACHE.get(blob);
+            if (content != null) {
+                return content;
+            }
+        }
+        try {
+            content = ScriptBlobStore.read(blob);
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to read the content of the managed script " + config.id, e);
+        }
+        if (content == null) {
+            throw new IllegalStateException("The blob " + blob + " of the managed script " + config.id + " is missing");
+        }
+        put(blob, content);
+        return content;
+    }
+
+    /**
+     * Fills in {@link Config#content} of a script loaded without it, for the code reading the field itself: the inline storage
+     * of the global config store and the script files being rewritten. The content stays in memory as long as the config does.
+     *
+     * @param config the script
+     * @throws IllegalStateException if the content cannot be read from its blob
+     */
+    static void materialize(@NonNull Config config) {
+        if (config.content != null) {
+            return;
+        }
+        String content = of(config);
+        try {
+            CONTENT.set(config, content);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException("Failed to set the content of the managed script " + config.id, e);
+        }
+    }
+
+    private static void put(String blob, String content) {
+        synchronized (CACHE) {
+            String previous = CACHE.put(blob, content);
+            size += content.length() - (previous != null ? previous.length() : 0);
+            for (Iterator<Map.Entry<String, String>> it = CACHE.entrySet().iterator(); it.hasNext() && size > MAX_SIZE;) {
+                Map.Entry<String, String> eldest = it.next();
+                if (eldest.getKey().equals(blob)) {
+                    // always keep what was just read
+                    continue;
+                }
+                size -= eldest.getValue().length();
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * A managed script which might leave its content in its blob until it is needed.
+     */
+    public interface Deferred {
+
+        /**
+         * @return the digest of the blob holding the content, <code>null</code> if the content got loaded with the script
+         */
+        @CheckForNull
+        String getBlob();
+
+        /**
+         * Called by the {@link ShardedScriptStorage} when it loads the script without its content.
+         *
+         * @param blob the digest of the blob holding the content
+         */
+        void setBlob(@NonNull String blob);
+    }
+}
@@ -4,19 +4,19 @@ import hudson.*;
 import hudson.model.*;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.Builder;
-import hudson.tasks.Shell;
 import hudson.util.ArgumentListBuilder;
 import hudson.util.FormValidation;
 import hudson.util.ListBoxModel;
 import jenkins.model.Jenkins;
 import org.jenkinsci.lib.configprovider.model.Config;
-import org.jenkinsci.plugins.configfiles.ConfigFiles;
 import org.jenkinsci.plugins.managedscripts.ScriptConfig.Arg;
 import org.jenkinsci.plugins.managedscripts.ScriptConfig.ScriptConfigProvider;
-import org.jenkinsci.plugins.tokenmacro.TokenMacro;
 import org.kohsuke.stapler.*;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
 import java.util.*;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -38,6 +38,17 @@ public class ScriptBuildStep extends Builder {
     private final String buildStepId;
     private final String[] buildStepArgs;
     private final boolean tokenized;
+    private transient ArgumentExpander argumentExpander;
+    private List<ArgSet> argSets;
+    private int parallelism;
+    private OutputLimit outputLimit;
+    private int timeout;
+    private boolean stdin;
+
+    /**
+     * default number of argument sets executed at the same time
+     */
+    public static final int DEFAULT_PARALLELISM = 4;
 
     public static class ArgValue {
         public final String arg;
@@ -48,6 +59,39 @@ public class ScriptBuildStep extends Builder {
         }
     }
 
+    /**
+     * A set of arguments the script gets executed with, in fan-out mode the script is executed once per set.
+     */
+    public static class ArgSet {
+        private final String[] args;
+        private transient ArgumentExpander argumentExpander;
+
+        @DataBoundConstructor
+        public ArgSet(ArgValue[] args) {
+            List<String> l = new ArrayList<String>();
+            if (args != null) {
+                for (ArgValue arg : args) {
+                    l.add(arg.arg);
+                }
+            }
+            this.args = l.toArray(new String[l.size()]);
+        }
+
+        public String[] getArgs() {
+            String[] a = args == null ? new String[0] : args;
+            return Arrays.copyOf(a, a.length);
+        }
+
+        private ArgumentExpander getArgumentExpander() {
+            ArgumentExpander expander = argumentExpander;
+            if (expander == null) {
+                expander = new ArgumentExpander(args);
+                argumentExpander = expander;
+            }
+            return expander;
+        }
+    }
+
     /**
      * The constructor used at form submission
      *
@@ -68,12 +112,14 @@ public class ScriptBuildStep extends Builder {
             }
         }
         this.buildStepArgs = l == null ? null : l.toArray(new String[l.size()]);
+        this.argumentExpander = new ArgumentExpander(this.buildStepArgs);
     }
 
     public ScriptBuildStep(String buildStepId, String[] buildStepArgs) {
         this.buildStepId = buildStepId;
         this.buildStepArgs = buildStepArgs == null ? new String[0] : Arrays.copyOf(buildStepArgs, buildStepArgs.length);
         this.tokenized = false;
+        this.argumentExpander = new ArgumentExpander(this.buildStepArgs);
     }
 
     public String getBuildStepId() {
@@ -89,83 +135,245 @@ public class ScriptBuildStep extends Builder {
         return tokenized;
     }
 
+    /**
+     * @return the argument sets to fan out to, empty if the script is executed once with {@link #getBuildStepArgs()}
+     */
+    public List<ArgSet> getArgSets() {
+        return argSets == null ? Collections.<ArgSet>emptyList() : Collections.unmodifiableList(argSets);
+    }
+
+    @DataBoundSetter
+    public void setArgSets(List<ArgSet> argSets) {
+        this.argSets = argSets == null || argSets.isEmpty() ? null : new ArrayList<ArgSet>(argSets);
+    }
+
+    /**
+     * @return the maximum number of argument sets executed at the same time
+     */
+    public int getParallelism() {
+        return parallelism > 0 ? parallelism : DEFAULT_PARALLELISM;
+    }
+
+    @DataBoundSetter
+    public void setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * @return the limit of the output written to the build log, overrides the limit of the script; <code>null</code> to use the limit of the script
+     */
+    public OutputLimit getOutputLimit() {
+        return outputLimit;
+    }
+
+    @DataBoundSetter
+    public void setOutputLimit(OutputLimit outputLimit) {
+        this.outputLimit = outputLimit;
+    }
+
+    /**
+     * @return the time in seconds the script may run before it gets killed, overrides the timeout of the script; 0 to use the timeout of the script
+     */
+    public int getTimeout() {
+        return timeout;
+    }
+
+    @DataBoundSetter
+    public void setTimeout(int timeout) {
+        this.timeout = Math.max(timeout, 0);
+    }
+
+    /**
+     * @return whether the interpreter reads the script from stdin instead of a temporary file, if it is able to; the script might request it as well
+     */
+    public boolean isStdin() {
+        return stdin;
+    }
+
+    @DataBoundSetter
+    public void setStdin(boolean stdin) {
+        this.stdin = stdin;
+    }
+
+    /**
+     * @return the expander of the arguments, classified once per instance (after being loaded from disk, on first use)
+     */
+    private ArgumentExpander getArgumentExpander() {
+        ArgumentExpander expander = argumentExpander;
+        if (expander == null) {
+            expander = new ArgumentExpander(buildStepArgs);
+            argumentExpander = expander;
+        }
+        return expander;
+    }
+
     /**
      * Perform the build step on the execution host.
      * <p>
-     * Generates a temporary file and copies the content of the predefined config file (by using the buildStepId) into it. It then copies this file into the workspace directory of the execution host
-     * and executes it.
+     * Makes the content of the predefined config file (by using the buildStepId) available in the script cache of the execution host and executes it. If the
+     * execution host has no cache, the content is copied into a temporary file which gets deleted after the execution.
+     * <p>
+     * A single execution of a small script with an undecorated launcher is done by a {@link RemoteScriptRunner} instead, which
+     * writes, executes and deletes the script on the execution host within one call.
      */
     @Override
     public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) {
+        // the first of consecutive steps ships the scripts of all of them
+        ScriptBatch.prepare(this, build, listener);
+        long start = System.nanoTime();
+        boolean returnValue = performScript(build, launcher, listener);
+        ScriptMetrics.record(buildStepId, ScriptMetrics.Phase.TOTAL, start);
+        ScriptMetrics.result(buildStepId, returnValue);
+        return returnValue;
+    }
+
+    private boolean performScript(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) {
         boolean returnValue = true;
-        Config buildStepConfig = ConfigFiles.getByIdOrNull(build, buildStepId);
+        long lookupStart = System.nanoTime();
+        Config buildStepConfig = ConfigIndex.getByIdOrNull(build, buildStepId, Config.class);
+        ScriptMetrics.record(buildStepId, ScriptMetrics.Phase.LOOKUP, lookupStart);
         if (buildStepConfig == null) {
             listener.getLogger().println(Messages.config_does_not_exist(buildStepId));
             return false;
         }
         listener.getLogger().println("executing script '" + buildStepConfig.name + "'");
         FilePath dest = null;
+        boolean tempScript = false;
         try {
             FilePath workingDir = build.getWorkspace();
             EnvVars env = build.getEnvironment(listener);
-            String data = buildStepConfig.content;
+            // includes are resolved once per bundle, not on every execution
+            String data = ScriptBundles.of(build.getParent().getParent(), buildStepConfig);
+            ScriptDistributor.used(build, buildStepId, data, ".sh");
 
             if (workingDir != null) {
                 /*
-                 * Copying temporary file to remote execution host
+                 * Use the interpreter of the precompiled launch plan (or the default shell if there is no interpreter line)
                  */
-                dest = workingDir.createTextTempFile("build_step_template", ".sh", data, false);
-                LOGGER.log(Level.FINE, "Wrote script to " + Computer.currentComputer().getDisplayName() + ":" + dest.getRemote());
+                ScriptLaunchPlan plan = buildStepConfig instanceof ScriptConfig ? ((ScriptConfig) buildStepConfig).getLaunchPlan() : ScriptLaunchPlan.compile(data);
+                if (!plan.isDefaultShell() && LOGGER.isLoggable(Level.FINE)) {
+                    LOGGER.log(Level.FINE, "Using custom interpreter: " + Arrays.toString(plan.getInterpreter()));
+                }
+                OutputLimit limit = outputLimit != null ? outputLimit : buildStepConfig instanceof ScriptConfig ? ((ScriptConfig) buildStepConfig).getOutputLimit() : null;
+                int effectiveTimeout = ScriptTimeout.effective(timeout, buildStepConfig instanceof ScriptConfig ? ((ScriptConfig) buildStepConfig).getTimeout() : 0);
+                WarmWorkers warm = buildStepConfig instanceof ScriptConfig ? ((ScriptConfig) buildStepConfig).getWarmWorkers() : null;
+                if (warm != null && !InterpreterPool.supports(launcher, plan)) {
+                    warm = null;
+                }
+                Memoization memo = buildStepConfig instanceof ScriptConfig ? ((ScriptConfig) buildStepConfig).getMemoization() : null;
+                EnvVars cookie = build.getCharacteristicEnvVars();
+                List<ArgSet> sets = getArgSets();
+                // big scripts are better served by the script cache of the execution host
+                boolean roundTrip = sets.isEmpty() && warm == null && data.length() < ScriptCache.STREAM_THRESHOLD && RemoteScriptRunner.supports(launcher);
+                ArgumentListBuilder stdinArgs = null;
+                if (sets.isEmpty() && warm == null && (stdin || buildStepConfig instanceof ScriptConfig && ((ScriptConfig) buildStepConfig).isStdin())) {
+                    stdinArgs = plan.toStdinArgumentList(workingDir.getChannel());
+                    if (stdinArgs == null) {
+                        listener.getLogger().println("the interpreter can't read the script from stdin, using a temporary script file");
+                    }
+                }
 
+                // Add additional parameters set by user, only arguments containing macros get expanded
+                List<String> scriptArgs = sets.isEmpty() ? expandArgs(build, listener, env) : Collections.<String>emptyList();
                 /*
-                 * Analyze interpreter line (and use the desired interpreter)
+                 * Skip the script if its outputs for the same inputs are cached
                  */
-                ArgumentListBuilder args = new ArgumentListBuilder();
-                if (data.startsWith("#!")) {
-                    String interpreterLine = data.substring(2, data.indexOf("\n"));
-                    String[] interpreterElements = interpreterLine.split("\\s+");
-                    // Add interpreter to arguments list
-                    String interpreter = interpreterElements[0];
-                    args.add(interpreter);
-                    LOGGER.log(Level.FINE, "Using custom interpreter: " + interpreterLine);
-                    // Add addition parameter to arguments list
-                    for (int i = 1; i < interpreterElements.length; i++) {
-                        args.add(interpreterElements[i]);
-                    }
-                } else {
-                    // the shell executable is already configured for the Shell
-                    // task, reuse it
-                    final Shell.DescriptorImpl shellDescriptor = (Shell.DescriptorImpl) Jenkins.get().getDescriptor(Shell.class);
-                    if (shellDescriptor != null) {
-                        final String interpreter = shellDescriptor.getShellOrDefault(workingDir.getChannel());
-                        args.add(interpreter);
+                MemoCache.Lookup memoLookup = memo != null && sets.isEmpty()
+                        ? MemoCache.lookup(workingDir, build.getParent().getFullName(), memo, buildStepId, data, Arrays.asList(plan.getInterpreter()), scriptArgs, listener) : null;
+                if (memoLookup != null && memoLookup.isHit()) {
+                    return true;
+                }
+
+                if (!roundTrip && stdinArgs == null) {
+                    /*
+                     * Make the script available on the execution host, the content is only transferred if it is not cached there yet
+                     */
+                    long transferStart = System.nanoTime();
+                    dest = ScriptCache.provide(workingDir, data, ".sh", listener);
+                    if (dest == null) {
+                        dest = workingDir.createTextTempFile("build_step_template", ".sh", data, false);
+                        tempScript = true;
                     }
+                    ScriptMetrics.record(buildStepId, ScriptMetrics.Phase.TRANSFER, transferStart);
+                    LOGGER.log(Level.FINE, "Using script " + Computer.currentComputer().getDisplayName() + ":" + dest.getRemote());
                 }
 
-                args.add(dest.getRemote());
+                if (roundTrip) {
+                    /*
+                     * Write, execute and delete the script on the execution host in a single call, a cached script is not sent again
+                     */
+                    List<String> interpreter;
+                    if (stdinArgs != null) {
+                        interpreter = stdinArgs.toList();
+                    } else {
+                        interpreter = plan.toArgumentList(workingDir.getChannel(), "").toList();
+                        interpreter = interpreter.subList(0, interpreter.size() - 1);
+                    }
+                    FilePath cacheDir = ScriptCache.getCacheDir(workingDir);
+                    RemoteScriptRunner.Job job = new RemoteScriptRunner.Job(null, data, ".sh", interpreter, scriptArgs, limit, effectiveTimeout, stdinArgs != null)
+                            .cached(cacheDir != null ? cacheDir.child(ScriptBlobStore.hash(data) + ".sh") : null);
+                    long transferStart = System.nanoTime();
+                    RemoteScriptRunner.Results results = RemoteScriptRunner.run(workingDir, Collections.singletonList(job), env, cookie, listener);
+                    // the call and the script file written, as the transfer of the separate calls
+                    ScriptMetrics.recordDuration(buildStepId, ScriptMetrics.Phase.TRANSFER, System.nanoTime() - transferStart - results.getNanos(0));
+                    ScriptMetrics.recordDuration(buildStepId, ScriptMetrics.Phase.LAUNCH, results.getLaunchNanos(0));
+                    returnValue = results.getExitCode(0) == 0;
+                    if (returnValue && memoLookup != null) {
+                        memoLookup.store(workingDir, listener);
+                    }
+                } else if (sets.isEmpty()) {
+                    ArgumentListBuilder args = stdinArgs != null ? stdinArgs : plan.toArgumentList(workingDir.getChannel(), dest.getRemote());
+                    for (String arg : scriptArgs) {
+                        args.add(arg);
+                    }
 
-                // Add additional parameters set by user
-                if (buildStepArgs != null) {
-                    for (String arg : buildStepArgs) {
-                        final String expanded = TokenMacro.expandAll(build, listener, arg, false, null);
-                        if (tokenized) {
-                            args.addTokenized(expanded);
+                /*
+                 * Execute command remotely
+                 */
+                    int r;
+                    try (OutputLimit.LimitedOutputStream limited = limit != null ? limit.limit(listener.getLogger()) : null) {
+                        OutputStream out = limited != null ? limited : listener.getLogger();
+                        long launchStart = System.nanoTime();
+                        if (warm != null) {
+                            // the interpreter is already running, only the job gets dispatched
+                            r = InterpreterPool.run(buildStepId, workingDir, plan, warm, dest.getRemote(), scriptArgs, env, out, effectiveTimeout, listener);
                         } else {
-                            args.add(expanded);
+                            Launcher.ProcStarter starter = launcher.launch().cmds(args).envs(env).stderr(out).stdout(out).pwd(workingDir);
+                            if (stdinArgs != null) {
+                                // diskless: the script is piped into the interpreter, no file is written into the workspace
+                                Computer computer = workingDir.toComputer();
+                                Charset charset = computer != null ? computer.getDefaultCharset() : Charset.defaultCharset();
+                                starter.stdin(new ByteArrayInputStream(data.getBytes(charset)));
+                            }
+                            Proc proc = starter.start();
+                            ScriptMetrics.record(buildStepId, ScriptMetrics.Phase.LAUNCH, launchStart);
+                            r = ScriptTimeout.join(proc, effectiveTimeout, launcher.getChannel(), cookie, listener);
                         }
                     }
+                    returnValue = (r == 0);
+                    if (returnValue && memoLookup != null) {
+                        memoLookup.store(workingDir, listener);
+                    }
+                } else {
+                    /*
+                     * Fan out: execute the script once per argument set, concurrently
+                     */
+                    List<ArgumentListBuilder> commands = new ArrayList<ArgumentListBuilder>(sets.size());
+                    for (ArgSet set : sets) {
+                        ArgumentListBuilder args = plan.toArgumentList(workingDir.getChannel(), dest.getRemote());
+                        addArgs(args, set.getArgumentExpander().expand(build, listener, env));
+                        commands.add(args);
+                    }
+                    returnValue = ArgumentMatrix.run(launcher, commands, env, workingDir, getParallelism(), listener, limit, effectiveTimeout, cookie);
                 }
-
-            /*
-             * Execute command remotely
-             */
-                int r = launcher.launch().cmds(args).envs(env).stderr(listener.getLogger()).stdout(listener.getLogger()).pwd(workingDir).join();
-                returnValue = (r == 0);
             } else {
                 LOGGER.log(Level.SEVERE, "no workspace precent, cant run script!");
                 returnValue = false;
             }
 
+        } catch (AbortException e) {
+            listener.error(e.getMessage());
+            returnValue = false;
         } catch (IOException e) {
             Util.displayIOException(e, listener);
             e.printStackTrace(listener.fatalError("Cannot create temporary script for '" + buildStepConfig.name + "'"));
@@ -175,7 +383,7 @@ public class ScriptBuildStep extends Builder {
             returnValue = false;
         } finally {
             try {
-                if (dest != null && dest.exists()) {
+                if (tempScript && dest.exists()) {
                     dest.delete();
                 }
             } catch (Exception e) {
@@ -187,6 +395,25 @@ public class ScriptBuildStep extends Builder {
         return returnValue;
     }
 
+    /**
+     * @return the expanded arguments of this step, tokenized if requested
+     */
+    List<String> expandArgs(AbstractBuild<?, ?> build, TaskListener listener, EnvVars env) {
+        ArgumentListBuilder args = new ArgumentListBuilder();
+        addArgs(args, getArgumentExpander().expand(build, listener, env));
+        return args.toList();
+    }
+
+    private void addArgs(ArgumentListBuilder args, String[] expanded) {
+        for (String arg : expanded) {
+            if (tokenized) {
+                args.addTokenized(arg);
+            } else {
+                args.add(arg);
+            }
+        }
+    }
+
     // Overridden for better type safety.
     @Override
     public DescriptorImpl getDescriptor() {
@@ -217,35 +444,55 @@ public class ScriptBuildStep extends Builder {
         }
 
         /**
-         * Return all config files (templates) that the user can choose from when creating a build step. Ordered by name.
+         * Return the first page of config files (templates) that the user can choose from when creating a build step, ordered by name. The currently selected one is always included.
          *
+         * @param item        the item being configured
+         * @param context     the item group to list the configs of
+         * @param buildStepId the currently selected config
          * @return A collection of config files of type {@link ScriptConfig}.
          */
-        public ListBoxModel doFillBuildStepIdItems(@AncestorInPath ItemGroup context) {
-            List<Config> configsInContext = ConfigFiles.getConfigsInContext(context, ScriptConfigProvider.class);
-            Collections.sort(configsInContext, new Comparator<Config>() {
-                public int compare(Config o1, Config o2) {
-                    return o1.name.compareTo(o2.name);
-                }
-            });
+        public ListBoxModel doFillBuildStepIdItems(@AncestorInPath Item item, @AncestorInPath ItemGroup context, @QueryParameter String buildStepId) {
+            return ConfigNameIndex.fillItems(item, context, ScriptConfigProvider.class, buildStepId);
+        }
 
-            ListBoxModel items = new ListBoxModel();
-            items.add("please select", "");
-            for (Config config : configsInContext) {
-                items.add(config.name, config.id);
-            }
-            return items;
+        /**
+         * Search the configs by the prefix of their name, used by the type-ahead of the script picker.
+         *
+         * @param item    the item being configured
+         * @param context the item group to search the configs in
+         * @param query   the prefix of the names to search for
+         * @param offset  the index of the first match to return
+         */
+        public void doSearchBuildStepIds(@AncestorInPath Item item, @AncestorInPath ItemGroup context, @QueryParameter String query, @QueryParameter int offset, StaplerResponse rsp) throws IOException {
+            ConfigNameIndex.search(item, context, ScriptConfigProvider.class, query, offset, rsp);
+        }
+
+        /**
+         * @return the URL of {@link #doSearchBuildStepIds}, used by the script picker
+         */
+        public String getSearchUrl() {
+            return ConfigNameIndex.getSearchUrl(this);
+        }
+
+        /**
+         * Lists the jobs referencing a managed script as JSON, see {@link ScriptUsageIndex}. Serves the Windows batch and PowerShell
+         * scripts as well, the ids of all managed scripts are looked up in the same index.
+         *
+         * @param id the config id
+         */
+        public void doUsedBy(@QueryParameter String id, StaplerResponse rsp) throws IOException {
+            Jenkins.get().checkPermission(Jenkins.READ);
+            ScriptUsageIndex.write(id, rsp);
         }
 
 
         /**
          * gets the argument description to be displayed on the screen when selecting a config in the dropdown
          *
-         * @param configId the config id to get the arguments description for
+         * @param config the config to get the arguments description for
          * @return the description
          */
-        private String getArgsDescription(@AncestorInPath Item context, String configId) {
-            final ScriptConfig config = ConfigFiles.getByIdOrNull(context, configId);
+        static String getArgsDescription(ScriptConfig config) {
             if (config != null) {
                 if (config.args != null && !config.args.isEmpty()) {
                     StringBuilder sb = new StringBuilder("Required arguments: ");
@@ -273,9 +520,9 @@ public class ScriptBuildStep extends Builder {
          * @return whether the config existts or not
          */
         public HttpResponse doCheckBuildStepId(StaplerRequest req, @AncestorInPath Item context, @QueryParameter String buildStepId) {
-            final ScriptConfig config = ConfigFiles.getByIdOrNull(context, buildStepId);
+            final ScriptConfig config = ConfigIndex.getByIdOrNull(context, buildStepId, ScriptConfig.class);
             if (config != null) {
-                return DetailLinkDescription.getDescription(req, context, buildStepId, getArgsDescription(context, buildStepId));
+                return DetailLinkDescription.getDescription(req, context, buildStepId, getArgsDescription(config));
             } else {
                 return FormValidation.error("you must select a valid script");
             }
@@ -0,0 +1,252 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.AbortException;
+import hudson.model.Item;
+import hudson.model.ItemGroup;
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+import org.jenkinsci.lib.configprovider.model.Config;
+import org.jenkinsci.plugins.configfiles.GlobalConfigFiles;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Resolves the <code># @include &lt;configId&gt;</code> directives of the managed shell scripts.
+ * <p>
+ * Every directive is replaced by the content of the included script (without its interpreter line), recursively. A script
+ * included more than once ends up in the bundle only once, include cycles are rejected. The flattened bundles are cached by the
+ * item group they are resolved in, so executing a script does not resolve its includes again. Whenever a config store changes,
+ * the affected bundles are dropped together with the {@link ConfigIndex} and rebuilt in the background, together with the bundles
+ * of the global scripts using includes.
+ */
+public final class ScriptBundles {
+
+    private static final Logger LOGGER = Logger.getLogger(ScriptBundles.class.getName());
+
+    static final Pattern INCLUDE = Pattern.compile("^[ \\t]*#[ \\t]*@include[ \\t]+(\\S+)[ \\t]*$", Pattern.MULTILINE);
+
+    /**
+     * cached for the scripts without any directive, their content is used as it is
+     */
+    private static final Object NO_INCLUDES = new Object();
+
+    /**
+     * full name of the item group ("" for the root) to the bundles resolved within it by id, either the flattened content or
+     * {@link #NO_INCLUDES}
+     */
+    private static final ConcurrentMap<String, ConcurrentMap<String, Object>> SCOPES = new ConcurrentHashMap<String, ConcurrentMap<String, Object>>();
+
+    /**
+     * incremented by every invalidation, a bundle resolved across an invalidation is not cached
+     */
+    private static final AtomicLong GENERATION = new AtomicLong();
+
+    private ScriptBundles() {
+    }
+
+    /**
+     * Gets the content of a script with all its includes resolved.
+     *
+     * @param group  the item group to resolve the includes in, <code>null</code> for the global configs only
+     * @param config the script
+     * @return the flattened content
+     * @throws AbortException if an included script does not exist or the includes form a cycle
+     */
+    @NonNull
+    public static String of(@CheckForNull ItemGroup<?> group, @NonNull Config config) throws AbortException {
+        if (!(config instanceof ScriptConfig)) {
+            return ScriptBodies.of(config);
+        }
+        String fullName = group != null ? group.getFullName() : "";
+        long generation = GENERATION.get();
+        Object bundle = scope(fullName).get(config.id);
+        if (bundle == null) {
+            String content = ScriptBodies.of(config);
+            bundle = INCLUDE.matcher(content).find() ? flatten(group, config, content) : NO_INCLUDES;
+            cache(group, fullName, config, bundle, generation);
+            return bundle == NO_INCLUDES ? content : (String) bundle;
+        }
+        return bundle == NO_INCLUDES ? ScriptBodies.of(config) : (String) bundle;
+    }
+
+    /**
+     * Caches a resolved bundle unless the config store changed since the resolution started: the config given by the caller or
+     * one of its includes might have been replaced meanwhile, so the bundle must not end up in the scope refilled after the
+     * invalidation.
+     */
+    private static void cache(ItemGroup<?> group, String fullName, Config config, Object bundle, long generation) {
+        if (GENERATION.get() != generation || ConfigIndex.getByIdOrNull(group, config.id, ScriptConfig.class) != config) {
+            return;
+        }
+        ConcurrentMap<String, Object> scope = scope(fullName);
+        scope.put(config.id, bundle);
+        if (GENERATION.get() != generation) {
+            // invalidated while being put
+            scope.remove(config.id, bundle);
+        }
+    }
+
+    private static String flatten(ItemGroup<?> group, Config config, String content) throws AbortException {
+        StringBuilder sb = new StringBuilder();
+        append(group, config, content, sb, new LinkedHashSet<String>(), new HashSet<String>());
+        return ScriptBlobStore.intern(sb.toString());
+    }
+
+    private static void append(ItemGroup<?> group, Config config, String content, StringBuilder sb, LinkedHashSet<String> path, Set<String> included)
+            throws AbortException {
+        path.add(config.id);
+        included.add(config.id);
+        Matcher m = INCLUDE.matcher(content);
+        int last = 0;
+        while (m.find()) {
+            sb.append(content, last, m.start());
+            last = m.end();
+            String id = m.group(1);
+            if (path.contains(id)) {
+                List<String> cycle = new ArrayList<String>(path);
+                cycle.add(id);
+                throw new AbortException("include cycle in managed script '" + path.iterator().next() + "': " + String.join(" -> ", cycle));
+            }
+            if (included.contains(id)) {
+                sb.append("# @include ").append(id).append(": already included");
+                continue;
+            }
+            ScriptConfig include = ConfigIndex.getByIdOrNull(group, id, ScriptConfig.class);
+            if (include == null) {
+                throw new AbortException("managed script '" + config.id + "' includes '" + id + "', which does not exist");
+            }
+            sb.append("# >>> @include ").append(id).append('\n');
+            append(group, include, stripInterpreter(ScriptBodies.of(include)), sb, path, included);
+            if (sb.length() > 0 && sb.charAt(sb.length() - 1) != '\n') {
+                sb.append('\n');
+            }
+            sb.append("# <<< @include ").append(id);
+        }
+        sb.append(content, last, content.length());
+        path.remove(config.id);
+    }
+
+    private static String stripInterpreter(String content) {
+        if (!content.startsWith("#!")) {
+            return content;
+        }
+        int eol = content.indexOf('\n');
+        return eol < 0 ? "" : content.substring(eol + 1);
+    }
+
+    private static ConcurrentMap<String, Object> scope(String fullName) {
+        ConcurrentMap<String, Object> scope = SCOPES.get(fullName);
+        if (scope == null) {
+            ConcurrentMap<String, Object> created = new ConcurrentHashMap<String, Object>();
+            scope = SCOPES.putIfAbsent(fullName, created);
+            if (scope == null) {
+                scope = created;
+            }
+        }
+        return scope;
+    }
+
+    /**
+     * Drops all bundles and rebuilds them in the background.
+     */
+    static void invalidateAll() {
+        GENERATION.incrementAndGet();
+        Map<String, Set<String>> dropped = new HashMap<String, Set<String>>();
+        for (Iterator<Map.Entry<String, ConcurrentMap<String, Object>>> it = SCOPES.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<String, ConcurrentMap<String, Object>> scope = it.next();
+            collect(dropped, scope.getKey(), scope.getValue());
+            it.remove();
+        }
+        rebuildLater(dropped, true);
+    }
+
+    /**
+     * Drops the bundles resolved within the given item group and all item groups below it and rebuilds them in the background.
+     *
+     * @param fullName the full name of the item group
+     */
+    static void invalidate(@NonNull String fullName) {
+        String prefix = fullName + "/";
+        GENERATION.incrementAndGet();
+        Map<String, Set<String>> dropped = new HashMap<String, Set<String>>();
+        for (Iterator<Map.Entry<String, ConcurrentMap<String, Object>>> it = SCOPES.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<String, ConcurrentMap<String, Object>> scope = it.next();
+            if (scope.getKey().equals(fullName) || scope.getKey().startsWith(prefix)) {
+                collect(dropped, scope.getKey(), scope.getValue());
+                it.remove();
+            }
+        }
+        rebuildLater(dropped, false);
+    }
+
+    private static void collect(Map<String, Set<String>> dropped, String fullName, Map<String, Object> bundles) {
+        Set<String> ids = new HashSet<String>();
+        for (Map.Entry<String, Object> bundle : bundles.entrySet()) {
+            if (bundle.getValue() != NO_INCLUDES) {
+                ids.add(bundle.getKey());
+            }
+        }
+        if (!ids.isEmpty()) {
+            dropped.put(fullName, ids);
+        }
+    }
+
+    private static void rebuildLater(final Map<String, Set<String>> dropped, final boolean global) {
+        if (dropped.isEmpty() && !global) {
+            return;
+        }
+        Timer.get().submit(new Runnable() {
+            public void run() {
+                if (global) {
+                    Set<String> root = dropped.get("");
+                    for (Config config : GlobalConfigFiles.get().getConfigs()) {
+                        if (config instanceof ScriptConfig && INCLUDE.matcher(ScriptBodies.of(config)).find()) {
+                            if (root == null) {
+                                root = new HashSet<String>();
+                                dropped.put("", root);
+                            }
+                            root.add(config.id);
+                        }
+                    }
+                }
+                for (Map.Entry<String, Set<String>> scope : dropped.entrySet()) {
+                    ItemGroup<?> group = null;
+                    if (!scope.getKey().isEmpty()) {
+                        Item item = Jenkins.get().getItemByFullName(scope.getKey());
+                        if (!(item instanceof ItemGroup)) {
+                            continue;
+                        }
+                        group = (ItemGroup<?>) item;
+                    }
+                    for (String id : scope.getValue()) {
+                        ScriptConfig config = ConfigIndex.getByIdOrNull(group, id, ScriptConfig.class);
+                        if (config == null) {
+                            continue;
+                        }
+                        try {
+                            of(group, config);
+                        } catch (AbortException | RuntimeException e) {
+                            LOGGER.log(Level.WARNING, "Cannot resolve the includes of the managed script {0}: {1}", new Object[] { id, e.getMessage() });
+                        }
+                    }
+                }
+            }
+        });
+    }
+}
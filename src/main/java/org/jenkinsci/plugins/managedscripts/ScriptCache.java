@@ -0,0 +1,467 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.FilePath;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.remoting.Pipe;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+import jenkins.util.SystemProperties;
+import org.apache.commons.io.output.CountingOutputStream;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Content addressed cache for managed scripts on the execution hosts.
+ * <p>
+ * Every node keeps a directory below its root path in which the scripts are stored by the SHA-256 hash of their content. A build
+ * only sends the hash to the node, the content itself is only transferred if the node does not know it yet. The size of the
+ * directory is bounded, the least recently used scripts get removed as soon as the limit is exceeded.
+ */
+public final class ScriptCache {
+
+    private static final Logger LOGGER = Logger.getLogger(ScriptCache.class.getName());
+
+    /**
+     * name of the cache directory below the root path of a node
+     */
+    static final String CACHE_DIR = "managed-scripts-cache";
+
+    /**
+     * maximum size in bytes of the cache directory on every node
+     */
+    static long MAX_SIZE = SystemProperties.getLong(ScriptCache.class.getName() + ".maxSize", 64L * 1024 * 1024);
+
+    /**
+     * allows to fall back to a temporary file per execution
+     */
+    static boolean DISABLED = SystemProperties.getBoolean(ScriptCache.class.getName() + ".disabled");
+
+    /**
+     * scripts with at least this many characters are streamed gzip compressed to the nodes
+     */
+    static int STREAM_THRESHOLD = SystemProperties.getInteger(ScriptCache.class.getName() + ".streamThreshold", 256 * 1024);
+
+    /**
+     * size of the chunks a streamed script is sent in
+     */
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    /**
+     * scripts used within this time are never evicted, as a concurrent build might be about to execute them
+     */
+    private static final long EVICTION_GRACE_MILLIS = 60 * 1000;
+
+    private ScriptCache() {
+    }
+
+    /**
+     * Gets the cache directory of the node the given path belongs to.
+     *
+     * @param path any path on the node (usually the workspace)
+     * @return the cache directory or <code>null</code> if the cache is disabled or the node can't be determined
+     */
+    @CheckForNull
+    public static FilePath getCacheDir(@NonNull FilePath path) {
+        if (DISABLED) {
+            return null;
+        }
+        Computer computer = path.toComputer();
+        Node node = computer != null ? computer.getNode() : null;
+        FilePath rootPath = node != null ? node.getRootPath() : null;
+        return rootPath != null ? rootPath.child(CACHE_DIR) : null;
+    }
+
+    /**
+     * Makes sure the given script is available in the cache of the node the given path belongs to. The content is only transferred
+     * if the node does not have it already. The returned file is shared between builds and must not be modified or deleted.
+     *
+     * Scripts with at least {@link #STREAM_THRESHOLD} characters are streamed gzip compressed instead of being sent as a whole.
+     *
+     * @param path      any path on the node (usually the workspace)
+     * @param content   the script content
+     * @param extension the file extension required by the interpreter (e.g. <code>.sh</code>)
+     * @param listener  the listener to report transfers to, if any
+     * @return the cached script or <code>null</code> if the cache is not available for the node
+     */
+    @CheckForNull
+    public static FilePath provide(@NonNull FilePath path, @NonNull String content, @NonNull String extension, @CheckForNull TaskListener listener)
+            throws IOException, InterruptedException {
+        FilePath cacheDir = getCacheDir(path);
+        if (cacheDir == null) {
+            return null;
+        }
+        String name = ScriptBlobStore.hash(content) + extension;
+        if (cacheDir.act(new Touch(name))) {
+            LOGGER.log(Level.FINE, "Cache hit for script {0} on {1}", new Object[] { name, cacheDir.getRemote() });
+        } else {
+            LOGGER.log(Level.FINE, "Cache miss for script {0} on {1}", new Object[] { name, cacheDir.getRemote() });
+            long start = System.currentTimeMillis();
+            String transferred;
+            if (content.length() >= STREAM_THRESHOLD) {
+                long compressed = stream(cacheDir, name, content);
+                transferred = content.length() + " characters, " + compressed + " bytes compressed";
+            } else {
+                cacheDir.act(new Store(name, content, null, MAX_SIZE));
+                transferred = content.length() + " characters";
+            }
+            if (listener != null) {
+                listener.getLogger().println("transferred script to " + cacheDir.getRemote() + " (" + transferred + ") in " + (System.currentTimeMillis() - start) + " ms");
+            }
+        }
+        return cacheDir.child(name);
+    }
+
+    /**
+     * Makes sure the given scripts are available in the cache of the node the given path belongs to, in two calls whatever their
+     * number: one checking which of them the node already has, one transferring the missing ones. Scripts with at least
+     * {@link #STREAM_THRESHOLD} characters are streamed on their own.
+     *
+     * @param path      any path on the node (usually the workspace)
+     * @param contents  the script contents
+     * @param extension the file extension required by the interpreter (e.g. <code>.sh</code>)
+     * @param listener  the listener to report transfers to, if any
+     * @return the cached scripts in the order of the given contents, <code>null</code> if the cache is not available for the node
+     */
+    @CheckForNull
+    public static List<FilePath> provideAll(@NonNull FilePath path, @NonNull Collection<String> contents, @NonNull String extension, @CheckForNull TaskListener listener)
+            throws IOException, InterruptedException {
+        FilePath cacheDir = getCacheDir(path);
+        if (cacheDir == null) {
+            return null;
+        }
+        Map<String, String> scripts = new LinkedHashMap<String, String>();
+        List<FilePath> cached = new ArrayList<FilePath>(contents.size());
+        for (String content : contents) {
+            String name = ScriptBlobStore.hash(content) + extension;
+            scripts.put(name, content);
+            cached.add(cacheDir.child(name));
+        }
+        List<String> missing = cacheDir.act(new TouchAll(new ArrayList<String>(scripts.keySet())));
+        if (missing.isEmpty()) {
+            return cached;
+        }
+        long start = System.currentTimeMillis();
+        long characters = 0;
+        HashMap<String, String> small = new HashMap<String, String>();
+        for (String name : missing) {
+            String content = scripts.get(name);
+            characters += content.length();
+            if (content.length() >= STREAM_THRESHOLD) {
+                stream(cacheDir, name, content);
+            } else {
+                small.put(name, content);
+            }
+        }
+        if (!small.isEmpty()) {
+            cacheDir.act(new StoreAll(small, MAX_SIZE));
+        }
+        if (listener != null) {
+            listener.getLogger().println("transferred " + missing.size() + " scripts to " + cacheDir.getRemote() + " (" + characters + " characters) in "
+                    + (System.currentTimeMillis() - start) + " ms");
+        }
+        return cached;
+    }
+
+    /**
+     * Writes a script into the cache on the execution host itself, then evicts the least recently used scripts if the cache got
+     * too big.
+     *
+     * @param dir     the cache directory
+     * @param name    the name of the script in the cache
+     * @param content the script content
+     * @param maxSize the maximum size of the cache in bytes
+     */
+    static void store(@NonNull File dir, @NonNull String name, @NonNull String content, long maxSize) throws IOException {
+        new Store(name, content, null, maxSize).store(dir);
+        evict(dir, maxSize);
+    }
+
+    /**
+     * Streams the content gzip compressed into the cache, in chunks and without creating intermediate copies of the whole content.
+     *
+     * @return the number of compressed bytes transferred
+     */
+    private static long stream(FilePath cacheDir, String name, String content) throws IOException, InterruptedException {
+        Pipe pipe = Pipe.createLocalToRemote();
+        Future<Void> stored = cacheDir.actAsync(new Store(name, null, pipe, MAX_SIZE));
+        CountingOutputStream counter = new CountingOutputStream(pipe.getOut());
+        try (Writer w = new OutputStreamWriter(new GZIPOutputStream(counter, CHUNK_SIZE), StandardCharsets.UTF_8)) {
+            for (int offset = 0; offset < content.length(); offset += CHUNK_SIZE) {
+                w.write(content, offset, Math.min(CHUNK_SIZE, content.length() - offset));
+            }
+        }
+        try {
+            stored.get();
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to transfer script " + name + " to " + cacheDir.getRemote(), e.getCause());
+        }
+        return counter.getByteCount();
+    }
+
+    /**
+     * Creates a temporary script file for a {@link hudson.tasks.CommandInterpreter}, which deletes the file after execution. The content
+     * is served from the cache of the node and copied locally on the node, if the cache is not available the content gets written
+     * to a temporary file as before.
+     *
+     * @param dir       the directory the temporary file would be created in without caching (usually the workspace)
+     * @param prefix    prefix of the temporary file
+     * @param extension extension of the temporary file
+     * @param content   the script content
+     * @param listener  the listener to report transfers to, if any
+     * @return the temporary script, to be deleted by the caller
+     */
+    @NonNull
+    public static FilePath createTempScript(@NonNull FilePath dir, @NonNull String prefix, @NonNull String extension, @NonNull String content,
+            @CheckForNull TaskListener listener) throws IOException, InterruptedException {
+        FilePath cached = provide(dir, content, extension, listener);
+        if (cached == null) {
+            return dir.createTextTempFile(prefix, extension, content, false);
+        }
+        String tmp = cached.act(new CopyToTemp(dir.getRemote(), prefix, extension));
+        return new FilePath(dir.getChannel(), tmp);
+    }
+
+    /**
+     * Checks whether a cached script still has the content its name is the digest of, as written by {@link Store}. A truncated or
+     * modified file must not be used.
+     *
+     * @param script the cached script, named by the digest of its content and its extension
+     * @return whether the script exists and is intact
+     */
+    static boolean isIntact(@NonNull File script) throws IOException {
+        if (!script.isFile()) {
+            return false;
+        }
+        String name = script.getName();
+        int extension = name.indexOf('.');
+        String digest = extension >= 0 ? name.substring(0, extension) : name;
+        return digest.equals(ScriptBlobStore.hash(new String(Files.readAllBytes(script.toPath()), Charset.defaultCharset())));
+    }
+
+    /**
+     * Checks whether an intact script is in the cache and marks it as recently used. A script which is not intact is reported as
+     * missing, so it gets written again.
+     */
+    private static final class Touch extends MasterToSlaveFileCallable<Boolean> {
+        private static final long serialVersionUID = 1L;
+        private final String name;
+
+        Touch(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Boolean invoke(File dir, VirtualChannel channel) throws IOException {
+            File script = new File(dir, name);
+            if (isIntact(script)) {
+                if (!script.setLastModified(System.currentTimeMillis())) {
+                    LOGGER.log(Level.FINE, "Unable to update modification time of {0}", script);
+                }
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Checks which intact scripts are in the cache and marks the ones found as recently used.
+     */
+    private static final class TouchAll extends MasterToSlaveFileCallable<List<String>> {
+        private static final long serialVersionUID = 1L;
+        private final ArrayList<String> names;
+
+        TouchAll(ArrayList<String> names) {
+            this.names = names;
+        }
+
+        @Override
+        public List<String> invoke(File dir, VirtualChannel channel) throws IOException {
+            ArrayList<String> missing = new ArrayList<String>();
+            for (String name : names) {
+                if (!new Touch(name).invoke(dir, channel)) {
+                    missing.add(name);
+                }
+            }
+            return missing;
+        }
+    }
+
+    /**
+     * Writes several scripts into the cache, then evicts the least recently used scripts if the cache got too big.
+     */
+    private static final class StoreAll extends MasterToSlaveFileCallable<Void> {
+        private static final long serialVersionUID = 1L;
+        private final HashMap<String, String> scripts;
+        private final long maxSize;
+
+        StoreAll(HashMap<String, String> scripts, long maxSize) {
+            this.scripts = scripts;
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        public Void invoke(File dir, VirtualChannel channel) throws IOException {
+            for (Map.Entry<String, String> script : scripts.entrySet()) {
+                new Store(script.getKey(), script.getValue(), null, maxSize).store(dir);
+            }
+            evict(dir, maxSize);
+            return null;
+        }
+    }
+
+    /**
+     * Writes a script into the cache and evicts the least recently used scripts if the cache got too big. The content is either
+     * sent along or streamed gzip compressed through a pipe.
+     */
+    private static final class Store extends MasterToSlaveFileCallable<Void> {
+        private static final long serialVersionUID = 1L;
+        private final String name;
+        private final String content;
+        private final Pipe pipe;
+        private final long maxSize;
+
+        Store(String name, String content, Pipe pipe, long maxSize) {
+            this.name = name;
+            this.content = content;
+            this.pipe = pipe;
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        public Void invoke(File dir, VirtualChannel channel) throws IOException {
+            try {
+                store(dir);
+            } finally {
+                if (pipe != null) {
+                    // unblocks the sender if the content could not be consumed
+                    pipe.getIn().close();
+                }
+            }
+            evict(dir, maxSize);
+            return null;
+        }
+
+        private void store(File dir) throws IOException {
+            if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+                throw new IOException("Failed to create script cache " + dir);
+            }
+            File target = new File(dir, name);
+            // write to a temporary file first, concurrent builds must never see a partially written script
+            File tmp = File.createTempFile(name, ".tmp", dir);
+            try {
+                // same encoding as FilePath.createTextTempFile
+                try (Writer w = Files.newBufferedWriter(tmp.toPath(), Charset.defaultCharset())) {
+                    if (pipe == null) {
+                        w.write(content);
+                    } else {
+                        try (Reader r = new InputStreamReader(new GZIPInputStream(pipe.getIn(), CHUNK_SIZE), StandardCharsets.UTF_8)) {
+                            char[] buffer = new char[CHUNK_SIZE];
+                            for (int read = r.read(buffer); read >= 0; read = r.read(buffer)) {
+                                w.write(buffer, 0, read);
+                            }
+                        }
+                    }
+                }
+                try {
+                    Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                }
+            } finally {
+                Files.deleteIfExists(tmp.toPath());
+            }
+        }
+    }
+
+    /**
+     * Copies a cached script to a temporary file in the given directory on the same node, where it would have been written
+     * without caching.
+     */
+    private static final class CopyToTemp extends MasterToSlaveFileCallable<String> {
+        private static final long serialVersionUID = 1L;
+        private final String dir;
+        private final String prefix;
+        private final String extension;
+
+        CopyToTemp(String dir, String prefix, String extension) {
+            this.dir = dir;
+            this.prefix = prefix;
+            this.extension = extension;
+        }
+
+        @Override
+        public String invoke(File script, VirtualChannel channel) throws IOException {
+            File d = new File(dir);
+            // as done by FilePath.createTextTempFile
+            Files.createDirectories(d.toPath());
+            File tmp = File.createTempFile(prefix, extension, d);
+            Files.copy(script.toPath(), tmp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            return tmp.getAbsolutePath();
+        }
+    }
+
+    /**
+     * Removes the least recently used scripts until the cache fits into the given size.
+     *
+     * @param dir     the cache directory
+     * @param maxSize the maximum size in bytes
+     */
+    static void evict(File dir, long maxSize) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        List<File> scripts = new ArrayList<File>(files.length);
+        long size = 0;
+        for (File f : files) {
+            if (f.isFile() && !f.getName().endsWith(".tmp")) {
+                scripts.add(f);
+                size += f.length();
+            }
+        }
+        if (size <= maxSize) {
+            return;
+        }
+        File[] byAge = scripts.toArray(new File[scripts.size()]);
+        Arrays.sort(byAge, Comparator.comparingLong(File::lastModified));
+        long graceLimit = System.currentTimeMillis() - EVICTION_GRACE_MILLIS;
+        for (File f : byAge) {
+            if (size <= maxSize || f.lastModified() > graceLimit) {
+                break;
+            }
+            long length = f.length();
+            if (f.delete()) {
+                size -= length;
+                LOGGER.log(Level.FINE, "Evicted script {0} from cache", f);
+            }
+        }
+    }
+}
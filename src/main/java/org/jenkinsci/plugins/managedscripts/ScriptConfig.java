@@ -3,9 +3,14 @@
  */
 package org.jenkinsci.plugins.managedscripts;
 
+import edu.umd.cs.findbugs.annotations.CheckForNull;
 import edu.umd.cs.findbugs.annotations.NonNull;
 import hudson.Extension;
+import hudson.FilePath;
+import hudson.model.Run;
+import hudson.model.TaskListener;
 
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
@@ -18,18 +23,39 @@ import org.jenkinsci.lib.configprovider.model.Config;
 import org.jenkinsci.lib.configprovider.model.ContentType;
 import org.jenkinsci.plugins.configfiles.maven.MavenSettingsConfig;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 
 /**
  * @author domi
  * 
  */
-public class ScriptConfig extends Config {
+public class ScriptConfig extends Config implements ScriptBodies.Deferred {
 
     public final List<Arg> args;
 
+    /**
+     * compiled from the content, lazily after the config got loaded from disk
+     */
+    private transient ScriptLaunchPlan launchPlan;
+
+    private OutputLimit outputLimit;
+
+    private int timeout;
+
+    private WarmWorkers warmWorkers;
+
+    private Memoization memoization;
+
+    private boolean stdin;
+
+    /**
+     * the digest of the blob holding the content, if the content got left in the blob when loading this script
+     */
+    private transient volatile String blob;
+
     @DataBoundConstructor
     public ScriptConfig(String id, String name, String comment, String content, List<Arg> args) {
-        super(id, name, comment, content);
+        super(id, name, comment, ScriptBlobStore.intern(content));
 
         if (args != null) {
             List<Arg> filteredArgs = new ArrayList<ScriptConfig.Arg>();
@@ -42,6 +68,97 @@ public class ScriptConfig extends Config {
         } else {
             this.args = null;
         }
+        this.launchPlan = ScriptLaunchPlan.compile(content);
+    }
+
+    /**
+     * @return the launch plan compiled from the interpreter line of this script
+     */
+    public ScriptLaunchPlan getLaunchPlan() {
+        ScriptLaunchPlan plan = launchPlan;
+        if (plan == null) {
+            plan = ScriptLaunchPlan.compile(getBody());
+            launchPlan = plan;
+        }
+        return plan;
+    }
+
+    /**
+     * @return the limit of the output this script writes to the build log, <code>null</code> for no limit
+     */
+    public OutputLimit getOutputLimit() {
+        return outputLimit;
+    }
+
+    @DataBoundSetter
+    public void setOutputLimit(OutputLimit outputLimit) {
+        this.outputLimit = outputLimit;
+    }
+
+    /**
+     * @return the time in seconds this script may run before it gets killed, 0 for no timeout
+     */
+    public int getTimeout() {
+        return timeout;
+    }
+
+    @DataBoundSetter
+    public void setTimeout(int timeout) {
+        this.timeout = Math.max(timeout, 0);
+    }
+
+    /**
+     * @return the settings of the warm interpreter workers executing this script, <code>null</code> to start a new interpreter for every execution
+     */
+    public WarmWorkers getWarmWorkers() {
+        return warmWorkers;
+    }
+
+    @DataBoundSetter
+    public void setWarmWorkers(WarmWorkers warmWorkers) {
+        this.warmWorkers = warmWorkers;
+    }
+
+    /**
+     * @return the inputs and outputs of this script if it may be skipped when its inputs are unchanged, <code>null</code> to always execute it
+     */
+    public Memoization getMemoization() {
+        return memoization;
+    }
+
+    @DataBoundSetter
+    public void setMemoization(Memoization memoization) {
+        this.memoization = memoization;
+    }
+
+    /**
+     * @return whether the interpreter reads this script from stdin instead of a temporary file, if it is able to
+     */
+    public boolean isStdin() {
+        return stdin;
+    }
+
+    @DataBoundSetter
+    public void setStdin(boolean stdin) {
+        this.stdin = stdin;
+    }
+
+    /**
+     * @return the content of this script, read from its blob if it is not kept in memory
+     */
+    public String getBody() {
+        return ScriptBodies.of(this);
+    }
+
+    @CheckForNull
+    @Override
+    public String getBlob() {
+        return blob;
+    }
+
+    @Override
+    public void setBlob(@NonNull String blob) {
+        this.blob = blob;
     }
 
     @Override
@@ -70,6 +187,14 @@ public class ScriptConfig extends Config {
             return ContentType.DefinedType.HTML;
         }
 
+        /**
+         * Supplies the content through {@link ScriptBodies}, it might not be kept in memory.
+         */
+        @Override
+        public String supplyContent(@NonNull Config configFile, Run<?, ?> build, FilePath workDir, TaskListener listener, @NonNull List<String> tempFiles) throws IOException {
+            return ScriptBodies.of(configFile);
+        }
+
         @Override
         public String getDisplayName() {
             return Messages.buildstep_provider_name();
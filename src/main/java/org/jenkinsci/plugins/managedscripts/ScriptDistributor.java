@@ -0,0 +1,462 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.model.AbstractProject;
+import hudson.model.Computer;
+import hudson.model.Executor;
+import hudson.model.Item;
+import hudson.model.ItemGroup;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.slaves.ComputerListener;
+import hudson.slaves.OfflineCause;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.model.Jenkins;
+import jenkins.model.NodeListener;
+import jenkins.util.SystemProperties;
+import jenkins.util.Timer;
+import org.jenkinsci.lib.configprovider.model.Config;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Pushes the recently used managed scripts into the {@link ScriptCache} of the nodes ahead of the builds.
+ * <p>
+ * Every script is pushed to the nodes it got executed on and the nodes matching the label of the jobs executing it, so a script
+ * of a folder only reaches the nodes building the jobs of that folder. A node coming online gets the recently used scripts
+ * targeting it, once a config store got saved the changed ones are pushed to the online nodes they target. Only a few pushes run
+ * at the same time and a content a node already got is not pushed again for an hour (<code>claimExpiry</code>), the cache of the node
+ * might have evicted it since. The first build on a fresh node finds its scripts already cached, without sending their contents
+ * again through the {@link RemoteScriptRunner}. The status of every online node is shown on the metrics page.
+ */
+public final class ScriptDistributor {
+
+    private static final Logger LOGGER = Logger.getLogger(ScriptDistributor.class.getName());
+
+    /**
+     * number of recently used scripts kept for distribution
+     */
+    static int MAX_SCRIPTS = SystemProperties.getInteger(ScriptDistributor.class.getName() + ".maxScripts", 50);
+
+    /**
+     * maximum number of pushes running at the same time
+     */
+    static int CONCURRENCY = SystemProperties.getInteger(ScriptDistributor.class.getName() + ".concurrency", 4);
+
+    /**
+     * minutes after which a content pushed to a node may be pushed again
+     */
+    static long CLAIM_EXPIRY = SystemProperties.getLong(ScriptDistributor.class.getName() + ".claimExpiry", 60L);
+
+    /**
+     * the recently used scripts by scope, id and extension, least recently used first
+     */
+    private static final Map<String, Script> RECENT = new LinkedHashMap<String, Script>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Script> eldest) {
+            return size() > MAX_SCRIPTS;
+        }
+    };
+
+    private static final ConcurrentMap<String, NodeStatus> STATUS = new ConcurrentHashMap<String, NodeStatus>();
+
+    private static final ExecutorService PUSHER = Executors.newFixedThreadPool(Math.max(1, CONCURRENCY),
+            new NamingThreadFactory(new DaemonThreadFactory(), "managed script distributor"));
+
+    private ScriptDistributor() {
+    }
+
+    /**
+     * Remembers a script executed by a build, so it gets pushed to the nodes coming online which the build could have run on.
+     *
+     * @param run       the build, the script got resolved in the item group of its job
+     * @param id        the config id
+     * @param content   the content as provided to the node
+     * @param extension the file extension
+     */
+    static void used(@NonNull Run<?, ?> run, @NonNull String id, @NonNull String content, @NonNull String extension) {
+        if (ScriptCache.DISABLED || MAX_SCRIPTS <= 0) {
+            return;
+        }
+        String scope = run.getParent().getParent().getFullName();
+        Executor executor = run.getExecutor();
+        String node = executor != null ? executor.getOwner().getName() : null;
+        String label = run.getParent() instanceof AbstractProject ? ((AbstractProject<?, ?>) run.getParent()).getAssignedLabelString() : null;
+        synchronized (RECENT) {
+            String key = scope + '\0' + id + '\0' + extension;
+            Script script = RECENT.get(key);
+            if (script == null) {
+                script = new Script(scope, id, content, extension);
+                RECENT.put(key, script);
+            } else if (!script.content.equals(content)) {
+                script = script.withContent(content);
+                RECENT.put(key, script);
+            }
+            script.target(node, label);
+        }
+    }
+
+    private static List<Script> recent() {
+        synchronized (RECENT) {
+            return new ArrayList<Script>(RECENT.values());
+        }
+    }
+
+    /**
+     * Resolves the recently used scripts again in the background and pushes the changed ones to all online nodes.
+     */
+    static void refreshLater() {
+        if (ScriptCache.DISABLED) {
+            return;
+        }
+        Timer.get().submit(new Runnable() {
+            public void run() {
+                List<Script> changed = new ArrayList<Script>();
+                for (Script script : recent()) {
+                    Script current = resolve(script);
+                    if (current == null) {
+                        synchronized (RECENT) {
+                            RECENT.values().remove(script);
+                        }
+                    } else if (current != script) {
+                        synchronized (RECENT) {
+                            RECENT.put(current.scope + '\0' + current.id + '\0' + current.extension, current);
+                        }
+                        changed.add(current);
+                    }
+                }
+                if (changed.isEmpty()) {
+                    return;
+                }
+                LOGGER.log(Level.FINE, "pushing {0} changed managed scripts to the online nodes using them", changed.size());
+                for (Computer computer : Jenkins.get().getComputers()) {
+                    if (computer.isOnline()) {
+                        push(computer, targeting(computer, changed));
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * @return the script with its current content, the given one if it did not change, <code>null</code> if it does not exist anymore
+     */
+    @CheckForNull
+    private static Script resolve(Script script) {
+        ItemGroup<?> group = null;
+        if (!script.scope.isEmpty()) {
+            Item item = Jenkins.get().getItemByFullName(script.scope);
+            if (!(item instanceof ItemGroup)) {
+                return null;
+            }
+            group = (ItemGroup<?>) item;
+        }
+        Config config = ConfigIndex.getByIdOrNull(group, script.id, Config.class);
+        if (config == null) {
+            return null;
+        }
+        String content;
+        // as provided by the build steps
+        if (config instanceof WinBatchConfig) {
+            content = ScriptBodies.of(config) + "\r\nexit %ERRORLEVEL%";
+        } else if (config instanceof PowerShellConfig) {
+            content = ScriptBodies.of(config) + "\r\nexit $LastExitCode";
+        } else {
+            try {
+                content = ScriptBundles.of(group, config);
+            } catch (Exception e) {
+                LOGGER.log(Level.FINE, "Cannot resolve the managed script " + script.id, e);
+                return null;
+            }
+        }
+        return content.equals(script.content) ? script : script.withContent(content);
+    }
+
+    /**
+     * @return the given scripts which target the given node
+     */
+    private static List<Script> targeting(Computer computer, List<Script> scripts) {
+        List<Script> targeting = new ArrayList<Script>();
+        Node node = computer.getNode();
+        for (Script script : scripts) {
+            if (script.targets(computer.getName(), node)) {
+                targeting.add(script);
+            }
+        }
+        return targeting;
+    }
+
+    /**
+     * Pushes scripts into the cache of a node in the background, contents the node already got are skipped.
+     *
+     * @param computer the node
+     * @param scripts  the scripts
+     */
+    static void push(@NonNull Computer computer, @NonNull List<Script> scripts) {
+        final String name = computer.getName();
+        final NodeStatus status = status(computer);
+        for (final Script script : scripts) {
+            final String digest = ScriptBlobStore.hash(script.content);
+            if (!status.claim(digest + script.extension)) {
+                status.skipped.incrementAndGet();
+                continue;
+            }
+            status.queued.incrementAndGet();
+            PUSHER.submit(new Runnable() {
+                public void run() {
+                    status.queued.decrementAndGet();
+                    try {
+                        Computer c = Jenkins.get().getComputer(name);
+                        Node node = c != null && c.isOnline() ? c.getNode() : null;
+                        FilePath root = node != null ? node.getRootPath() : null;
+                        if (root == null) {
+                            status.release(digest + script.extension);
+                            return;
+                        }
+                        FilePath cached = ScriptCache.provide(root, script.content, script.extension, null);
+                        if (cached != null) {
+                            RemoteScriptRunner.cached(cached.getChannel(), cached.getRemote());
+                        }
+                        status.pushed.incrementAndGet();
+                        status.lastPush = System.currentTimeMillis();
+                    } catch (Exception e) {
+                        status.release(digest + script.extension);
+                        status.failed.incrementAndGet();
+                        status.lastError = String.valueOf(e);
+                        LOGGER.log(Level.FINE, "Failed to push the managed script " + script.id + " to " + name, e);
+                    }
+                }
+            });
+        }
+    }
+
+    private static NodeStatus status(Computer computer) {
+        String name = computer.getName();
+        NodeStatus status = STATUS.get(name);
+        if (status == null) {
+            NodeStatus created = new NodeStatus(computer.getDisplayName());
+            status = STATUS.putIfAbsent(name, created);
+            if (status == null) {
+                status = created;
+            }
+        }
+        return status;
+    }
+
+    /**
+     * @return the distribution status of all nodes, ordered by name
+     */
+    @NonNull
+    public static List<NodeStatus> getStatuses() {
+        List<NodeStatus> statuses = new ArrayList<NodeStatus>(STATUS.values());
+        Collections.sort(statuses, new Comparator<NodeStatus>() {
+            public int compare(NodeStatus o1, NodeStatus o2) {
+                return o1.node.compareTo(o2.node);
+            }
+        });
+        return statuses;
+    }
+
+    /**
+     * A recently used script and the nodes it targets.
+     */
+    static final class Script {
+        private final String scope;
+        private final String id;
+        private final String content;
+        private final String extension;
+        /**
+         * the names of the nodes the script got executed on
+         */
+        private final Set<String> nodes = new HashSet<String>();
+        /**
+         * the label expressions of the jobs executing the script
+         */
+        private final Set<String> labels = new HashSet<String>();
+
+        Script(String scope, String id, String content, String extension) {
+            this.scope = scope;
+            this.id = id;
+            this.content = content;
+            this.extension = extension;
+        }
+
+        /**
+         * @return the same script with another content, targeting the same nodes
+         */
+        synchronized Script withContent(String content) {
+            Script script = new Script(scope, id, content, extension);
+            script.nodes.addAll(nodes);
+            script.labels.addAll(labels);
+            return script;
+        }
+
+        synchronized void target(@CheckForNull String node, @CheckForNull String label) {
+            if (node != null) {
+                nodes.add(node);
+            }
+            if (label != null) {
+                labels.add(label);
+            }
+        }
+
+        /**
+         * @return whether the script got executed on the given node or by a job whose label the node matches
+         */
+        synchronized boolean targets(String name, @CheckForNull Node node) {
+            if (nodes.contains(name)) {
+                return true;
+            }
+            if (node != null) {
+                for (String expression : labels) {
+                    Label label = Jenkins.get().getLabel(expression);
+                    if (label != null && label.contains(node)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * The scripts pushed to a node since it came online.
+     */
+    public static final class NodeStatus {
+        private final String node;
+        /**
+         * when the contents got claimed for a push, by digest and extension
+         */
+        private final Map<String, Long> present = new HashMap<String, Long>();
+        private final AtomicInteger queued = new AtomicInteger();
+        private final AtomicInteger pushed = new AtomicInteger();
+        private final AtomicInteger skipped = new AtomicInteger();
+        private final AtomicInteger failed = new AtomicInteger();
+        private volatile long lastPush;
+        private volatile String lastError;
+
+        NodeStatus(String node) {
+            this.node = node;
+        }
+
+        /**
+         * @return whether the given content has to be pushed: it was never pushed or its claim expired
+         */
+        synchronized boolean claim(String name) {
+            long now = System.currentTimeMillis();
+            Long claimed = present.get(name);
+            if (claimed != null && now - claimed < TimeUnit.MINUTES.toMillis(CLAIM_EXPIRY)) {
+                return false;
+            }
+            present.put(name, now);
+            return true;
+        }
+
+        synchronized void release(String name) {
+            present.remove(name);
+        }
+
+        public String getNode() {
+            return node;
+        }
+
+        /**
+         * @return the number of distinct scripts the node got within the claim expiry
+         */
+        public synchronized int getScripts() {
+            long expired = System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(CLAIM_EXPIRY);
+            for (Iterator<Long> it = present.values().iterator(); it.hasNext();) {
+                if (it.next() <= expired) {
+                    it.remove();
+                }
+            }
+            return present.size();
+        }
+
+        public int getQueued() {
+            return queued.get();
+        }
+
+        public int getPushed() {
+            return pushed.get();
+        }
+
+        public int getSkipped() {
+            return skipped.get();
+        }
+
+        public int getFailed() {
+            return failed.get();
+        }
+
+        @CheckForNull
+        public Date getLastPush() {
+            return lastPush == 0 ? null : new Date(lastPush);
+        }
+
+        @CheckForNull
+        public String getLastError() {
+            return lastError;
+        }
+    }
+
+    /**
+     * Pushes the recently used scripts to every node coming online which they target.
+     */
+    @Extension
+    public static final class ComputerListenerImpl extends ComputerListener {
+        @Override
+        public void onOnline(Computer c, TaskListener listener) {
+            if (ScriptCache.DISABLED) {
+                return;
+            }
+            List<Script> scripts = targeting(c, recent());
+            if (scripts.isEmpty()) {
+                return;
+            }
+            listener.getLogger().println("pushing " + scripts.size() + " recently used managed scripts to the script cache");
+            push(c, scripts);
+        }
+
+        @Override
+        public void onOffline(@NonNull Computer c, @CheckForNull OfflineCause cause) {
+            // an ephemeral agent coming back under the same name starts with an empty cache, a cloud agent never comes back
+            STATUS.remove(c.getName());
+        }
+    }
+
+    /**
+     * Forgets the status of the deleted nodes.
+     */
+    @Extension
+    public static final class NodeListenerImpl extends NodeListener {
+        @Override
+        protected void onDeleted(@NonNull Node node) {
+            STATUS.remove(node.getNodeName());
+        }
+    }
+}
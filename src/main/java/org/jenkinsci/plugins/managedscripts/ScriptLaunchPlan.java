@@ -0,0 +1,204 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.remoting.VirtualChannel;
+import hudson.tasks.Shell;
+import hudson.util.ArgumentListBuilder;
+import jenkins.model.Jenkins;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Describes how a managed script gets launched, compiled once from the interpreter line (hash-bang) of the script.
+ * <p>
+ * A script without an interpreter line is executed by the shell configured for the {@link Shell} build step, the default
+ * shell of a node is only determined once per channel.
+ */
+public final class ScriptLaunchPlan {
+
+    private static final Logger LOGGER = Logger.getLogger(ScriptLaunchPlan.class.getName());
+
+    private static final ScriptLaunchPlan DEFAULT_SHELL = new ScriptLaunchPlan(null);
+
+    /**
+     * interpreters reading the script from stdin with <code>-s</code>
+     */
+    private static final Pattern STDIN_SHELLS = Pattern.compile("(ba|da|k|z|mk|)sh");
+
+    /**
+     * interpreters reading the script from stdin with <code>-</code>
+     */
+    private static final Pattern STDIN_INTERPRETERS = Pattern.compile("python[0-9.]*|nodejs|node|perl[0-9.]*|ruby[0-9.]*");
+
+    /**
+     * default shell of the nodes, only used if no shell is configured globally
+     */
+    private static final Map<VirtualChannel, String> DEFAULT_SHELLS = Collections.synchronizedMap(new WeakHashMap<VirtualChannel, String>());
+
+    /**
+     * interpreter followed by its flags, <code>null</code> to use the default shell
+     */
+    private final String[] interpreter;
+
+    private ScriptLaunchPlan(String[] interpreter) {
+        this.interpreter = interpreter;
+    }
+
+    /**
+     * Compiles the launch plan for the given script content.
+     * <p>
+     * The interpreter line may end with CRLF or be the only line of the script.
+     *
+     * @param content the script content
+     * @return the launch plan
+     */
+    @NonNull
+    public static ScriptLaunchPlan compile(@CheckForNull String content) {
+        if (content == null || !content.startsWith("#!")) {
+            return DEFAULT_SHELL;
+        }
+        int end = content.indexOf('\n', 2);
+        if (end < 0) {
+            end = content.length();
+        }
+        if (end > 2 && content.charAt(end - 1) == '\r') {
+            end--;
+        }
+        List<String> elements = new ArrayList<String>();
+        int start = -1;
+        for (int i = 2; i < end; i++) {
+            if (Character.isWhitespace(content.charAt(i))) {
+                if (start >= 0) {
+                    elements.add(content.substring(start, i));
+                    start = -1;
+                }
+            } else if (start < 0) {
+                start = i;
+            }
+        }
+        if (start >= 0) {
+            elements.add(content.substring(start, end));
+        }
+        if (elements.isEmpty()) {
+            return DEFAULT_SHELL;
+        }
+        return new ScriptLaunchPlan(elements.toArray(new String[elements.size()]));
+    }
+
+    /**
+     * @return whether the script is executed by the default shell as it has no interpreter line
+     */
+    public boolean isDefaultShell() {
+        return interpreter == null;
+    }
+
+    /**
+     * @return the interpreter followed by its flags, empty if the default shell is used
+     */
+    @NonNull
+    public String[] getInterpreter() {
+        return interpreter == null ? new String[0] : interpreter.clone();
+    }
+
+    /**
+     * Creates the command line to execute the script, without any user arguments.
+     *
+     * @param channel the channel of the node the script is executed on
+     * @param script  the path of the script on the node
+     * @return the command line
+     */
+    @NonNull
+    public ArgumentListBuilder toArgumentList(@CheckForNull VirtualChannel channel, @NonNull String script) {
+        ArgumentListBuilder args = new ArgumentListBuilder();
+        if (interpreter != null) {
+            for (String element : interpreter) {
+                args.add(element);
+            }
+        } else {
+            String shell = getDefaultShell(channel);
+            if (shell != null) {
+                args.add(shell);
+            }
+        }
+        args.add(script);
+        return args;
+    }
+
+    /**
+     * Creates the command line to execute the script read from stdin, without any user arguments.
+     *
+     * @param channel the channel of the node the script is executed on
+     * @return the command line or <code>null</code> if the interpreter can't read the script from stdin
+     */
+    @CheckForNull
+    public ArgumentListBuilder toStdinArgumentList(@CheckForNull VirtualChannel channel) {
+        List<String> elements = new ArrayList<String>();
+        if (interpreter != null) {
+            Collections.addAll(elements, interpreter);
+        } else {
+            String shell = getDefaultShell(channel);
+            if (shell == null) {
+                return null;
+            }
+            elements.add(shell);
+        }
+        String executable = executable(elements.get(0));
+        if (executable.equals("env") && elements.size() > 1) {
+            executable = executable(elements.get(1));
+        }
+        ArgumentListBuilder args = new ArgumentListBuilder();
+        for (String element : elements) {
+            args.add(element);
+        }
+        if (STDIN_SHELLS.matcher(executable).matches()) {
+            return args.add("-s");
+        }
+        if (STDIN_INTERPRETERS.matcher(executable).matches()) {
+            return args.add("-");
+        }
+        return null;
+    }
+
+    /**
+     * @return the name of an executable without its directory and the <code>.exe</code> extension
+     */
+    private static String executable(String path) {
+        String name = path.substring(Math.max(path.lastIndexOf('/'), path.lastIndexOf('\\')) + 1);
+        return name.toLowerCase(Locale.ENGLISH).endsWith(".exe") ? name.substring(0, name.length() - 4) : name;
+    }
+
+    /**
+     * Gets the shell executable configured for the {@link Shell} task, falls back to the default shell of the node if none is
+     * configured. The default shell is determined only once per channel.
+     *
+     * @param channel the channel of the node
+     * @return the shell or <code>null</code> if the shell task is not available
+     */
+    @CheckForNull
+    static String getDefaultShell(@CheckForNull VirtualChannel channel) {
+        final Shell.DescriptorImpl shellDescriptor = (Shell.DescriptorImpl) Jenkins.get().getDescriptor(Shell.class);
+        if (shellDescriptor == null) {
+            return null;
+        }
+        if (channel == null || shellDescriptor.getShell() != null) {
+            // no remote call involved
+            return shellDescriptor.getShellOrDefault();
+        }
+        String shell = DEFAULT_SHELLS.get(channel);
+        if (shell == null) {
+            shell = shellDescriptor.getShellOrDefault(channel);
+            LOGGER.log(Level.FINE, "Default shell of {0} is {1}", new Object[] { channel, shell });
+            DEFAULT_SHELLS.put(channel, shell);
+        }
+        return shell;
+    }
+}
@@ -0,0 +1,304 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Execution metrics of the managed scripts, by config id.
+ * <p>
+ * Counts the successful and failed executions and keeps a latency histogram per {@link Phase}. Recording only increments
+ * {@link LongAdder}s, so concurrently running build steps never contend on a lock.
+ */
+public final class ScriptMetrics {
+
+    /**
+     * upper bounds of the histogram buckets in seconds, the last bucket is unbounded
+     */
+    static final double[] BUCKETS = { 0.001, 0.005, 0.01, 0.05, 0.1, 0.5, 1, 5, 10, 60, 300, 1800 };
+
+    private static final long[] BUCKET_NANOS = new long[BUCKETS.length];
+
+    static {
+        for (int i = 0; i < BUCKETS.length; i++) {
+            BUCKET_NANOS[i] = (long) (BUCKETS[i] * TimeUnit.SECONDS.toNanos(1));
+        }
+    }
+
+    private static final ConcurrentMap<String, Entry> ENTRIES = new ConcurrentHashMap<String, Entry>();
+
+    /**
+     * The measured phases of an execution.
+     */
+    public enum Phase {
+        /** resolving the config */
+        LOOKUP,
+        /** providing the script on the execution host */
+        TRANSFER,
+        /** starting the process */
+        LAUNCH,
+        /** the whole build step */
+        TOTAL;
+
+        public String getLabel() {
+            return name().toLowerCase(Locale.ENGLISH);
+        }
+    }
+
+    private ScriptMetrics() {
+    }
+
+    /**
+     * Records the duration of a phase.
+     *
+     * @param id         the config id, nothing is recorded without one
+     * @param phase      the phase
+     * @param startNanos the start of the phase as returned by {@link System#nanoTime()}
+     */
+    public static void record(@CheckForNull String id, @NonNull Phase phase, long startNanos) {
+        if (id == null) {
+            return;
+        }
+        recordDuration(id, phase, System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Records the duration of a phase measured elsewhere, e.g. on the execution host.
+     *
+     * @param id    the config id, nothing is recorded without one
+     * @param phase the phase
+     * @param nanos the duration in nanoseconds
+     */
+    static void recordDuration(@CheckForNull String id, @NonNull Phase phase, long nanos) {
+        if (id == null) {
+            return;
+        }
+        entry(id).histograms[phase.ordinal()].record(nanos);
+    }
+
+    /**
+     * Records the result of an execution.
+     *
+     * @param id      the config id, nothing is recorded without one
+     * @param success whether the execution succeeded
+     */
+    public static void result(@CheckForNull String id, boolean success) {
+        if (id == null) {
+            return;
+        }
+        Entry entry = entry(id);
+        if (success) {
+            entry.successes.increment();
+        } else {
+            entry.failures.increment();
+        }
+    }
+
+    /**
+     * Records a lookup in the {@link MemoCache}.
+     *
+     * @param id  the config id, nothing is recorded without one
+     * @param hit whether the outputs got restored from the cache
+     */
+    static void memo(@CheckForNull String id, boolean hit) {
+        if (id == null) {
+            return;
+        }
+        Entry entry = entry(id);
+        if (hit) {
+            entry.memoHits.increment();
+        } else {
+            entry.memoMisses.increment();
+        }
+    }
+
+    /**
+     * @param id the config id
+     * @return the metrics of the config id, created if none were recorded so far
+     */
+    @NonNull
+    static Entry getEntry(@NonNull String id) {
+        return entry(id);
+    }
+
+    /**
+     * @return the metrics of all config ids recorded so far, ordered by id
+     */
+    @NonNull
+    public static List<Entry> getEntries() {
+        List<Entry> entries = new ArrayList<Entry>(ENTRIES.values());
+        Collections.sort(entries, new Comparator<Entry>() {
+            public int compare(Entry o1, Entry o2) {
+                return o1.id.compareTo(o2.id);
+            }
+        });
+        return entries;
+    }
+
+    /**
+     * Drops all metrics recorded so far.
+     */
+    public static void reset() {
+        ENTRIES.clear();
+    }
+
+    private static Entry entry(String id) {
+        Entry entry = ENTRIES.get(id);
+        if (entry == null) {
+            Entry created = new Entry(id);
+            entry = ENTRIES.putIfAbsent(id, created);
+            if (entry == null) {
+                entry = created;
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Writes the metrics in the Prometheus text exposition format.
+     *
+     * @param out the builder to write to
+     */
+    public static void writePrometheus(@NonNull StringBuilder out) {
+        List<Entry> entries = getEntries();
+        out.append("# HELP managed_script_executions_total Executions of managed scripts by result.\n");
+        out.append("# TYPE managed_script_executions_total counter\n");
+        for (Entry entry : entries) {
+            String id = escape(entry.id);
+            out.append("managed_script_executions_total{id=\"").append(id).append("\",result=\"success\"} ").append(entry.getSuccesses()).append('\n');
+            out.append("managed_script_executions_total{id=\"").append(id).append("\",result=\"failure\"} ").append(entry.getFailures()).append('\n');
+        }
+        out.append("# HELP managed_script_memo_lookups_total Lookups of memoized managed script outputs by result.\n");
+        out.append("# TYPE managed_script_memo_lookups_total counter\n");
+        for (Entry entry : entries) {
+            if (entry.getMemoHits() + entry.getMemoMisses() == 0) {
+                continue;
+            }
+            String id = escape(entry.id);
+            out.append("managed_script_memo_lookups_total{id=\"").append(id).append("\",result=\"hit\"} ").append(entry.getMemoHits()).append('\n');
+            out.append("managed_script_memo_lookups_total{id=\"").append(id).append("\",result=\"miss\"} ").append(entry.getMemoMisses()).append('\n');
+        }
+        out.append("# HELP managed_script_phase_seconds Duration of the phases of managed script executions.\n");
+        out.append("# TYPE managed_script_phase_seconds histogram\n");
+        for (Entry entry : entries) {
+            String id = escape(entry.id);
+            for (Phase phase : Phase.values()) {
+                Histogram h = entry.histograms[phase.ordinal()];
+                String labels = "id=\"" + id + "\",phase=\"" + phase.getLabel() + "\"";
+                long cumulative = 0;
+                for (int i = 0; i <= BUCKETS.length; i++) {
+                    cumulative += h.buckets[i].sum();
+                    String le = i < BUCKETS.length ? Double.toString(BUCKETS[i]) : "+Inf";
+                    out.append("managed_script_phase_seconds_bucket{").append(labels).append(",le=\"").append(le).append("\"} ").append(cumulative).append('\n');
+                }
+                out.append("managed_script_phase_seconds_sum{").append(labels).append("} ").append(h.sumNanos.sum() / 1e9).append('\n');
+                out.append("managed_script_phase_seconds_count{").append(labels).append("} ").append(cumulative).append('\n');
+            }
+        }
+    }
+
+    private static String escape(String label) {
+        return label.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    /**
+     * The metrics of one config id.
+     */
+    public static final class Entry {
+        private final String id;
+        private final LongAdder successes = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+        private final LongAdder memoHits = new LongAdder();
+        private final LongAdder memoMisses = new LongAdder();
+        private final Histogram[] histograms = new Histogram[Phase.values().length];
+
+        private Entry(String id) {
+            this.id = id;
+            for (int i = 0; i < histograms.length; i++) {
+                histograms[i] = new Histogram();
+            }
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public long getSuccesses() {
+            return successes.sum();
+        }
+
+        public long getFailures() {
+            return failures.sum();
+        }
+
+        /**
+         * @return the number of executions skipped as their outputs got restored from the {@link MemoCache}
+         */
+        public long getMemoHits() {
+            return memoHits.sum();
+        }
+
+        /**
+         * @return the number of executions of a memoized script which found no cached outputs
+         */
+        public long getMemoMisses() {
+            return memoMisses.sum();
+        }
+
+        /**
+         * @param phase the name of the phase
+         * @return the number of recorded durations of the phase
+         */
+        public long getCount(String phase) {
+            return histograms[Phase.valueOf(phase).ordinal()].count.sum();
+        }
+
+        /**
+         * @param phase the name of the phase
+         * @return the mean duration of the phase in milliseconds
+         */
+        public long getMeanMillis(String phase) {
+            Histogram h = histograms[Phase.valueOf(phase).ordinal()];
+            long count = h.count.sum();
+            return count == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(h.sumNanos.sum() / count);
+        }
+
+        /**
+         * @return the time spent executing this script in total, in seconds
+         */
+        public long getTotalSeconds() {
+            return TimeUnit.NANOSECONDS.toSeconds(histograms[Phase.TOTAL.ordinal()].sumNanos.sum());
+        }
+    }
+
+    private static final class Histogram {
+        private final LongAdder[] buckets = new LongAdder[BUCKETS.length + 1];
+        private final LongAdder sumNanos = new LongAdder();
+        private final LongAdder count = new LongAdder();
+
+        private Histogram() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        private void record(long nanos) {
+            int i = 0;
+            while (i < BUCKET_NANOS.length && nanos > BUCKET_NANOS[i]) {
+                i++;
+            }
+            buckets[i].increment();
+            sumNanos.add(nanos);
+            count.increment();
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import hudson.Extension;
+import hudson.model.ManagementLink;
+import hudson.security.Permission;
+import jenkins.model.Jenkins;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+import org.kohsuke.stapler.interceptor.RequirePOST;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.List;
+
+/**
+ * Shows the {@link ScriptMetrics} next to the managed files and serves them in the Prometheus text format at
+ * <code>manage/managed-script-metrics/prometheus</code>.
+ */
+@Extension
+public class ScriptMetricsLink extends ManagementLink {
+
+    @Override
+    public String getIconFileName() {
+        return "monitor.png";
+    }
+
+    @Override
+    public String getDisplayName() {
+        return Messages.metrics_display_name();
+    }
+
+    @Override
+    public String getDescription() {
+        return Messages.metrics_description();
+    }
+
+    @Override
+    public String getUrlName() {
+        return "managed-script-metrics";
+    }
+
+    @Override
+    public Permission getRequiredPermission() {
+        return Jenkins.ADMINISTER;
+    }
+
+    @Override
+    public Category getCategory() {
+        return Category.STATUS;
+    }
+
+    public List<ScriptMetrics.Entry> getEntries() {
+        return ScriptMetrics.getEntries();
+    }
+
+    public ScriptMetrics.Phase[] getPhases() {
+        return ScriptMetrics.Phase.values();
+    }
+
+    /**
+     * @return the space used by the managed scripts as last computed, <code>null</code> while the first report is computed
+     */
+    @CheckForNull
+    public ScriptBlobStore.Report getStorageReport() {
+        return ScriptBlobStore.getReport();
+    }
+
+    /**
+     * @return the scripts pushed to the nodes by the {@link ScriptDistributor}
+     */
+    public List<ScriptDistributor.NodeStatus> getDistribution() {
+        return ScriptDistributor.getStatuses();
+    }
+
+    /**
+     * Serves the metrics in the Prometheus text exposition format.
+     */
+    public void doPrometheus(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+        StringBuilder out = new StringBuilder();
+        ScriptMetrics.writePrometheus(out);
+        rsp.setContentType("text/plain; version=0.0.4; charset=UTF-8");
+        PrintWriter w = rsp.getWriter();
+        w.write(out.toString());
+        w.flush();
+    }
+
+    /**
+     * Drops the metrics recorded so far.
+     */
+    @RequirePOST
+    public void doReset(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+        ScriptMetrics.reset();
+        rsp.sendRedirect(".");
+    }
+}
@@ -0,0 +1,171 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Proc;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import hudson.util.ProcessTree;
+import jenkins.model.Jenkins;
+import jenkins.security.MasterToSlaveCallable;
+import jenkins.util.Timer;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Enforces the timeout of a managed script.
+ * <p>
+ * Same semantics as {@link Proc#joinWithTimeout(long, TimeUnit, TaskListener)}: once the deadline passes the process gets killed
+ * and the join returns. Before the kill, the processes still running for the build are written to the build log, so a hanging
+ * script can be diagnosed afterwards. {@link Proc#kill()} kills the whole process tree of the script. The timeout is enforced the
+ * same way on the controller and on the execution hosts, for the scripts launched there by a {@link RemoteScriptRunner}.
+ */
+final class ScriptTimeout {
+
+    private static final Logger LOGGER = Logger.getLogger(ScriptTimeout.class.getName());
+
+    /**
+     * the listener of the build step running on the current thread, for the {@link hudson.tasks.CommandInterpreter} based build
+     * steps which don't get it passed to their <code>join</code>
+     */
+    private static final ThreadLocal<TaskListener> LISTENER = new ThreadLocal<TaskListener>();
+
+    private ScriptTimeout() {
+    }
+
+    /**
+     * Kills the timed out scripts on the execution hosts, where {@link Timer} is not available.
+     */
+    private static final class AgentTimer {
+        private static final ScheduledExecutorService EXECUTOR = Executors.newSingleThreadScheduledExecutor(
+                new NamingThreadFactory(new DaemonThreadFactory(), "managed script timeout"));
+    }
+
+    private static ScheduledExecutorService timer() {
+        return Jenkins.getInstanceOrNull() != null ? Timer.get() : AgentTimer.EXECUTOR;
+    }
+
+    /**
+     * @param stepTimeout   the timeout of the build step in seconds, 0 to use the timeout of the script
+     * @param scriptTimeout the timeout of the script in seconds, 0 for no timeout
+     * @return the timeout to enforce in seconds, 0 for no timeout
+     */
+    static int effective(int stepTimeout, int scriptTimeout) {
+        return stepTimeout > 0 ? stepTimeout : Math.max(scriptTimeout, 0);
+    }
+
+    /**
+     * Waits for the process to finish, kills it if the timeout passes first.
+     *
+     * @param proc      the running script
+     * @param timeout   the timeout in seconds, 0 to wait forever
+     * @param channel   the channel of the execution host, used for the diagnostic snapshot ({@link hudson.FilePath#localChannel} on
+     *                  the execution host itself)
+     * @param cookie    the environment variables identifying the processes of the build
+     * @param listener  the listener of the build
+     * @return the exit code of the process
+     */
+    static int join(@NonNull final Proc proc, int timeout, @CheckForNull final VirtualChannel channel, @NonNull Map<String, String> cookie,
+            @NonNull final TaskListener listener) throws IOException, InterruptedException {
+        if (timeout <= 0) {
+            return proc.join();
+        }
+        final long started = System.nanoTime();
+        final Map<String, String> model = new HashMap<String, String>(cookie);
+        ScheduledFuture<?> killer = timer().schedule(new Runnable() {
+            public void run() {
+                try {
+                    if (!proc.isAlive()) {
+                        return;
+                    }
+                    PrintStream logger = listener.getLogger();
+                    logger.println("managed script timed out after " + TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - started)
+                            + " seconds, killing the process tree");
+                    if (channel != null) {
+                        logger.print(channel.call(new Snapshot(model)));
+                    }
+                    proc.kill();
+                } catch (IOException | RuntimeException e) {
+                    LOGGER.log(Level.WARNING, "Failed to kill the timed out managed script", e);
+                    listener.error("failed to kill the timed out managed script: " + e);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, timeout, TimeUnit.SECONDS);
+        try {
+            return proc.join();
+        } finally {
+            killer.cancel(false);
+        }
+    }
+
+    /**
+     * Remembers the listener of the build step running on the current thread.
+     *
+     * @param listener the listener, <code>null</code> to forget it
+     */
+    static void setListener(@CheckForNull TaskListener listener) {
+        if (listener == null) {
+            LISTENER.remove();
+        } else {
+            LISTENER.set(listener);
+        }
+    }
+
+    /**
+     * @return the listener of the build step running on the current thread, {@link TaskListener#NULL} if unknown
+     */
+    @NonNull
+    static TaskListener getListener() {
+        TaskListener listener = LISTENER.get();
+        return listener != null ? listener : TaskListener.NULL;
+    }
+
+    /**
+     * Lists the processes of the build still running on the execution host.
+     */
+    private static final class Snapshot extends MasterToSlaveCallable<String, RuntimeException> {
+        private static final long serialVersionUID = 1L;
+
+        private final HashMap<String, String> cookie;
+
+        Snapshot(Map<String, String> cookie) {
+            this.cookie = new HashMap<String, String>(cookie);
+        }
+
+        public String call() {
+            StringBuilder sb = new StringBuilder("processes still running for this build:\n");
+            int count = 0;
+            for (ProcessTree.OSProcess p : ProcessTree.get()) {
+                if (!p.hasMatchingEnvVars(cookie)) {
+                    continue;
+                }
+                ProcessTree.OSProcess parent = p.getParent();
+                sb.append("  pid ").append(p.getPid());
+                if (parent != null) {
+                    sb.append(" (parent ").append(parent.getPid()).append(')');
+                }
+                List<String> arguments = p.getArguments();
+                sb.append(": ").append(arguments.isEmpty() ? "?" : String.join(" ", arguments)).append('\n');
+                count++;
+            }
+            if (count == 0) {
+                sb.append("  none found (the process list is not available on every platform)\n");
+            }
+            return sb.toString();
+        }
+    }
+}
@@ -0,0 +1,534 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.BulkChange;
+import hudson.Extension;
+import hudson.Util;
+import hudson.cli.CLICommand;
+import hudson.model.RootAction;
+import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONException;
+import net.sf.json.JSONObject;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.io.IOUtils;
+import org.jenkinsci.lib.configprovider.model.Config;
+import org.jenkinsci.plugins.configfiles.GlobalConfigFiles;
+import org.kohsuke.args4j.Option;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+import org.kohsuke.stapler.interceptor.RequirePOST;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Imports and exports the managed scripts of the global config store in bulk.
+ * <p>
+ * Every script is a JSON object:
+ * <code>{"type": "script|winbatch|powershell", "id": "...", "name": "...", "comment": "...", "content": "...", "args": ["..."], "timeout": 0}</code>,
+ * managed scripts may also have <code>stdin</code>, <code>outputLimit</code> (<code>maxLines</code>, <code>maxBytes</code>,
+ * <code>collapseRepeated</code>), <code>warmWorkers</code> (<code>poolSize</code>, <code>maxUses</code>) and
+ * <code>memoization</code> (<code>inputs</code>, <code>outputs</code>), PowerShell scripts may have <code>host</code> (<code>executable</code>,
+ * <code>poolSize</code>, <code>maxUses</code>). A stream is either NDJSON, one object per line, or a
+ * (optionally gzip compressed) tar archive with one <code>.json</code> file per object. Lines and files are read as a whole,
+ * each of at most {@link #MAX_ENTRY_SIZE} bytes.
+ * <p>
+ * An import validates the objects while reading them and stops reading after {@link #MAX_ERRORS} errors. Only if all objects are
+ * valid, the scripts are added to the store, replacing the ones with the same id, and the store is saved once for all of them.
+ * An export writes one script after the other, so only a single script is held in memory besides the store.
+ * <p>
+ * The transfer is available at <code>managed-scripts-transfer/import</code> and <code>managed-scripts-transfer/export</code>
+ * and through the CLI commands <code>import-managed-scripts</code> and <code>export-managed-scripts</code>.
+ */
+public final class ScriptTransfer {
+
+    /**
+     * maximum number of errors reported by an import
+     */
+    static final int MAX_ERRORS = 100;
+
+    /**
+     * maximum size in bytes of an NDJSON line or of a <code>.json</code> file of a tar archive
+     */
+    static long MAX_ENTRY_SIZE = SystemProperties.getLong(ScriptTransfer.class.getName() + ".maxEntrySize", 16L * 1024 * 1024);
+
+    private ScriptTransfer() {
+    }
+
+    /**
+     * The formats of a stream of scripts.
+     */
+    public enum Format {
+        NDJSON, TAR;
+
+        /**
+         * @param name the name of the format, ignoring case, <code>null</code> for {@link #NDJSON}
+         * @return the format
+         * @throws IllegalArgumentException if the format is unknown
+         */
+        @NonNull
+        static Format of(@CheckForNull String name) {
+            return name == null || name.trim().isEmpty() ? NDJSON : valueOf(name.trim().toUpperCase(Locale.ENGLISH));
+        }
+    }
+
+    /**
+     * Reads scripts from a stream and adds them to the global config store in one save.
+     *
+     * @param in     the stream
+     * @param format the format of the stream
+     * @param dryRun whether to validate the scripts only
+     * @return the outcome, nothing got saved if it has errors
+     */
+    @NonNull
+    public static Result importFrom(@NonNull InputStream in, @NonNull Format format, boolean dryRun) throws IOException {
+        Result result = new Result();
+        List<Config> configs = new ArrayList<Config>();
+        Set<String> ids = new HashSet<String>();
+        if (format == Format.NDJSON) {
+            InputStream buffered = new BufferedInputStream(in);
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int number = 0;
+            while (result.errors.size() < MAX_ERRORS) {
+                long size = readLine(buffered, line);
+                if (size < 0) {
+                    break;
+                }
+                number++;
+                if (size > MAX_ENTRY_SIZE) {
+                    result.errors.add("line " + number + ": " + size + " bytes exceed the limit of " + MAX_ENTRY_SIZE + " bytes");
+                    continue;
+                }
+                String json = new String(line.toByteArray(), StandardCharsets.UTF_8);
+                if (!json.trim().isEmpty()) {
+                    read(json, "line " + number, ids, configs, result);
+                }
+            }
+        } else {
+            InputStream buffered = new BufferedInputStream(in);
+            buffered.mark(2);
+            boolean gzip = buffered.read() == 0x1f && buffered.read() == 0x8b;
+            buffered.reset();
+            TarArchiveInputStream tar = new TarArchiveInputStream(gzip ? new GZIPInputStream(buffered) : buffered, StandardCharsets.UTF_8.name());
+            TarArchiveEntry entry;
+            while ((entry = tar.getNextTarEntry()) != null && result.errors.size() < MAX_ERRORS) {
+                if (!entry.isFile() || !entry.getName().endsWith(".json")) {
+                    continue;
+                }
+                if (entry.getSize() > MAX_ENTRY_SIZE) {
+                    result.errors.add(entry.getName() + ": " + entry.getSize() + " bytes exceed the limit of " + MAX_ENTRY_SIZE + " bytes");
+                    continue;
+                }
+                read(IOUtils.toString(tar, StandardCharsets.UTF_8), entry.getName(), ids, configs, result);
+            }
+        }
+        if (!result.errors.isEmpty() || dryRun) {
+            return result;
+        }
+
+        GlobalConfigFiles store = GlobalConfigFiles.get();
+        // every save(Config) would persist the whole store
+        try (BulkChange bc = new BulkChange(store)) {
+            for (Config config : configs) {
+                store.save(config);
+            }
+            bc.commit();
+        }
+        return result;
+    }
+
+    /**
+     * Reads the next line of an NDJSON stream, keeping at most {@link #MAX_ENTRY_SIZE} bytes of it.
+     *
+     * @param in   the stream
+     * @param line receives the line without the line feed, left incomplete if the line is too long
+     * @return the size of the whole line in bytes, <code>-1</code> at the end of the stream
+     */
+    private static long readLine(InputStream in, ByteArrayOutputStream line) throws IOException {
+        line.reset();
+        long size = 0;
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            if (++size <= MAX_ENTRY_SIZE) {
+                line.write(b);
+            }
+        }
+        return b == -1 && size == 0 ? -1 : size;
+    }
+
+    private static void read(String json, String where, Set<String> ids, List<Config> configs, Result result) {
+        try {
+            Config config = toConfig(JSONObject.fromObject(json));
+            if (!ids.add(config.id)) {
+                throw new IllegalArgumentException("duplicate id '" + config.id + "'");
+            }
+            Config existing = GlobalConfigFiles.get().getById(config.id);
+            if (existing != null && existing.getClass() != config.getClass()) {
+                throw new IllegalArgumentException("id '" + config.id + "' is already used by a config of another type");
+            }
+            if (existing != null) {
+                result.updated++;
+            } else {
+                result.created++;
+            }
+            configs.add(config);
+        } catch (JSONException | IllegalArgumentException e) {
+            result.errors.add(where + ": " + e.getMessage());
+        }
+    }
+
+    private static Config toConfig(JSONObject json) {
+        String type = json.optString("type", "script");
+        String id = Util.fixEmptyAndTrim(json.optString("id", null));
+        if (id == null) {
+            throw new IllegalArgumentException("id is missing");
+        }
+        // a JSON null would be read as the string "null"
+        if (!(json.opt("content") instanceof String)) {
+            throw new IllegalArgumentException("content of '" + id + "' is missing or not a string");
+        }
+        String name = json.optString("name", id);
+        String comment = json.optString("comment", "");
+        String content = json.getString("content");
+        List<String> args = new ArrayList<String>();
+        JSONArray array = json.optJSONArray("args");
+        if (array != null) {
+            for (int i = 0; i < array.size(); i++) {
+                args.add(array.getString(i));
+            }
+        }
+        int timeout = json.optInt("timeout", 0);
+        if ("script".equals(type)) {
+            List<ScriptConfig.Arg> scriptArgs = new ArrayList<ScriptConfig.Arg>();
+            for (String arg : args) {
+                scriptArgs.add(new ScriptConfig.Arg(arg));
+            }
+            ScriptConfig config = new ScriptConfig(id, name, comment, content, scriptArgs);
+            config.setTimeout(timeout);
+            config.setStdin(json.optBoolean("stdin", false));
+            JSONObject limit = json.optJSONObject("outputLimit");
+            if (limit != null && !limit.isNullObject()) {
+                config.setOutputLimit(new OutputLimit(limit.optInt("maxLines", 0), limit.optLong("maxBytes", 0), limit.optBoolean("collapseRepeated", false)));
+            }
+            JSONObject warm = json.optJSONObject("warmWorkers");
+            if (warm != null && !warm.isNullObject()) {
+                config.setWarmWorkers(new WarmWorkers(warm.optInt("poolSize", 0), warm.optInt("maxUses", 0)));
+            }
+            JSONObject memo = json.optJSONObject("memoization");
+            if (memo != null && !memo.isNullObject()) {
+                config.setMemoization(new Memoization(memo.optString("inputs", null), memo.optString("outputs", null)));
+            }
+            return config;
+        } else if ("winbatch".equals(type)) {
+            List<WinBatchConfig.Arg> batchArgs = new ArrayList<WinBatchConfig.Arg>();
+            for (String arg : args) {
+                batchArgs.add(new WinBatchConfig.Arg(arg));
+            }
+            WinBatchConfig config = new WinBatchConfig(id, name, comment, content, batchArgs);
+            config.setTimeout(timeout);
+            return config;
+        } else if ("powershell".equals(type)) {
+            List<PowerShellConfig.Arg> powerShellArgs = new ArrayList<PowerShellConfig.Arg>();
+            for (String arg : args) {
+                powerShellArgs.add(new PowerShellConfig.Arg(arg));
+            }
+            PowerShellConfig config = new PowerShellConfig(id, name, comment, content, powerShellArgs);
+            config.setTimeout(timeout);
+            JSONObject host = json.optJSONObject("host");
+            if (host != null && !host.isNullObject()) {
+                config.setHost(new PowerShellHost(host.optString("executable", null), host.optInt("poolSize", 0), host.optInt("maxUses", 0)));
+            }
+            return config;
+        }
+        throw new IllegalArgumentException("unknown type '" + type + "' of '" + id + "'");
+    }
+
+    /**
+     * Writes all managed scripts of the global config store to a stream.
+     *
+     * @param out    the stream, not closed
+     * @param format the format to write
+     * @return the number of scripts written
+     */
+    public static int exportTo(@NonNull OutputStream out, @NonNull Format format) throws IOException {
+        int count = 0;
+        if (format == Format.NDJSON) {
+            Writer w = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+            for (Config config : GlobalConfigFiles.get().getConfigs()) {
+                JSONObject json = toJson(config);
+                if (json != null) {
+                    w.write(json.toString());
+                    w.write('\n');
+                    count++;
+                }
+            }
+            w.flush();
+        } else {
+            TarArchiveOutputStream tar = new TarArchiveOutputStream(out, StandardCharsets.UTF_8.name());
+            tar.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+            for (Config config : GlobalConfigFiles.get().getConfigs()) {
+                JSONObject json = toJson(config);
+                if (json != null) {
+                    byte[] bytes = json.toString(2).getBytes(StandardCharsets.UTF_8);
+                    TarArchiveEntry entry = new TarArchiveEntry(json.getString("type") + "/" + Util.rawEncode(config.id) + ".json");
+                    entry.setSize(bytes.length);
+                    tar.putArchiveEntry(entry);
+                    tar.write(bytes);
+                    tar.closeArchiveEntry();
+                    count++;
+                }
+            }
+            tar.finish();
+        }
+        out.flush();
+        return count;
+    }
+
+    /**
+     * @return the JSON object of a managed script, <code>null</code> for other configs
+     */
+    @CheckForNull
+    private static JSONObject toJson(Config config) {
+        JSONObject json = new JSONObject();
+        JSONArray args = new JSONArray();
+        if (config instanceof ScriptConfig) {
+            ScriptConfig script = (ScriptConfig) config;
+            json.put("type", "script");
+            if (script.args != null) {
+                for (ScriptConfig.Arg arg : script.args) {
+                    args.add(arg.name);
+                }
+            }
+            json.put("timeout", script.getTimeout());
+            json.put("stdin", script.isStdin());
+            if (script.getOutputLimit() != null) {
+                JSONObject limit = new JSONObject();
+                limit.put("maxLines", script.getOutputLimit().getMaxLines());
+                limit.put("maxBytes", script.getOutputLimit().getMaxBytes());
+                limit.put("collapseRepeated", script.getOutputLimit().isCollapseRepeated());
+                json.put("outputLimit", limit);
+            }
+            if (script.getWarmWorkers() != null) {
+                JSONObject warm = new JSONObject();
+                warm.put("poolSize", script.getWarmWorkers().getPoolSize());
+                warm.put("maxUses", script.getWarmWorkers().getMaxUses());
+                json.put("warmWorkers", warm);
+            }
+            if (script.getMemoization() != null) {
+                JSONObject memo = new JSONObject();
+                memo.put("inputs", script.getMemoization().getInputs());
+                memo.put("outputs", script.getMemoization().getOutputs());
+                json.put("memoization", memo);
+            }
+        } else if (config instanceof WinBatchConfig) {
+            WinBatchConfig batch = (WinBatchConfig) config;
+            json.put("type", "winbatch");
+            if (batch.args != null) {
+                for (WinBatchConfig.Arg arg : batch.args) {
+                    args.add(arg.name);
+                }
+            }
+            json.put("timeout", batch.getTimeout());
+        } else if (config instanceof PowerShellConfig) {
+            PowerShellConfig powerShell = (PowerShellConfig) config;
+            json.put("type", "powershell");
+            if (powerShell.args != null) {
+                for (PowerShellConfig.Arg arg : powerShell.args) {
+                    args.add(arg.name);
+                }
+            }
+            json.put("timeout", powerShell.getTimeout());
+            if (powerShell.getHost() != null) {
+                JSONObject host = new JSONObject();
+                host.put("executable", powerShell.getHost().getExecutable());
+                host.put("poolSize", powerShell.getHost().getPoolSize());
+                host.put("maxUses", powerShell.getHost().getMaxUses());
+                json.put("host", host);
+            }
+        } else {
+            return null;
+        }
+        json.put("id", config.id);
+        json.put("name", config.name);
+        json.put("comment", config.comment);
+        json.put("args", args);
+        json.put("content", ScriptBodies.of(config));
+        return json;
+    }
+
+    /**
+     * The outcome of an import.
+     */
+    public static final class Result {
+        private int created;
+        private int updated;
+        private final List<String> errors = new ArrayList<String>();
+
+        public int getCreated() {
+            return created;
+        }
+
+        public int getUpdated() {
+            return updated;
+        }
+
+        @NonNull
+        public List<String> getErrors() {
+            return errors;
+        }
+
+        JSONObject toJson() {
+            JSONObject json = new JSONObject();
+            json.put("created", created);
+            json.put("updated", updated);
+            json.put("errors", JSONArray.fromObject(errors));
+            return json;
+        }
+    }
+
+    /**
+     * Serves the import and the export over HTTP.
+     */
+    @Extension
+    public static final class TransferAction implements RootAction {
+
+        public String getIconFileName() {
+            return null;
+        }
+
+        public String getDisplayName() {
+            return null;
+        }
+
+        public String getUrlName() {
+            return "managed-scripts-transfer";
+        }
+
+        /**
+         * Imports the scripts posted in the request body, answers with the outcome as JSON, status 400 if nothing got saved.
+         *
+         * @param format <code>ndjson</code> (default) or <code>tar</code>
+         * @param dryRun whether to validate the scripts only
+         */
+        @RequirePOST
+        public void doImport(StaplerRequest req, StaplerResponse rsp, @QueryParameter String format, @QueryParameter boolean dryRun) throws IOException {
+            Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+            Format f;
+            try {
+                f = Format.of(format);
+            } catch (IllegalArgumentException e) {
+                rsp.sendError(StaplerResponse.SC_BAD_REQUEST, "unknown format " + format);
+                return;
+            }
+            Result result = importFrom(req.getInputStream(), f, dryRun);
+            if (!result.getErrors().isEmpty()) {
+                rsp.setStatus(StaplerResponse.SC_BAD_REQUEST);
+            }
+            rsp.setContentType("application/json;charset=UTF-8");
+            rsp.getWriter().write(result.toJson().toString());
+        }
+
+        /**
+         * Streams all managed scripts.
+         *
+         * @param format <code>ndjson</code> (default) or <code>tar</code>
+         */
+        public void doExport(StaplerResponse rsp, @QueryParameter String format) throws IOException {
+            Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+            Format f;
+            try {
+                f = Format.of(format);
+            } catch (IllegalArgumentException e) {
+                rsp.sendError(StaplerResponse.SC_BAD_REQUEST, "unknown format " + format);
+                return;
+            }
+            rsp.setContentType(f == Format.NDJSON ? "application/x-ndjson;charset=UTF-8" : "application/x-tar");
+            rsp.setHeader("Content-Disposition", "attachment; filename=managed-scripts." + (f == Format.NDJSON ? "ndjson" : "tar"));
+            exportTo(rsp.getOutputStream(), f);
+        }
+    }
+
+    /**
+     * Imports managed scripts from stdin.
+     */
+    @Extension
+    public static final class ImportCommand extends CLICommand {
+
+        // an unknown format is rejected as a usage error
+        @Option(name = "--format", usage = "ndjson (default) or tar, optionally gzip compressed")
+        public Format format = Format.NDJSON;
+
+        @Option(name = "--dry-run", usage = "only validate the scripts")
+        public boolean dryRun;
+
+        @Override
+        public String getName() {
+            return "import-managed-scripts";
+        }
+
+        @Override
+        public String getShortDescription() {
+            return "Imports managed scripts into the global config store in one save.";
+        }
+
+        @Override
+        protected int run() throws Exception {
+            Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+            Result result = importFrom(stdin, format, dryRun);
+            for (String error : result.getErrors()) {
+                stderr.println(error);
+            }
+            if (!result.getErrors().isEmpty()) {
+                stderr.println("nothing imported");
+                return 1;
+            }
+            stdout.println((dryRun ? "would create " : "created ") + result.getCreated() + " and " + (dryRun ? "update " : "updated ") + result.getUpdated() + " scripts");
+            return 0;
+        }
+    }
+
+    /**
+     * Exports all managed scripts to stdout.
+     */
+    @Extension
+    public static final class ExportCommand extends CLICommand {
+
+        @Option(name = "--format", usage = "ndjson (default) or tar")
+        public Format format = Format.NDJSON;
+
+        @Override
+        public String getName() {
+            return "export-managed-scripts";
+        }
+
+        @Override
+        public String getShortDescription() {
+            return "Exports the managed scripts of the global config store.";
+        }
+
+        @Override
+        protected int run() throws Exception {
+            Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+            exportTo(stdout, format);
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,289 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.AbstractProject;
+import hudson.model.Item;
+import hudson.model.Project;
+import hudson.model.Saveable;
+import hudson.model.listeners.ItemListener;
+import hudson.model.listeners.SaveableListener;
+import hudson.tasks.Builder;
+import jenkins.model.Jenkins;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import org.kohsuke.stapler.StaplerResponse;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Knows which jobs reference which managed script, so the users of a script are found without loading and scanning every job.
+ * <p>
+ * The index maps the full name of every freestyle and multi-configuration project to the ids referenced by its
+ * {@link ScriptBuildStep}s, {@link WinBatchBuildStep}s and {@link PowerShellBuildStep}s, and every id back to the projects. It is
+ * built on startup by scanning the projects already loaded, which only walks their builders in memory, then kept up to date by
+ * listening to the projects being saved, created, copied, moved and deleted. It is not persisted: a file written by a previous
+ * start would not know about the jobs changed on disk meanwhile.
+ * <p>
+ * Only the ids are indexed, not the config store they get resolved in: a project referencing an id shadowed by a folder level
+ * config is listed as a user of the global config too. Pipeline jobs are not indexed, their scripts are only known when executed.
+ */
+public final class ScriptUsageIndex {
+
+    private static final Logger LOGGER = Logger.getLogger(ScriptUsageIndex.class.getName());
+
+    /**
+     * full name of the project to the referenced ids
+     */
+    private static final Map<String, Set<String>> JOBS = new HashMap<String, Set<String>>();
+
+    /**
+     * id to the full names of the projects referencing it
+     */
+    private static final Map<String, Set<String>> USERS = new HashMap<String, Set<String>>();
+
+    private ScriptUsageIndex() {
+    }
+
+    @Initializer(after = InitMilestone.JOB_LOADED)
+    public static void load() {
+        long start = System.currentTimeMillis();
+        synchronized (JOBS) {
+            JOBS.clear();
+            USERS.clear();
+            for (AbstractProject<?, ?> project : Jenkins.get().allItems(AbstractProject.class)) {
+                if (isIndexed(project)) {
+                    put(project.getFullName(), ids(project));
+                }
+            }
+        }
+        LOGGER.log(Level.FINE, "indexed the managed script usage of all jobs in {0} ms", System.currentTimeMillis() - start);
+    }
+
+    /**
+     * @return whether the given item is a project whose builders are indexed, the configurations of a multi-configuration project
+     *         are indexed as their parent
+     */
+    private static boolean isIndexed(Item item) {
+        return item instanceof AbstractProject && !(item.getParent() instanceof AbstractProject);
+    }
+
+    /**
+     * @return the ids referenced by the build steps of the given project
+     */
+    private static Set<String> ids(AbstractProject<?, ?> project) {
+        Set<String> ids = new TreeSet<String>();
+        for (Builder builder : builders(project)) {
+            String id = null;
+            if (builder instanceof ScriptBuildStep) {
+                id = ((ScriptBuildStep) builder).getBuildStepId();
+            } else if (builder instanceof WinBatchBuildStep) {
+                id = ((WinBatchBuildStep) builder).getBuildStepId();
+            } else if (builder instanceof PowerShellBuildStep) {
+                id = ((PowerShellBuildStep) builder).getBuildStepId();
+            }
+            if (id != null) {
+                ids.add(id);
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * @return the builders of a freestyle or multi-configuration project, the latter is not a {@link Project} and the matrix
+     *         project plugin is not a dependency
+     */
+    private static List<Builder> builders(AbstractProject<?, ?> project) {
+        if (project instanceof Project) {
+            return ((Project<?, ?>) project).getBuilders();
+        }
+        List<Builder> builders = new ArrayList<Builder>();
+        try {
+            Object list = project.getClass().getMethod("getBuilders").invoke(project);
+            if (list instanceof List) {
+                for (Object builder : (List<?>) list) {
+                    if (builder instanceof Builder) {
+                        builders.add((Builder) builder);
+                    }
+                }
+            }
+        } catch (NoSuchMethodException e) {
+            // a project type without builders
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            LOGGER.log(Level.FINE, "Failed to get the builders of " + project.getFullName(), e);
+        }
+        return builders;
+    }
+
+    /**
+     * Replaces the ids referenced by a job, must be called holding the lock on {@link #JOBS}.
+     *
+     * @return whether the index changed
+     */
+    private static boolean put(String job, Set<String> ids) {
+        Set<String> previous = ids.isEmpty() ? JOBS.remove(job) : JOBS.put(job, ids);
+        if (previous == null ? ids.isEmpty() : previous.equals(ids)) {
+            return false;
+        }
+        if (previous != null) {
+            for (String id : previous) {
+                Set<String> users = USERS.get(id);
+                if (users != null && users.remove(job) && users.isEmpty()) {
+                    USERS.remove(id);
+                }
+            }
+        }
+        for (String id : ids) {
+            Set<String> users = USERS.get(id);
+            if (users == null) {
+                users = new TreeSet<String>();
+                USERS.put(id, users);
+            }
+            users.add(job);
+        }
+        return true;
+    }
+
+    private static void update(Item item) {
+        if (!isIndexed(item)) {
+            return;
+        }
+        Set<String> ids = ids((AbstractProject<?, ?>) item);
+        synchronized (JOBS) {
+            put(item.getFullName(), ids);
+        }
+    }
+
+    /**
+     * Drops the given job and, if it is a folder, all jobs below it.
+     */
+    private static void remove(String fullName) {
+        String prefix = fullName + "/";
+        synchronized (JOBS) {
+            for (String job : new ArrayList<String>(JOBS.keySet())) {
+                if (job.equals(fullName) || job.startsWith(prefix)) {
+                    put(job, Collections.<String>emptySet());
+                }
+            }
+        }
+    }
+
+    /**
+     * Moves the given job and, if it is a folder, all jobs below it.
+     */
+    private static void move(String oldFullName, String newFullName) {
+        String prefix = oldFullName + "/";
+        synchronized (JOBS) {
+            for (String job : new ArrayList<String>(JOBS.keySet())) {
+                if (job.equals(oldFullName) || job.startsWith(prefix)) {
+                    Set<String> ids = JOBS.get(job);
+                    put(job, Collections.<String>emptySet());
+                    put(newFullName + job.substring(oldFullName.length()), ids);
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets the jobs referencing a managed script which are visible to the current user.
+     *
+     * @param id the config id
+     * @return the jobs, ordered by full name
+     */
+    @NonNull
+    public static List<Item> getUsers(@CheckForNull String id) {
+        List<String> names;
+        synchronized (JOBS) {
+            Set<String> users = id != null ? USERS.get(id) : null;
+            if (users == null) {
+                return Collections.emptyList();
+            }
+            names = new ArrayList<String>(users);
+        }
+        List<Item> items = new ArrayList<Item>(names.size());
+        Jenkins jenkins = Jenkins.get();
+        for (String name : names) {
+            Item item = jenkins.getItemByFullName(name);
+            // only lists the jobs the current user may read, not just discover
+            if (item != null && item.hasPermission(Item.READ)) {
+                items.add(item);
+            }
+        }
+        return items;
+    }
+
+    /**
+     * Writes the jobs referencing a managed script which are visible to the current user as JSON
+     * (<code>{"id": "...", "jobs": [{"name": "...", "url": "..."}]}</code>).
+     *
+     * @param id  the config id
+     * @param rsp the response to write to
+     */
+    public static void write(@CheckForNull String id, @NonNull StaplerResponse rsp) throws IOException {
+        JSONArray jobs = new JSONArray();
+        for (Item item : getUsers(id)) {
+            JSONObject job = new JSONObject();
+            job.put("name", item.getFullName());
+            job.put("url", item.getAbsoluteUrl());
+            jobs.add(job);
+        }
+        JSONObject result = new JSONObject();
+        result.put("id", id);
+        result.put("jobs", jobs);
+
+        rsp.setContentType("application/json;charset=UTF-8");
+        rsp.getWriter().write(result.toString());
+    }
+
+    /**
+     * Re-indexes a project whenever it gets persisted.
+     */
+    @Extension
+    public static final class SaveListener extends SaveableListener {
+        @Override
+        public void onChange(Saveable o, XmlFile file) {
+            if (o instanceof Item) {
+                update((Item) o);
+            }
+        }
+    }
+
+    /**
+     * Follows the projects being created, copied, moved and deleted.
+     */
+    @Extension
+    public static final class ItemChangeListener extends ItemListener {
+        @Override
+        public void onCreated(Item item) {
+            update(item);
+        }
+
+        @Override
+        public void onCopied(Item src, Item item) {
+            update(item);
+        }
+
+        @Override
+        public void onLocationChanged(Item item, String oldFullName, String newFullName) {
+            move(oldFullName, newFullName);
+        }
+
+        @Override
+        public void onDeleted(Item item) {
+            remove(item.getFullName());
+        }
+    }
+}
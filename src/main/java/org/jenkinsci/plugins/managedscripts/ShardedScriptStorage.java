@@ -0,0 +1,495 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import com.thoughtworks.xstream.XStream;
+import com.thoughtworks.xstream.converters.Converter;
+import com.thoughtworks.xstream.converters.MarshallingContext;
+import com.thoughtworks.xstream.converters.UnmarshallingContext;
+import com.thoughtworks.xstream.io.HierarchicalStreamReader;
+import com.thoughtworks.xstream.io.HierarchicalStreamWriter;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Extension;
+import hudson.Util;
+import hudson.XmlFile;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.Items;
+import hudson.model.Saveable;
+import hudson.model.listeners.SaveableListener;
+import hudson.util.RobustReflectionConverter;
+import hudson.util.XStream2;
+import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
+import jenkins.util.Timer;
+import org.apache.commons.io.FileUtils;
+import org.jenkinsci.lib.configprovider.model.Config;
+import org.jenkinsci.plugins.configfiles.GlobalConfigFiles;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.lang.ref.WeakReference;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Stores every managed script of the global config store in a file of its own.
+ * <p>
+ * The global config store persists all configs in one XML file, every edit re-serializes and rewrites all scripts. With this
+ * storage mode the store only keeps a reference per managed script, the script itself lives in
+ * <code>$JENKINS_HOME/managed-scripts/&lt;type&gt;/&lt;id&gt;.xml</code>, its content in the {@link ScriptBlobStore}. Saving the
+ * store only writes the scripts which were added or changed since they got loaded. Every script file is written atomically,
+ * under a lock per id. A script file which cannot be read on startup is replaced by an empty placeholder, which keeps the
+ * reference but never overwrites the script file.
+ * The scripts are loaded without their content, it is read from its blob on demand, see {@link ScriptBodies}.
+ * <p>
+ * The mode is enabled with the system property <code>org.jenkinsci.plugins.managedscripts.ShardedScriptStorage.enabled</code>. Scripts
+ * still stored inline are moved to their own file on startup; once disabled again, the next save of the store writes them inline.
+ * Folder level config stores are not affected.
+ * <p>
+ * The global config store is persisted with the XStream of Jenkins. Its {@link StoreConverter} writes the script files before the
+ * store itself gets written, the {@link ShardConverter} of the managed scripts only writes the references while the store gets
+ * written. Managed scripts serialized otherwise are always written inline and nothing else is written meanwhile.
+ */
+public final class ShardedScriptStorage {
+
+    private static final Logger LOGGER = Logger.getLogger(ShardedScriptStorage.class.getName());
+
+    static boolean ENABLED = SystemProperties.getBoolean(ShardedScriptStorage.class.getName() + ".enabled");
+
+    static final String DIR = "managed-scripts";
+
+    private static final String SHARDED = "sharded";
+
+    /**
+     * serializes the script files, without the {@link ShardConverter} and with the content as a reference to its blob, which is
+     * left unread when loading
+     */
+    private static final XStream2 XSTREAM = new XStream2();
+
+    static {
+        // the scripts reference classes of this plugin and its dependencies only
+        XSTREAM.setClassLoader(ShardedScriptStorage.class.getClassLoader());
+        XSTREAM.registerLocalConverter(Config.class, "content", new ScriptBlobStore.ContentConverter(true));
+    }
+
+    private static final ConcurrentMap<String, Object> LOCKS = new ConcurrentHashMap<String, Object>();
+
+    private static final Class<?>[] MANAGED = { ScriptConfig.class, WinBatchConfig.class, PowerShellConfig.class };
+
+    /**
+     * the config loaded from or last written to every script file, by type and id
+     */
+    private static final ConcurrentMap<String, Stored> STORED = new ConcurrentHashMap<String, Stored>();
+
+    /**
+     * held for reading while a blob and its script file get written, for writing while the orphaned blobs get collected
+     */
+    private static final ReadWriteLock BLOBS = new ReentrantReadWriteLock();
+
+    private static final AtomicBoolean COLLECTION_SCHEDULED = new AtomicBoolean();
+
+    /**
+     * the reference to a blob within a script file, see {@link ScriptBlobStore.ContentConverter}
+     */
+    private static final Pattern BLOB_REFERENCE = Pattern.compile("<content blob=\"([0-9a-fA-F]+)\"");
+
+    /**
+     * whether scripts were loaded inline and have to be moved to their own file
+     */
+    private static volatile boolean migrationPending;
+
+    /**
+     * the configs whose script file got written, while the global config store gets written by the current thread
+     */
+    private static final ThreadLocal<Set<Config>> SHARDED_CONFIGS = new ThreadLocal<Set<Config>>();
+
+    /**
+     * set while the global config store gets loaded by the current thread
+     */
+    private static final ThreadLocal<Boolean> LOADING_STORE = new ThreadLocal<Boolean>();
+
+    private ShardedScriptStorage() {
+    }
+
+    @Initializer(before = InitMilestone.PLUGINS_STARTED)
+    public static void registerConverter() {
+        // the managed scripts are only sharded while the global config store gets written or loaded
+        Jenkins.XSTREAM2.registerConverter(new StoreConverter(Jenkins.XSTREAM2), XStream.PRIORITY_NORMAL);
+        Jenkins.XSTREAM2.registerConverter(new ShardConverter(Jenkins.XSTREAM2), XStream.PRIORITY_NORMAL);
+        // the contents stored inline, also by the folder level stores, are interned as they are read, before the configs get created
+        Jenkins.XSTREAM2.registerLocalConverter(Config.class, "content", new ScriptBlobStore.ContentConverter(false));
+        Items.XSTREAM2.registerLocalConverter(Config.class, "content", new ScriptBlobStore.ContentConverter(false));
+    }
+
+    @Initializer(after = InitMilestone.JOB_LOADED)
+    public static void migrate() throws IOException {
+        if (!ENABLED) {
+            return;
+        }
+        // loads the store if nothing else did so far, which tells whether scripts are still stored inline
+        GlobalConfigFiles store = GlobalConfigFiles.get();
+        if (migrationPending) {
+            LOGGER.log(Level.INFO, "moving the managed scripts of the global config store to their own files");
+            store.save();
+            migrationPending = false;
+        }
+    }
+
+    private static boolean isManaged(Class<?> type) {
+        return Arrays.asList(MANAGED).contains(type);
+    }
+
+    private static File getRootDir() {
+        return new File(Jenkins.get().getRootDir(), DIR);
+    }
+
+    static String key(Class<?> type, String id) {
+        return type.getSimpleName() + "/" + id;
+    }
+
+    private static XmlFile getFile(Class<?> type, String id) {
+        File dir = new File(getRootDir(), type.getSimpleName());
+        return new XmlFile(XSTREAM, new File(dir, Util.rawEncode(id) + ".xml"));
+    }
+
+    private static Object lock(String key) {
+        Object lock = LOCKS.get(key);
+        if (lock == null) {
+            Object created = new Object();
+            lock = LOCKS.putIfAbsent(key, created);
+            if (lock == null) {
+                lock = created;
+            }
+        }
+        return lock;
+    }
+
+    /**
+     * Writes the script file of the given config, unless it is the config loaded from or last written to that file. Configs are
+     * replaced rather than changed, so saving the store only writes the new and changed scripts without serializing the others.
+     * A placeholder of a script file which could not be read is never written.
+     */
+    static void store(@NonNull Config config) throws IOException {
+        String key = key(config.getClass(), config.id);
+        synchronized (lock(key)) {
+            Stored stored = STORED.get(key);
+            if (stored != null && stored.get() == config) {
+                return;
+            }
+            ScriptBodies.materialize(config);
+            // the blob first, the script file references it
+            BLOBS.readLock().lock();
+            try {
+                ScriptBlobStore.write(config.content);
+                getFile(config.getClass(), config.id).write(config);
+            } finally {
+                BLOBS.readLock().unlock();
+            }
+            STORED.put(key, new Stored(config, false));
+        }
+    }
+
+    /**
+     * @return whether the given config stands in for a script file which could not be read
+     */
+    static boolean isPlaceholder(@NonNull Config config) {
+        Stored stored = STORED.get(key(config.getClass(), config.id));
+        return stored != null && stored.placeholder && stored.get() == config;
+    }
+
+    /**
+     * Reads the given config from its script file, its content is left in its blob.
+     *
+     * @throws IOException if the script file cannot be read or its blob is missing
+     */
+    @CheckForNull
+    static Config load(@NonNull Class<?> type, @NonNull String id) throws IOException {
+        String key = key(type, id);
+        synchronized (lock(key)) {
+            XmlFile file = getFile(type, id);
+            if (!file.exists()) {
+                return null;
+            }
+            String xml = file.asString();
+            Config config = (Config) file.read();
+            Matcher m = BLOB_REFERENCE.matcher(xml);
+            if (config.content == null && m.find()) {
+                String blob = m.group(1);
+                if (!ScriptBlobStore.exists(blob)) {
+                    throw new IOException("The blob " + blob + " of the script file " + file + " is missing");
+                }
+                ((ScriptBodies.Deferred) config).setBlob(blob);
+            }
+            STORED.put(key, new Stored(config, false));
+            return config;
+        }
+    }
+
+    /**
+     * Deletes the script files of the configs which are no longer in the global config store.
+     */
+    static void prune() {
+        Set<String> keys = new HashSet<String>();
+        for (Config config : GlobalConfigFiles.get().getConfigs()) {
+            if (isManaged(config.getClass())) {
+                keys.add(key(config.getClass(), config.id));
+            }
+        }
+        for (Class<?> type : MANAGED) {
+            File[] files = new File(getRootDir(), type.getSimpleName()).listFiles();
+            if (files == null) {
+                continue;
+            }
+            for (File file : files) {
+                String name = file.getName();
+                if (!name.endsWith(".xml")) {
+                    continue;
+                }
+                String id = decode(name.substring(0, name.length() - 4));
+                String key = key(type, id);
+                if (keys.contains(key)) {
+                    continue;
+                }
+                synchronized (lock(key)) {
+                    Config current = GlobalConfigFiles.get().getById(id);
+                    if (current != null && current.getClass() == type) {
+                        // added while pruning
+                        continue;
+                    }
+                    if (!file.delete() && file.exists()) {
+                        LOGGER.log(Level.WARNING, "Failed to delete the script file {0}", file);
+                        continue;
+                    }
+                    STORED.remove(key);
+                    LOCKS.remove(key);
+                }
+            }
+        }
+    }
+
+    /**
+     * Collects the orphaned blobs in the background a few seconds after the last save of the global config store.
+     */
+    static void collectGarbageLater() {
+        if (!COLLECTION_SCHEDULED.compareAndSet(false, true)) {
+            return;
+        }
+        Timer.get().schedule(new Runnable() {
+            public void run() {
+                COLLECTION_SCHEDULED.set(false);
+                collectGarbage();
+            }
+        }, 10, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Deletes the blobs which are not referenced by any script file on disk, including the script files of placeholders and of
+     * removed scripts not pruned yet. No script file gets written meanwhile.
+     */
+    static void collectGarbage() {
+        BLOBS.writeLock().lock();
+        try {
+            Set<String> referenced = new HashSet<String>();
+            for (Class<?> type : MANAGED) {
+                File[] files = new File(getRootDir(), type.getSimpleName()).listFiles();
+                if (files == null) {
+                    continue;
+                }
+                for (File file : files) {
+                    if (!file.getName().endsWith(".xml")) {
+                        continue;
+                    }
+                    Matcher m = BLOB_REFERENCE.matcher(FileUtils.readFileToString(file, StandardCharsets.UTF_8));
+                    while (m.find()) {
+                        referenced.add(m.group(1));
+                    }
+                }
+            }
+            ScriptBlobStore.collectGarbage(referenced);
+        } catch (IOException e) {
+            // an unreadable script file might reference any blob
+            LOGGER.log(Level.WARNING, "Failed to read the script files, no blob got collected", e);
+        } finally {
+            BLOBS.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return the id encoded by {@link Util#rawEncode(String)} in the name of a script file
+     */
+    private static String decode(String name) {
+        try {
+            return URLDecoder.decode(name.replace("+", "%2B"), "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Writes the script files of the global config store before the store itself, managed scripts whose script file could not be
+     * written are stored inline.
+     */
+    static final class StoreConverter implements Converter {
+        private final RobustReflectionConverter inline;
+
+        StoreConverter(XStream2 xstream) {
+            this.inline = new RobustReflectionConverter(xstream.getMapper(), xstream.getReflectionProvider());
+        }
+
+        public boolean canConvert(Class type) {
+            return type == GlobalConfigFiles.class;
+        }
+
+        public void marshal(Object source, HierarchicalStreamWriter writer, MarshallingContext context) {
+            Set<Config> sharded = Collections.newSetFromMap(new IdentityHashMap<Config, Boolean>());
+            for (Config config : ((GlobalConfigFiles) source).getConfigs()) {
+                // a placeholder keeps the reference to its script file even once the mode got disabled
+                if (isManaged(config.getClass()) && (ENABLED || isPlaceholder(config))) {
+                    try {
+                        store(config);
+                        sharded.add(config);
+                    } catch (IOException e) {
+                        // keep the script inline rather than losing it
+                        LOGGER.log(Level.WARNING, "Failed to write the script file of " + config.id + ", storing it inline", e);
+                    }
+                }
+            }
+            SHARDED_CONFIGS.set(sharded);
+            try {
+                inline.marshal(source, writer, context);
+            } finally {
+                SHARDED_CONFIGS.remove();
+            }
+        }
+
+        public Object unmarshal(HierarchicalStreamReader reader, UnmarshallingContext context) {
+            LOADING_STORE.set(Boolean.TRUE);
+            try {
+                return inline.unmarshal(reader, context);
+            } finally {
+                LOADING_STORE.remove();
+            }
+        }
+    }
+
+    /**
+     * Writes a reference instead of a managed script whose script file got written by the {@link StoreConverter}, reads the
+     * script file of a reference.
+     */
+    static final class ShardConverter implements Converter {
+        private final RobustReflectionConverter inline;
+
+        ShardConverter(XStream2 xstream) {
+            this.inline = new RobustReflectionConverter(xstream.getMapper(), xstream.getReflectionProvider());
+        }
+
+        public boolean canConvert(Class type) {
+            return type != null && isManaged(type);
+        }
+
+        public void marshal(Object source, HierarchicalStreamWriter writer, MarshallingContext context) {
+            Config config = (Config) source;
+            Set<Config> sharded = SHARDED_CONFIGS.get();
+            if (sharded != null && sharded.contains(config)) {
+                writer.addAttribute(SHARDED, "true");
+                writer.startNode("id");
+                writer.setValue(config.id);
+                writer.endNode();
+                return;
+            }
+            // the content loaded on demand so far gets stored inline
+            ScriptBodies.materialize(config);
+            inline.marshal(source, writer, context);
+        }
+
+        public Object unmarshal(HierarchicalStreamReader reader, UnmarshallingContext context) {
+            if (!"true".equals(reader.getAttribute(SHARDED))) {
+                migrationPending |= LOADING_STORE.get() != null;
+                return inline.unmarshal(reader, context);
+            }
+            String id = null;
+            while (reader.hasMoreChildren()) {
+                reader.moveDown();
+                if ("id".equals(reader.getNodeName())) {
+                    id = reader.getValue();
+                }
+                reader.moveUp();
+            }
+            Class<?> type = context.getRequiredType();
+            if (id == null) {
+                throw new IllegalStateException("reference to a managed script without id");
+            }
+            try {
+                Config config = load(type, id);
+                if (config != null) {
+                    return config;
+                }
+                LOGGER.log(Level.SEVERE, "The script file of the managed script {0} is missing", id);
+            } catch (IOException e) {
+                LOGGER.log(Level.SEVERE, "Failed to read the script file of the managed script " + id, e);
+            }
+            // keep the reference, so the script file can still be restored
+            return placeholder(type, id);
+        }
+
+        /**
+         * Creates the placeholder of a script file which could not be read. Saving the store keeps the reference and never
+         * overwrites the script file, until the placeholder gets replaced by editing the script.
+         */
+        private static Config placeholder(Class<?> type, String id) {
+            String comment = "the script file of this script is missing or unreadable, see " + DIR + " in the Jenkins home";
+            Config config;
+            if (type == WinBatchConfig.class) {
+                config = new WinBatchConfig(id, id, comment, "", null);
+            } else if (type == PowerShellConfig.class) {
+                config = new PowerShellConfig(id, id, comment, "", null);
+            } else {
+                config = new ScriptConfig(id, id, comment, "", null);
+            }
+            STORED.put(key(type, id), new Stored(config, true));
+            return config;
+        }
+    }
+
+    /**
+     * The config loaded from or last written to a script file.
+     */
+    private static final class Stored extends WeakReference<Config> {
+        private final boolean placeholder;
+
+        Stored(Config config, boolean placeholder) {
+            super(config);
+            this.placeholder = placeholder;
+        }
+    }
+
+    /**
+     * Deletes the script files of removed scripts once the global config store got saved, then collects the orphaned blobs.
+     */
+    @Extension
+    public static final class PruneListener extends SaveableListener {
+        @Override
+        public void onChange(Saveable o, XmlFile file) {
+            if (ENABLED && o instanceof GlobalConfigFiles) {
+                prune();
+                collectGarbageLater();
+            }
+        }
+    }
+}
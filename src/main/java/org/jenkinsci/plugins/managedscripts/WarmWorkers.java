@@ -0,0 +1,43 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * Opts a managed script into the execution by warm interpreter workers, see {@link InterpreterPool}.
+ * <p>
+ * Every execution host keeps up to {@link #getPoolSize()} started interpreters per interpreter line, a worker is replaced by a
+ * fresh one after {@link #getMaxUses()} executions or as soon as it fails.
+ */
+public class WarmWorkers {
+
+    /**
+     * default number of warm workers kept per execution host and interpreter
+     */
+    public static final int DEFAULT_POOL_SIZE = 2;
+
+    /**
+     * default number of executions after which a worker gets replaced
+     */
+    public static final int DEFAULT_MAX_USES = 50;
+
+    private final int poolSize;
+    private final int maxUses;
+
+    /**
+     * @param poolSize the number of warm workers kept per execution host and interpreter, 0 for the default
+     * @param maxUses  the number of executions after which a worker gets replaced, 0 for the default
+     */
+    @DataBoundConstructor
+    public WarmWorkers(int poolSize, int maxUses) {
+        this.poolSize = poolSize > 0 ? poolSize : DEFAULT_POOL_SIZE;
+        this.maxUses = maxUses > 0 ? maxUses : DEFAULT_MAX_USES;
+    }
+
+    public int getPoolSize() {
+        return poolSize;
+    }
+
+    public int getMaxUses() {
+        return maxUses;
+    }
+}
@@ -3,9 +3,14 @@
  */
 package org.jenkinsci.plugins.managedscripts;
 
+import edu.umd.cs.findbugs.annotations.CheckForNull;
 import edu.umd.cs.findbugs.annotations.NonNull;
 import hudson.Extension;
+import hudson.FilePath;
+import hudson.model.Run;
+import hudson.model.TaskListener;
 
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
@@ -16,18 +21,26 @@ import org.jenkinsci.lib.configprovider.ConfigProvider;
 import org.jenkinsci.lib.configprovider.model.Config;
 import org.jenkinsci.lib.configprovider.model.ContentType;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 
 /**
  * @author Dominik Bartholdi (imod)
  * 
  */
-public class WinBatchConfig extends Config {
+public class WinBatchConfig extends Config implements ScriptBodies.Deferred {
 
     public final List<Arg> args;
 
+    private int timeout;
+
+    /**
+     * the digest of the blob holding the content, if the content got left in the blob when loading this script
+     */
+    private transient volatile String blob;
+
     @DataBoundConstructor
     public WinBatchConfig(String id, String name, String comment, String content, List<Arg> args) {
-        super(id, name, comment, content);
+        super(id, name, comment, ScriptBlobStore.intern(content));
 
         if (args != null) {
             List<Arg> filteredArgs = new ArrayList<WinBatchConfig.Arg>();
@@ -42,6 +55,36 @@ public class WinBatchConfig extends Config {
         }
     }
 
+    /**
+     * @return the time in seconds this script may run before it gets killed, 0 for no timeout
+     */
+    public int getTimeout() {
+        return timeout;
+    }
+
+    @DataBoundSetter
+    public void setTimeout(int timeout) {
+        this.timeout = Math.max(timeout, 0);
+    }
+
+    /**
+     * @return the content of this script, read from its blob if it is not kept in memory
+     */
+    public String getBody() {
+        return ScriptBodies.of(this);
+    }
+
+    @CheckForNull
+    @Override
+    public String getBlob() {
+        return blob;
+    }
+
+    @Override
+    public void setBlob(@NonNull String blob) {
+        this.blob = blob;
+    }
+
     @Override
     public ConfigProvider getDescriptor() {
         return Jenkins.get().getDescriptorByType(WinBatchConfigProvider.class);
@@ -68,6 +111,14 @@ public class WinBatchConfig extends Config {
             return ContentType.DefinedType.HTML;
         }
 
+        /**
+         * Supplies the content through {@link ScriptBodies}, it might not be kept in memory.
+         */
+        @Override
+        public String supplyContent(@NonNull Config configFile, Run<?, ?> build, FilePath workDir, TaskListener listener, @NonNull List<String> tempFiles) throws IOException {
+            return ScriptBodies.of(configFile);
+        }
+
         @Override
         public String getDisplayName() {
             return Messages.win_buildstep_provider_name();
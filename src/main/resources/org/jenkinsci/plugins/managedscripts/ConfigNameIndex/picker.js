@@ -0,0 +1,97 @@
+/*
+ * Type-ahead for the script pickers of the managed script build steps: searches the configs by the prefix of their name
+ * and replaces the options of the select box with the matches, the selected script is always kept. Further matches are
+ * appended page by page with the "more" button.
+ */
+Behaviour.specify("INPUT.ms-script-filter", "ms-script-filter", 0, function (filter) {
+    var select = filter.parentNode.querySelector("select");
+    var hint = filter.parentNode.querySelector(".ms-script-filter-hint");
+    var timer = null;
+    var pending = 0;
+
+    function option(name, value, selected) {
+        var o = document.createElement("option");
+        o.text = name;
+        o.value = value;
+        o.selected = selected;
+        return o;
+    }
+
+    var more = document.createElement("button");
+    var query = "";
+    var loaded = 0;
+
+    more.type = "button";
+    more.className = "ms-script-filter-more";
+    more.textContent = "more";
+    more.style.display = "none";
+    (hint || filter).insertAdjacentElement("afterend", more);
+
+    function update(result, offset) {
+        var append = offset > 0;
+        var count = result.values.length;
+        var selectedValue = select.value;
+        var selectedName = select.selectedIndex >= 0 ? select.options[select.selectedIndex].text : "";
+        var keepSelected = selectedValue !== "" && !append;
+        if (append) {
+            // the selected script is already listed, in front of the matches if it was not on an earlier page
+            result.values = result.values.filter(function (v) {
+                return v.value !== selectedValue;
+            });
+        } else {
+            while (select.options.length > 0) {
+                select.remove(0);
+            }
+            select.add(option("please select", "", !keepSelected));
+        }
+        result.values.forEach(function (v) {
+            if (v.value === selectedValue) {
+                keepSelected = false;
+            }
+            select.add(option(v.name, v.value, v.value === selectedValue));
+        });
+        if (keepSelected) {
+            select.add(option(selectedName, selectedValue, true), 1);
+        }
+        loaded = offset + count;
+        if (hint) {
+            hint.textContent = query === "" && result.total <= loaded ? "" : loaded + " / " + result.total;
+        }
+        more.style.display = loaded < result.total ? "" : "none";
+    }
+
+    function fetchPage(offset) {
+        var request = ++pending;
+        var url = filter.getAttribute("data-search-url") + "?query=" + encodeURIComponent(query) + "&offset=" + offset;
+        fetch(url, { credentials: "same-origin" })
+            .then(function (rsp) {
+                return rsp.json();
+            })
+            .then(function (result) {
+                // ignore responses overtaken by a newer search
+                if (request === pending) {
+                    update(result, offset);
+                }
+            });
+    }
+
+    function search() {
+        query = filter.value.trim();
+        fetchPage(0);
+    }
+
+    more.addEventListener("click", function () {
+        fetchPage(loaded);
+    });
+
+    filter.addEventListener("input", function () {
+        clearTimeout(timer);
+        timer = setTimeout(search, 250);
+    });
+    filter.addEventListener("keydown", function (e) {
+        // don't submit the job configuration
+        if (e.key === "Enter") {
+            e.preventDefault();
+        }
+    });
+});
@@ -0,0 +1,114 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import hudson.model.Item;
+import hudson.model.User;
+import hudson.security.ACL;
+import hudson.security.ACLContext;
+import hudson.util.ListBoxModel;
+import jenkins.model.Jenkins;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import org.jenkinsci.plugins.configfiles.GlobalConfigFiles;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.MockAuthorizationStrategy;
+import org.springframework.security.access.AccessDeniedException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+
+public class ConfigNameIndexTest {
+
+    private static final int PAGE_SIZE = ConfigNameIndex.PAGE_SIZE;
+
+    @Rule
+    public JenkinsRule r = new JenkinsRule();
+
+    @After
+    public void resetPageSize() {
+        ConfigNameIndex.PAGE_SIZE = PAGE_SIZE;
+    }
+
+    private static void save(String id, String name) {
+        GlobalConfigFiles.get().save(new ScriptConfig(id, name, "", "echo " + id, null));
+    }
+
+    private static List<String> names(String query, int offset) {
+        JSONArray values = ConfigNameIndex.page(null, ScriptConfig.ScriptConfigProvider.class, query, offset).getJSONArray("values");
+        List<String> names = new ArrayList<String>();
+        for (int i = 0; i < values.size(); i++) {
+            names.add(values.getJSONObject(i).getString("name"));
+        }
+        return names;
+    }
+
+    private static int total(String query) {
+        return ConfigNameIndex.page(null, ScriptConfig.ScriptConfigProvider.class, query, 0).getInt("total");
+    }
+
+    @Test
+    public void matchesPrefixIgnoringCase() {
+        save("a", "alpine");
+        save("b", "Beta");
+        save("c", "Alpha");
+        assertEquals(Arrays.asList("Alpha", "alpine"), names("AL", 0));
+        assertEquals(Arrays.asList("Alpha"), names(" alph ", 0));
+        assertEquals(3, total(""));
+        assertEquals(0, total("gamma"));
+    }
+
+    @Test
+    public void pagesThroughMatches() {
+        ConfigNameIndex.PAGE_SIZE = 2;
+        for (int i = 1; i <= 5; i++) {
+            save("s" + i, "script " + i);
+        }
+        save("other", "other");
+        assertEquals(Arrays.asList("script 1", "script 2"), names("script", 0));
+        assertEquals(Arrays.asList("script 3", "script 4"), names("script", 2));
+        assertEquals(Arrays.asList("script 5"), names("script", 4));
+        assertEquals(5, total("script"));
+        // the selected config is listed even beyond the first page
+        ListBoxModel items = ConfigNameIndex.fillItems(null, null, ScriptConfig.ScriptConfigProvider.class, "s5");
+        assertEquals(4, items.size());
+        assertEquals("s5", items.get(3).value);
+    }
+
+    @Test
+    public void appliesSavedAndRemovedConfigs() {
+        save("a", "a");
+        save("b", "b");
+        save("c", "c");
+        assertEquals(Arrays.asList("a", "b", "c"), names("", 0));
+        save("d", "bb");
+        save("a", "z");
+        GlobalConfigFiles.get().remove("c");
+        assertEquals(Arrays.asList("b", "bb", "z"), names("", 0));
+        JSONObject values = ConfigNameIndex.page(null, ScriptConfig.ScriptConfigProvider.class, "z", 0).getJSONArray("values").getJSONObject(0);
+        assertEquals("a", values.getString("value"));
+    }
+
+    @Test
+    public void requiresPermissionToConfigure() {
+        r.jenkins.setSecurityRealm(r.createDummySecurityRealm());
+        r.jenkins.setAuthorizationStrategy(new MockAuthorizationStrategy()
+                .grant(Jenkins.READ).everywhere().to("reader", "dev")
+                .grant(Item.CONFIGURE).everywhere().to("dev"));
+        save("a", "a");
+        try (ACLContext ctx = ACL.as2(User.getById("dev", true).impersonate2())) {
+            assertEquals(2, ConfigNameIndex.fillItems(null, r.jenkins, ScriptConfig.ScriptConfigProvider.class, null).size());
+        }
+        try (ACLContext ctx = ACL.as2(User.getById("reader", true).impersonate2())) {
+            // only the placeholder
+            assertEquals(1, ConfigNameIndex.fillItems(null, r.jenkins, ScriptConfig.ScriptConfigProvider.class, null).size());
+            assertThrows(AccessDeniedException.class,
+                    () -> ConfigNameIndex.search(null, r.jenkins, ScriptConfig.ScriptConfigProvider.class, "a", 0, null));
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.Functions;
+import hudson.util.StreamTaskListener;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assume.assumeFalse;
+import static org.junit.Assume.assumeTrue;
+
+public class InterpreterPoolTest {
+
+    private static final String CONTENT = "#!/usr/bin/env python3\nimport os\nprint('worker %d' % os.getppid())\n";
+
+    private static final long MAX_IDLE_NANOS = InterpreterPool.MAX_IDLE_NANOS;
+
+    @Rule
+    public JenkinsRule r = new JenkinsRule();
+
+    private FilePath script;
+
+    @Before
+    public void writeScript() throws Exception {
+        assumeFalse(Functions.isWindows());
+        Process python = new ProcessBuilder("python3", "-c", "pass").start();
+        assumeTrue("python3 is not available", python.waitFor() == 0);
+        script = r.jenkins.getRootPath().child("script.py");
+        script.write(CONTENT, "UTF-8");
+    }
+
+    @After
+    public void killWorkers() throws InterruptedException {
+        // none may turn up idle in the next test
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (InterpreterPool.count(true) > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(50);
+        }
+        InterpreterPool.MAX_IDLE_NANOS = 0;
+        InterpreterPool.reap();
+        InterpreterPool.MAX_IDLE_NANOS = MAX_IDLE_NANOS;
+    }
+
+    /**
+     * @return the output of the script and the log of the dispatch
+     */
+    private String run(WarmWorkers warm) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        StreamTaskListener listener = new StreamTaskListener(out, Charset.defaultCharset());
+        int exitCode = InterpreterPool.run("warm", r.jenkins.getRootPath(), ScriptLaunchPlan.compile(CONTENT), warm, script.getRemote(),
+                Collections.<String>emptyList(), new EnvVars(), out, 0, listener);
+        assertEquals(0, exitCode);
+        return out.toString();
+    }
+
+    private static String worker(String output) {
+        int start = output.indexOf("worker ");
+        return output.substring(start, output.indexOf('\n', start));
+    }
+
+    private static void awaitIdle(int count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (InterpreterPool.count(false) < count && System.nanoTime() < deadline) {
+            Thread.sleep(50);
+        }
+        assertEquals(count, InterpreterPool.count(false));
+    }
+
+    @Test
+    public void reusesWarmWorkers() throws Exception {
+        long launches = ScriptMetrics.getEntry("warm").getCount("LAUNCH");
+        assertThat(run(new WarmWorkers(1, 10)), containsString("started a new interpreter worker"));
+        // the one used and the one started in the background
+        awaitIdle(2);
+        assertThat(run(new WarmWorkers(1, 10)), containsString("executing in a warm interpreter worker (use "));
+        assertEquals(launches + 2, ScriptMetrics.getEntry("warm").getCount("LAUNCH"));
+    }
+
+    @Test
+    public void replacesWorkersAfterMaxUses() throws Exception {
+        String first = run(new WarmWorkers(1, 1));
+        // only the one started in the background
+        awaitIdle(1);
+        String second = run(new WarmWorkers(1, 1));
+        assertThat(second, containsString("(use 1 of 1)"));
+        assertNotEquals(worker(first), worker(second));
+    }
+
+    @Test
+    public void reapsIdleWorkers() throws Exception {
+        run(new WarmWorkers(1, 10));
+        awaitIdle(2);
+        InterpreterPool.reap();
+        assertEquals(2, InterpreterPool.count(false));
+        InterpreterPool.MAX_IDLE_NANOS = 0;
+        InterpreterPool.reap();
+        assertEquals(0, InterpreterPool.count(false));
+        InterpreterPool.MAX_IDLE_NANOS = MAX_IDLE_NANOS;
+        assertThat(run(new WarmWorkers(1, 10)), containsString("started a new interpreter worker"));
+    }
+}
@@ -0,0 +1,62 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import hudson.Functions;
+import hudson.model.Result;
+import org.jenkinsci.plugins.configfiles.GlobalConfigFiles;
+import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import static org.junit.Assume.assumeFalse;
+
+public class ManagedScriptStepTest {
+
+    @Rule
+    public JenkinsRule r = new JenkinsRule();
+
+    @Before
+    public void requireUnix() {
+        assumeFalse(Functions.isWindows());
+    }
+
+    private WorkflowJob pipeline(String script) throws Exception {
+        WorkflowJob job = r.createProject(WorkflowJob.class);
+        job.setDefinition(new CpsFlowDefinition(script, true));
+        return job;
+    }
+
+    @Test
+    public void executesScriptWithArguments() throws Exception {
+        GlobalConfigFiles.get().save(new ScriptConfig("hello", "hello", "", "#!/bin/sh\necho \"hello $1|$2\"\n", null));
+        WorkflowRun run = r.buildAndAssertSuccess(pipeline("node { managedScript id: 'hello', args: ['big world', \"it's\"] }"));
+        r.assertLogContains("hello big world|it's", run);
+    }
+
+    @Test
+    public void returnsOutputAndStatus() throws Exception {
+        GlobalConfigFiles.get().save(new ScriptConfig("out", "out", "", "#!/bin/sh\necho output\nexit \"${1:-0}\"\n", null));
+        WorkflowRun run = r.buildAndAssertSuccess(pipeline("node {\n"
+                + "  echo \"status ${managedScript(id: 'out', args: ['3'], returnStatus: true)}\"\n"
+                + "  echo \"stdout ${managedScript(id: 'out', returnStdout: true).trim()}\"\n"
+                + "}"));
+        r.assertLogContains("status 3", run);
+        r.assertLogContains("stdout output", run);
+    }
+
+    @Test
+    public void failsOnNonZeroExitCode() throws Exception {
+        GlobalConfigFiles.get().save(new ScriptConfig("fail", "fail", "", "#!/bin/sh\nexit 2\n", null));
+        WorkflowRun run = r.buildAndAssertStatus(Result.FAILURE, pipeline("node { managedScript 'fail' }"));
+        r.assertLogContains("exit code 2", run);
+    }
+
+    @Test
+    public void failsWithoutConfig() throws Exception {
+        WorkflowRun run = r.buildAndAssertStatus(Result.FAILURE, pipeline("node { managedScript 'missing' }"));
+        r.assertLogContains(Messages.config_does_not_exist("missing"), run);
+    }
+}
@@ -0,0 +1,90 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import hudson.FilePath;
+import hudson.model.TaskListener;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MemoCacheTest {
+
+    private static final String CONTENT = "#!/bin/sh\ncp in.txt out.txt\n";
+
+    private static final Memoization MEMO = new Memoization("in.txt", "out.txt");
+
+    @Rule
+    public JenkinsRule r = new JenkinsRule();
+
+    private FilePath workspace() throws Exception {
+        FilePath ws = r.jenkins.getRootPath().child("ws");
+        ws.child("in.txt").write("input", "UTF-8");
+        return ws;
+    }
+
+    private static MemoCache.Lookup lookup(FilePath ws, String scope, List<String> args) throws Exception {
+        return MemoCache.lookup(ws, scope, MEMO, "memo", CONTENT, Collections.<String>emptyList(), args, TaskListener.NULL);
+    }
+
+    private static void execute(FilePath ws, MemoCache.Lookup lookup) throws Exception {
+        ws.child("out.txt").write("output", "UTF-8");
+        lookup.store(ws, TaskListener.NULL);
+        ws.child("out.txt").delete();
+    }
+
+    @Test
+    public void keyDependsOnContentArgumentsAndInputs() throws Exception {
+        FilePath ws = workspace();
+        String key = lookup(ws, "job", Collections.<String>emptyList()).getKey();
+        assertEquals(key, lookup(ws, "job", Collections.<String>emptyList()).getKey());
+        assertNotEquals(key, lookup(ws, "job", Arrays.asList("arg")).getKey());
+        assertNotEquals(key, MemoCache.lookup(ws, "job", MEMO, "memo", CONTENT + "\n", Collections.<String>emptyList(),
+                Collections.<String>emptyList(), TaskListener.NULL).getKey());
+        ws.child("in.txt").write("changed", "UTF-8");
+        assertNotEquals(key, lookup(ws, "job", Collections.<String>emptyList()).getKey());
+    }
+
+    @Test
+    public void restoresStoredOutputs() throws Exception {
+        FilePath ws = workspace();
+        MemoCache.Lookup miss = lookup(ws, "job", Collections.<String>emptyList());
+        assertFalse(miss.isHit());
+        execute(ws, miss);
+        assertTrue(lookup(ws, "job", Collections.<String>emptyList()).isHit());
+        assertEquals("output", ws.child("out.txt").readToString());
+    }
+
+    @Test
+    public void neverRestoresOutputsOfOtherJobs() throws Exception {
+        FilePath ws = workspace();
+        execute(ws, lookup(ws, "job", Collections.<String>emptyList()));
+        assertFalse(lookup(ws, "other", Collections.<String>emptyList()).isHit());
+        assertFalse(ws.child("out.txt").exists());
+    }
+
+    @Test
+    public void neverRestoresModifiedArchives() throws Exception {
+        FilePath ws = workspace();
+        MemoCache.Lookup miss = lookup(ws, "job", Collections.<String>emptyList());
+        execute(ws, miss);
+        // replaced by an archive of other files
+        FilePath forged = ws.child("forged");
+        forged.child("out.txt").write("forged", "UTF-8");
+        FilePath entry = MemoCache.getCacheDir(ws).child(ScriptBlobStore.hash("job")).child(miss.getKey() + ".tar.gz");
+        try (OutputStream out = new GZIPOutputStream(entry.write())) {
+            forged.tar(out, "out.txt");
+        }
+        assertFalse(lookup(ws, "job", Collections.<String>emptyList()).isHit());
+        assertFalse(ws.child("out.txt").exists());
+    }
+}
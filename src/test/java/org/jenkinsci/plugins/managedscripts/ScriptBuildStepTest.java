@@ -0,0 +1,161 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import hudson.FilePath;
+import hudson.Functions;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.Result;
+import org.jenkinsci.plugins.configfiles.GlobalConfigFiles;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.util.Arrays;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.not;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeFalse;
+
+public class ScriptBuildStepTest {
+
+    private static final int STREAM_THRESHOLD = ScriptCache.STREAM_THRESHOLD;
+
+    @Rule
+    public JenkinsRule r = new JenkinsRule();
+
+    @Before
+    public void requireUnix() {
+        assumeFalse(Functions.isWindows());
+    }
+
+    @After
+    public void resetStreamThreshold() {
+        ScriptCache.STREAM_THRESHOLD = STREAM_THRESHOLD;
+    }
+
+    private static void save(String id, String content) {
+        GlobalConfigFiles.get().save(new ScriptConfig(id, id, "", content, null));
+    }
+
+    private FreeStyleProject project(ScriptBuildStep step) throws Exception {
+        FreeStyleProject project = r.createFreeStyleProject();
+        project.getBuildersList().add(step);
+        return project;
+    }
+
+    @Test
+    public void transfersScriptOnlyOnCacheMiss() throws Exception {
+        // served by the script cache instead of the round trip runner
+        ScriptCache.STREAM_THRESHOLD = 0;
+        save("hello", "#!/bin/sh\necho hello \"$1\"\n");
+        FreeStyleProject project = project(new ScriptBuildStep("hello", new String[] {"world"}));
+        FreeStyleBuild miss = r.buildAndAssertSuccess(project);
+        r.assertLogContains("hello world", miss);
+        r.assertLogContains("transferred script", miss);
+        FreeStyleBuild hit = r.buildAndAssertSuccess(project);
+        r.assertLogContains("hello world", hit);
+        r.assertLogNotContains("transferred script", hit);
+    }
+
+    @Test
+    public void runsSmallScriptsInOneRoundTrip() throws Exception {
+        save("hello", "#!/bin/sh\necho hello \"$1\"\n");
+        FreeStyleProject project = project(new ScriptBuildStep("hello", new String[] {"world"}));
+        r.assertLogContains("hello world", r.buildAndAssertSuccess(project));
+        // the script got written into the script cache along the way
+        FilePath cacheDir = ScriptCache.getCacheDir(project.getSomeWorkspace());
+        assertTrue(cacheDir.child(ScriptBlobStore.hash("#!/bin/sh\necho hello \"$1\"\n") + ".sh").exists());
+        r.assertLogContains("hello world", r.buildAndAssertSuccess(project));
+        r.assertLogNotContains("transferred script", project.getLastBuild());
+    }
+
+    @Test
+    public void failsWithoutConfig() throws Exception {
+        FreeStyleBuild build = r.buildAndAssertStatus(Result.FAILURE, project(new ScriptBuildStep("missing", null)));
+        r.assertLogContains(Messages.config_does_not_exist("missing"), build);
+    }
+
+    @Test
+    public void killsScriptOnTimeout() throws Exception {
+        save("sleep", "#!/bin/sh\necho started\nsleep 60\necho finished\n");
+        ScriptBuildStep step = new ScriptBuildStep("sleep", null);
+        step.setTimeout(1);
+        long start = System.currentTimeMillis();
+        FreeStyleBuild build = r.buildAndAssertStatus(Result.FAILURE, project(step));
+        assertThat(System.currentTimeMillis() - start, lessThan(30000L));
+        r.assertLogContains("started", build);
+        r.assertLogContains("managed script timed out after", build);
+        r.assertLogNotContains("finished", build);
+    }
+
+    @Test
+    public void appliesTimeoutOfScript() throws Exception {
+        ScriptConfig config = new ScriptConfig("sleep", "sleep", "", "#!/bin/sh\nsleep 60\n", null);
+        config.setTimeout(1);
+        GlobalConfigFiles.get().save(config);
+        FreeStyleBuild build = r.buildAndAssertStatus(Result.FAILURE, project(new ScriptBuildStep("sleep", null)));
+        r.assertLogContains("managed script timed out after", build);
+    }
+
+    @Test
+    public void limitsOutput() throws Exception {
+        save("lines", "#!/bin/sh\ni=1\nwhile [ $i -le 100 ]; do echo \"line $i.\"; i=$((i + 1)); done\n");
+        ScriptBuildStep step = new ScriptBuildStep("lines", null);
+        step.setOutputLimit(new OutputLimit(10, 0, false));
+        FreeStyleBuild build = r.buildAndAssertSuccess(project(step));
+        // the head and the tail, half of the cap each
+        r.assertLogContains("line 5.", build);
+        r.assertLogNotContains("line 6.", build);
+        r.assertLogNotContains("line 95.", build);
+        r.assertLogContains("line 96.", build);
+        r.assertLogContains("line 100.", build);
+        r.assertLogContains("suppressed 90 lines", build);
+    }
+
+    @Test
+    public void collapsesRepeatedOutput() throws Exception {
+        save("repeat", "#!/bin/sh\nfor i in 1 2 3 4 5; do echo same; done\necho done\n");
+        ScriptBuildStep step = new ScriptBuildStep("repeat", null);
+        step.setOutputLimit(new OutputLimit(0, 0, true));
+        FreeStyleBuild build = r.buildAndAssertSuccess(project(step));
+        r.assertLogContains("previous line repeated 4 more times", build);
+        r.assertLogContains("done", build);
+    }
+
+    @Test
+    public void fansOutArgumentSets() throws Exception {
+        save("sets", "#!/bin/sh\necho \"arg $1\"\n[ \"$1\" != b ]\n");
+        ScriptBuildStep step = new ScriptBuildStep("sets", null);
+        step.setArgSets(Arrays.asList(
+                new ScriptBuildStep.ArgSet(new ScriptBuildStep.ArgValue[] {new ScriptBuildStep.ArgValue("a")}),
+                new ScriptBuildStep.ArgSet(new ScriptBuildStep.ArgValue[] {new ScriptBuildStep.ArgValue("b")}),
+                new ScriptBuildStep.ArgSet(new ScriptBuildStep.ArgValue[] {new ScriptBuildStep.ArgValue("c")})));
+        step.setParallelism(2);
+        FreeStyleBuild build = r.buildAndAssertStatus(Result.FAILURE, project(step));
+        r.assertLogContains("executing 3 argument sets, 2 at a time", build);
+        r.assertLogContains("[set 1] arg a", build);
+        r.assertLogContains("[set 2] arg b", build);
+        r.assertLogContains("[set 3] arg c", build);
+        r.assertLogContains("set 1: exit code 0", build);
+        r.assertLogContains("set 2: exit code 1", build);
+        r.assertLogContains("set 3: exit code 0", build);
+    }
+
+    @Test
+    public void expandsBuildVariablesInArgumentSets() throws Exception {
+        save("sets", "#!/bin/sh\necho \"arg $1\"\n");
+        ScriptBuildStep step = new ScriptBuildStep("sets", null);
+        step.setArgSets(Arrays.asList(
+                new ScriptBuildStep.ArgSet(new ScriptBuildStep.ArgValue[] {new ScriptBuildStep.ArgValue("${BUILD_NUMBER}")}),
+                new ScriptBuildStep.ArgSet(new ScriptBuildStep.ArgValue[] {new ScriptBuildStep.ArgValue("literal")})));
+        FreeStyleBuild build = r.buildAndAssertSuccess(project(step));
+        r.assertLogContains("[set 1] arg 1", build);
+        r.assertLogContains("[set 2] arg literal", build);
+        assertThat(JenkinsRule.getLog(build), not(containsString("${BUILD_NUMBER}")));
+    }
+}
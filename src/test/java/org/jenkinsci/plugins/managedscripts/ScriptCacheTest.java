@@ -0,0 +1,97 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import hudson.FilePath;
+import hudson.util.StreamTaskListener;
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.charset.Charset;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.not;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class ScriptCacheTest {
+
+    private static final String CONTENT = "#!/bin/sh\necho hello\n";
+
+    @Rule
+    public JenkinsRule r = new JenkinsRule();
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private FilePath provide(ByteArrayOutputStream log) throws Exception {
+        return ScriptCache.provide(r.jenkins.getRootPath(), CONTENT, ".sh", new StreamTaskListener(log, Charset.defaultCharset()));
+    }
+
+    @Test
+    public void transfersScriptOnMiss() throws Exception {
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        FilePath cached = provide(log);
+        assertNotNull(cached);
+        assertEquals(ScriptBlobStore.hash(CONTENT) + ".sh", cached.getName());
+        assertEquals(CONTENT, cached.readToString());
+        assertThat(log.toString(), containsString("transferred script"));
+    }
+
+    @Test
+    public void reusesIntactScriptOnHit() throws Exception {
+        provide(new ByteArrayOutputStream());
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        FilePath cached = provide(log);
+        assertEquals(CONTENT, cached.readToString());
+        assertThat(log.toString(), not(containsString("transferred")));
+    }
+
+    @Test
+    public void rewritesModifiedScript() throws Exception {
+        FilePath cached = provide(new ByteArrayOutputStream());
+        cached.write("#!/bin/sh\nrm -rf /\n", Charset.defaultCharset().name());
+        assertFalse(ScriptCache.isIntact(new File(cached.getRemote())));
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        provide(log);
+        assertEquals(CONTENT, cached.readToString());
+        assertThat(log.toString(), containsString("transferred script"));
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedScripts() throws Exception {
+        File dir = tmp.newFolder();
+        long old = System.currentTimeMillis() - 10 * 60 * 1000;
+        File oldest = script(dir, "a", old);
+        File older = script(dir, "b", old + 1000);
+        File recent = script(dir, "c", old + 2000);
+        ScriptCache.evict(dir, 2 * oldest.length());
+        assertFalse(oldest.exists());
+        assertTrue(older.exists());
+        assertTrue(recent.exists());
+    }
+
+    @Test
+    public void keepsScriptsUsedWithinGracePeriod() throws Exception {
+        File dir = tmp.newFolder();
+        File old = script(dir, "a", System.currentTimeMillis() - 10 * 60 * 1000);
+        File used = script(dir, "b", System.currentTimeMillis() - 30 * 1000);
+        ScriptCache.evict(dir, 0);
+        assertFalse(old.exists());
+        // might be about to be executed by a concurrent build
+        assertTrue(used.exists());
+    }
+
+    private static File script(File dir, String content, long lastModified) throws Exception {
+        File script = new File(dir, ScriptBlobStore.hash(content) + ".sh");
+        FileUtils.writeStringToFile(script, content, Charset.defaultCharset());
+        assertTrue(script.setLastModified(lastModified));
+        return script;
+    }
+}
@@ -0,0 +1,136 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import org.jenkinsci.lib.configprovider.model.Config;
+import org.jenkinsci.plugins.configfiles.GlobalConfigFiles;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.startsWith;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class ScriptTransferTest {
+
+    private static final long MAX_ENTRY_SIZE = ScriptTransfer.MAX_ENTRY_SIZE;
+
+    @Rule
+    public JenkinsRule r = new JenkinsRule();
+
+    @After
+    public void resetMaxEntrySize() {
+        ScriptTransfer.MAX_ENTRY_SIZE = MAX_ENTRY_SIZE;
+    }
+
+    private static ScriptTransfer.Result importFrom(String ndjson) throws Exception {
+        return ScriptTransfer.importFrom(new ByteArrayInputStream(ndjson.getBytes(StandardCharsets.UTF_8)), ScriptTransfer.Format.NDJSON, false);
+    }
+
+    private static byte[] export(ScriptTransfer.Format format) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ScriptTransfer.exportTo(out, format);
+        return out.toByteArray();
+    }
+
+    private static Set<String> lines(byte[] ndjson) {
+        return new HashSet<String>(Arrays.asList(new String(ndjson, StandardCharsets.UTF_8).split("\n")));
+    }
+
+    private static void removeAll() {
+        GlobalConfigFiles store = GlobalConfigFiles.get();
+        for (Config config : new ArrayList<Config>(store.getConfigs())) {
+            store.remove(config.id);
+        }
+    }
+
+    @Test
+    public void savesNothingIfARecordIsInvalid() throws Exception {
+        GlobalConfigFiles.get().save(new ScriptConfig("a", "a", "", "echo old", null));
+        ScriptTransfer.Result result = importFrom("{\"id\": \"a\", \"content\": \"echo new\"}\n"
+                + "\n"
+                + "{\"id\": \"b\", \"content\": \"echo b\"}\n"
+                + "{\"id\": \"c\"}\n");
+        assertEquals(Collections.singletonList("line 4: content of 'c' is missing or not a string"), result.getErrors());
+        assertEquals("echo old", ScriptBodies.of(GlobalConfigFiles.get().getById("a")));
+        assertNull(GlobalConfigFiles.get().getById("b"));
+    }
+
+    @Test
+    public void rejectsOverlongLines() throws Exception {
+        ScriptTransfer.MAX_ENTRY_SIZE = 64;
+        char[] content = new char[100];
+        Arrays.fill(content, 'x');
+        ScriptTransfer.Result result = importFrom("{\"id\": \"a\", \"content\": \"" + new String(content) + "\"}\n"
+                + "{\"id\": \"b\", \"content\": \"echo b\"}");
+        assertEquals(1, result.getErrors().size());
+        assertThat(result.getErrors().get(0), startsWith("line 1: "));
+        assertThat(result.getErrors().get(0), containsString("exceed the limit of 64 bytes"));
+        // the lines after it are still read
+        assertEquals(1, result.getCreated());
+        assertNull(GlobalConfigFiles.get().getById("a"));
+        assertNull(GlobalConfigFiles.get().getById("b"));
+    }
+
+    @Test
+    public void roundTrips() throws Exception {
+        ScriptConfig script = new ScriptConfig("script", "Script", "a comment", "#!/bin/sh\necho \"$1\"\n",
+                Collections.singletonList(new ScriptConfig.Arg("first")));
+        script.setTimeout(30);
+        script.setStdin(true);
+        script.setOutputLimit(new OutputLimit(100, 4096, true));
+        script.setWarmWorkers(new WarmWorkers(2, 10));
+        script.setMemoization(new Memoization("in/**", "out/**"));
+        PowerShellConfig powerShell = new PowerShellConfig("powershell", "PowerShell", "", "Write-Output 'hello'",
+                Collections.singletonList(new PowerShellConfig.Arg("name")));
+        powerShell.setHost(new PowerShellHost("pwsh", 1, 5));
+        GlobalConfigFiles store = GlobalConfigFiles.get();
+        store.save(script);
+        store.save(new WinBatchConfig("winbatch", "Batch", "", "echo %1", Collections.<WinBatchConfig.Arg>emptyList()));
+        store.save(powerShell);
+
+        byte[] ndjson = export(ScriptTransfer.Format.NDJSON);
+        assertEquals(3, lines(ndjson).size());
+        for (ScriptTransfer.Format format : ScriptTransfer.Format.values()) {
+            byte[] exported = export(format);
+            removeAll();
+            ScriptTransfer.Result result = ScriptTransfer.importFrom(new ByteArrayInputStream(exported), format, false);
+            assertEquals(Collections.<String>emptyList(), result.getErrors());
+            assertEquals(3, result.getCreated());
+            assertEquals(lines(ndjson), lines(export(ScriptTransfer.Format.NDJSON)));
+        }
+        ScriptConfig imported = (ScriptConfig) store.getById("script");
+        assertEquals("#!/bin/sh\necho \"$1\"\n", ScriptBodies.of(imported));
+        assertEquals(30, imported.getTimeout());
+        assertEquals(4096, imported.getOutputLimit().getMaxBytes());
+        assertEquals("out/**", imported.getMemoization().getOutputs());
+        assertEquals("pwsh", ((PowerShellConfig) store.getById("powershell")).getHost().getExecutable());
+    }
+
+    @Test
+    public void updatesExistingScripts() throws Exception {
+        GlobalConfigFiles.get().save(new ScriptConfig("a", "a", "", "echo old", null));
+        ScriptTransfer.Result result = importFrom("{\"id\": \"a\", \"content\": \"echo new\"}\n{\"id\": \"b\", \"content\": \"echo b\"}\n");
+        assertEquals(Collections.<String>emptyList(), result.getErrors());
+        assertEquals(1, result.getCreated());
+        assertEquals(1, result.getUpdated());
+        assertEquals("echo new", ScriptBodies.of(GlobalConfigFiles.get().getById("a")));
+        List<String> ids = new ArrayList<String>();
+        for (Config config : GlobalConfigFiles.get().getConfigs()) {
+            ids.add(config.id);
+        }
+        assertEquals(new HashSet<String>(Arrays.asList("a", "b")), new HashSet<String>(ids));
+    }
+}
@@ -0,0 +1,65 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import com.gargoylesoftware.htmlunit.FailingHttpStatusCodeException;
+import hudson.model.FreeStyleProject;
+import hudson.model.Item;
+import hudson.model.User;
+import hudson.security.ACL;
+import hudson.security.ACLContext;
+import jenkins.model.Jenkins;
+import org.jenkinsci.plugins.configfiles.GlobalConfigFiles;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.MockAuthorizationStrategy;
+
+import java.util.Collections;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.not;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+
+public class ScriptUsageIndexTest {
+
+    @Rule
+    public JenkinsRule r = new JenkinsRule();
+
+    private FreeStyleProject project(String name) throws Exception {
+        FreeStyleProject project = r.createFreeStyleProject(name);
+        project.getBuildersList().add(new ScriptBuildStep("script", null));
+        return project;
+    }
+
+    @Test
+    public void listsOnlyReadableJobs() throws Exception {
+        GlobalConfigFiles.get().save(new ScriptConfig("script", "script", "", "echo hello", null));
+        FreeStyleProject visible = project("visible");
+        FreeStyleProject hidden = project("hidden");
+        r.jenkins.setSecurityRealm(r.createDummySecurityRealm());
+        r.jenkins.setAuthorizationStrategy(new MockAuthorizationStrategy()
+                .grant(Jenkins.READ).everywhere().to("reader")
+                .grant(Item.READ).onItems(visible).to("reader")
+                .grant(Item.DISCOVER).onItems(hidden).to("reader"));
+        assertEquals(2, ScriptUsageIndex.getUsers("script").size());
+        try (ACLContext ctx = ACL.as2(User.getById("reader", true).impersonate2())) {
+            assertEquals(Collections.<Item>singletonList(visible), ScriptUsageIndex.getUsers("script"));
+        }
+        JenkinsRule.WebClient wc = r.createWebClient().login("reader");
+        String json = wc.goTo("descriptorByName/" + ScriptBuildStep.class.getName() + "/usedBy?id=script", "application/json")
+                .getWebResponse().getContentAsString();
+        assertThat(json, containsString("\"visible\""));
+        assertThat(json, not(containsString("\"hidden\"")));
+    }
+
+    @Test
+    public void requiresPermissionToRead() throws Exception {
+        project("job");
+        r.jenkins.setSecurityRealm(r.createDummySecurityRealm());
+        r.jenkins.setAuthorizationStrategy(new MockAuthorizationStrategy());
+        FailingHttpStatusCodeException e = assertThrows(FailingHttpStatusCodeException.class,
+                () -> r.createWebClient().goTo("descriptorByName/" + ScriptBuildStep.class.getName() + "/usedBy?id=script", "application/json"));
+        assertEquals(403, e.getStatusCode());
+    }
+}
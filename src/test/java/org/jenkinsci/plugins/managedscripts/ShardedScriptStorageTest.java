@@ -0,0 +1,112 @@
+package org.jenkinsci.plugins.managedscripts;
+
+import hudson.XmlFile;
+import jenkins.model.Jenkins;
+import org.apache.commons.io.FileUtils;
+import org.jenkinsci.lib.configprovider.model.Config;
+import org.jenkinsci.plugins.configfiles.GlobalConfigFiles;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.RestartableJenkinsRule;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.not;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ShardedScriptStorageTest {
+
+    private static final String CONTENT = "#!/bin/sh\necho hello\n";
+
+    @Rule
+    public RestartableJenkinsRule story = new RestartableJenkinsRule();
+
+    @After
+    public void disable() {
+        ShardedScriptStorage.ENABLED = false;
+    }
+
+    private static XmlFile getGlobalConfigFile(File root) {
+        return new XmlFile(new File(root, GlobalConfigFiles.class.getName() + ".xml"));
+    }
+
+    private static File getScriptFile(File root) {
+        return new File(root, "managed-scripts/ScriptConfig/script.xml");
+    }
+
+    @Test
+    public void movesInlineScriptsToTheirOwnFiles() {
+        story.then(r -> {
+            GlobalConfigFiles.get().save(new ScriptConfig("script", "script", "", CONTENT, null));
+            assertThat(getGlobalConfigFile(r.jenkins.getRootDir()).asString(), containsString("echo hello"));
+            ShardedScriptStorage.ENABLED = true;
+        });
+        story.then(r -> {
+            assertTrue(getScriptFile(r.jenkins.getRootDir()).isFile());
+            String global = getGlobalConfigFile(r.jenkins.getRootDir()).asString();
+            assertThat(global, containsString("sharded=\"true\""));
+            assertThat(global, not(containsString("echo hello")));
+            assertEquals(CONTENT, ScriptBodies.of(GlobalConfigFiles.get().getById("script")));
+        });
+    }
+
+    @Test
+    public void neverOverwritesUnreadableScriptFiles() {
+        story.then(r -> {
+            ShardedScriptStorage.ENABLED = true;
+            GlobalConfigFiles.get().save(new ScriptConfig("script", "script", "", CONTENT, null));
+            // the script file cannot be read without its blob
+            FileUtils.deleteDirectory(new File(r.jenkins.getRootDir(), "managed-scripts/" + ScriptBlobStore.BLOB_DIR));
+        });
+        story.then(r -> {
+            File file = getScriptFile(r.jenkins.getRootDir());
+            String written = FileUtils.readFileToString(file, StandardCharsets.UTF_8);
+            assertEquals("", GlobalConfigFiles.get().getById("script").content);
+            GlobalConfigFiles.get().save();
+            assertEquals(written, FileUtils.readFileToString(file, StandardCharsets.UTF_8));
+            // the reference is kept even once disabled
+            ShardedScriptStorage.ENABLED = false;
+            GlobalConfigFiles.get().save();
+            assertThat(getGlobalConfigFile(r.jenkins.getRootDir()).asString(), containsString("sharded=\"true\""));
+        });
+    }
+
+    @Test
+    public void shardsOnlyTheGlobalConfigStore() {
+        story.then(r -> {
+            ShardedScriptStorage.ENABLED = true;
+            String xml = Jenkins.XSTREAM2.toXML(new ScriptConfig("script", "script", "", CONTENT, null));
+            assertThat(xml, containsString("echo hello"));
+            assertThat(xml, not(containsString("sharded")));
+            assertFalse(getScriptFile(r.jenkins.getRootDir()).exists());
+        });
+    }
+
+    @Test
+    public void disablingKeepsTheContents() {
+        story.then(r -> {
+            ShardedScriptStorage.ENABLED = true;
+            GlobalConfigFiles.get().save(new ScriptConfig("script", "script", "", CONTENT, null));
+            assertTrue(new File(r.jenkins.getRootDir(), "managed-scripts/ScriptConfig/script.xml").isFile());
+        });
+        story.then(r -> {
+            // loaded from its script file, the content is read on demand
+            Config config = GlobalConfigFiles.get().getById("script");
+            assertNull(config.content);
+            assertEquals(CONTENT, ScriptBodies.of(config));
+            ShardedScriptStorage.ENABLED = false;
+            GlobalConfigFiles.get().save();
+            assertThat(getGlobalConfigFile(r.jenkins.getRootDir()).asString(), containsString("echo hello"));
+        });
+        story.then(r -> {
+            assertEquals(CONTENT, GlobalConfigFiles.get().getById("script").content);
+        });
+    }
+}